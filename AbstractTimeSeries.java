@@ -126,10 +126,11 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
     private double sumOfGaps;
     private boolean thereAreGaps = false;
     private boolean thereAreNaNs = false;
+    private ValidityMask validity;
+    private GapIndex gapIndex;
     // sampling function
     private int nSamplingFunctionBins;
-    private double[] samplingFunctionValues;
-    private double[] samplingFunctionBinEdges;
+    private SamplingFunction samplingFunction;
     // bin heights
     private double[] binHeights;
     private double minBinHeight;
@@ -161,6 +162,10 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
     private double kurtosisInRates;
     private double skewnessStandardError;
     private double kurtosisStandardError;
+    // cumulative sums for range queries (built on first use)
+    private volatile TimeSeriesRangeIndex rangeIndex;
+    // incremented each time the bins or intensities are (re)defined
+    private volatile int modificationCount = 0;
     
     //  Constructors are Package-private 
     AbstractTimeSeries() {}
@@ -202,7 +207,13 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
     }
     
     //  Setters
+    private void dataChanged() {
+        this.rangeIndex = null;
+        this.modificationCount++;
+    }
+
     void setBinEdges(double tStart, double[] binEdges) {
+    	dataChanged();
     	// binEdges are defined wrt tStart
     	binEdges = DataUtils.resetToZero(binEdges);
     	//
@@ -262,14 +273,9 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
             logger.info("  Max bin width = "+this.maxBinWidth);
             logger.info("  Average bin width = "+this.avgBinWidth);
         }
-        // Define gapEdges and sampling function
+        // Define gapEdges
         this.gapEdges = new double[2*(this.nBins-1)];
         this.gapLengths = new double[this.nBins-1];
-        DoubleArrayList samplingFuncValuesList = new DoubleArrayList();
-        DoubleArrayList samplingFuncEdgesList = new DoubleArrayList();
-        samplingFuncEdgesList.add(this.binEdges[0]);
-        samplingFuncEdgesList.add(this.binEdges[1]);
-        samplingFuncValuesList.add(1); // time series never starts with a gap, because if there is one, we take it out
         double minGap = Double.MAX_VALUE;
         double maxGap = -Double.MAX_VALUE;
         int nGaps = 0;
@@ -279,19 +285,14 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
             if ( gap > Math.ulp(2*this.binEdges[2*i]) ) {
                 nGaps++;
                 sumOfGaps += gap;
-                samplingFuncEdgesList.add(this.binEdges[2*i-1]);
-                samplingFuncEdgesList.add(this.binEdges[2*i]);
-                samplingFuncValuesList.add(0);
             }
-            samplingFuncEdgesList.add(this.binEdges[2*i]);
-            samplingFuncEdgesList.add(this.binEdges[2*i+1]);
-            samplingFuncValuesList.add(1);
             minGap = Math.min(minGap, gap);
             maxGap = Math.max(maxGap, gap);
             this.gapLengths[i-1] = gap;
             this.gapEdges[2*(i-1)] = this.binEdges[2*i-1];
             this.gapEdges[2*(i-1)+1] = this.binEdges[2*i];
         }
+        this.gapIndex = new GapIndex(this.binEdges, this.nBins);
         if ( maxGap > Math.ulp(2*this.binEdges[binEdges.length-1]) ) {
             this.thereAreGaps = true;
             this.nGaps = nGaps;
@@ -314,19 +315,20 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
             this.minGap = 0;
             logger.info("No gaps in timeline");
         }
-        samplingFuncValuesList.trimToSize();
-        samplingFuncEdgesList.trimToSize();
-        this.samplingFunctionValues = samplingFuncValuesList.elements();
-        this.samplingFunctionBinEdges = samplingFuncEdgesList.elements();
-        this.nSamplingFunctionBins = (this.samplingFunctionValues).length;
+        // Define the sampling function as good intervals separated by gaps:
+        // the time series never starts with a gap, because if there is one, we take it out
+        this.samplingFunction = new SamplingFunction(this.binEdges, this.nBins, this.gapIndex);
+        this.nSamplingFunctionBins = this.nBins + this.gapIndex.nGaps();
         logger.info("Sampling function is defined");
         logger.info("  nZeros = "+this.nGaps);
         logger.info("  nOnes = "+this.nBins);
     }
     
     void setCounts(double[] counts) {
+        dataChanged();
         this.binHeights = new double[this.nBins];
         this.rates = new double[this.nBins];
+        this.validity = new ValidityMask(counts);
         double minBinHeight = Double.MAX_VALUE;
         double maxBinHeight = -Double.MAX_VALUE;
         double sumOfBinHeights = 0;
@@ -335,18 +337,10 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
         double sumOfSquaredRates = 0;
         double minRate = Double.MAX_VALUE;
         double maxRate = -Double.MAX_VALUE;
-        int nNaNs = 0;
-        int nNonNaNs = 0;
         for ( int i=0; i < this.nBins; i++ ) {
             this.binHeights[i] = counts[i];
             this.rates[i] = this.binHeights[i]/this.binWidths[i];
-            if ( Double.isNaN(this.binHeights[i]) ) {
-                //logger.warn("NaN encountered in binHeights: index "+i+". Excluding from calculations");
-                nNaNs++;
-		this.thereAreNaNs = true;
-                this.thereAreGaps = true;
-            }
-            else {
+            if ( this.validity.isValid(i) ) {
                 minBinHeight = Math.min(minBinHeight, this.binHeights[i]);
                 maxBinHeight = Math.max(maxBinHeight, this.binHeights[i]);
                 sumOfBinHeights += this.binHeights[i];
@@ -355,11 +349,14 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
                 maxRate = Math.max(maxRate, this.rates[i]);
                 sumOfRates += this.rates[i];
                 sumOfSquaredRates += this.rates[i]*this.rates[i];
-                nNonNaNs++;
             }
         }
-        this.nNonNaNs = nNonNaNs;
-    	this.nNaNs = nNaNs;
+        if ( this.validity.nInvalid() > 0 ) {
+            this.thereAreNaNs = true;
+            this.thereAreGaps = true;
+        }
+        this.nNonNaNs = this.validity.nValid();
+    	this.nNaNs = this.validity.nInvalid();
         this.minRate = minRate;
         this.maxRate = maxRate;
         this.minBinHeight = minBinHeight;
@@ -371,8 +368,10 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
     }
     
     void setRates(double[] r) {
+        dataChanged();
         this.rates = new double[this.nBins];
         this.binHeights = new double[this.nBins];
+        this.validity = new ValidityMask(r);
         double minRate = Double.MAX_VALUE;
         double maxRate = -Double.MAX_VALUE;
         double sumOfRates = 0;
@@ -381,20 +380,13 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
         double maxBinHeight = -Double.MAX_VALUE;
         double sumOfBinHeights = 0;
         double sumOfSquaredBinHeights = 0;
-        int nNaNs = 0;
-        int nNonNaNs = 0;
         for ( int i=0; i < this.nBins; i++ ) {
             //  Rate
             double rate = r[i];
             this.rates[i] = rate;
             double counts = this.rates[i]*this.binWidths[i];
             this.binHeights[i] = counts;
-            if ( Double.isNaN(rate) ) {
-                nNaNs++;
-        		thereAreNaNs = true;
-                thereAreGaps = true;
-            }
-            else {
+            if ( this.validity.isValid(i) ) {
                 minRate = Math.min(minRate, rate);
                 maxRate = Math.max(maxRate, rate);
                 sumOfRates += rate;
@@ -403,14 +395,15 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
                 maxBinHeight = Math.max(maxBinHeight, this.binHeights[i]);
                 sumOfBinHeights += counts;
                 sumOfSquaredBinHeights += counts*counts;
-                nNonNaNs++;
             }
         }
-        if ( thereAreNaNs ) {
-            logger.warn("There are "+nNaNs+" NaN values in the RATE column");
+        if ( this.validity.nInvalid() > 0 ) {
+            thereAreNaNs = true;
+            thereAreGaps = true;
+            logger.warn("There are "+this.validity.nInvalid()+" NaN values in the RATE column");
         }
-        this.nNonNaNs = nNonNaNs;
-    	this.nNaNs = nNaNs;
+        this.nNonNaNs = this.validity.nValid();
+    	this.nNaNs = this.validity.nInvalid();
         this.minRate = minRate;
         this.maxRate = maxRate;
         this.minBinHeight = minBinHeight;
@@ -422,21 +415,25 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
     }
     
     void setErrorsOnRates(double[] errors) {
+        dataChanged();
         this.errorsOnRates = new double[this.nBins];
         this.weightsOnRates = new double[this.nBins];
         double sum = 0;
         for ( int i=0; i < this.nBins; i++ ) {
+            if ( ! this.validity.isValid(i) ) {
+                //  Invalid bins have no weight
+                this.errorsOnRates[i] = Double.isNaN(errors[i]) ? 0 : errors[i];
+                continue;
+            }
             if ( Double.isNaN(errors[i]) ) {
-                if ( ! Double.isNaN(this.rates[i]) ) {
-                    logger.warn("There is a NaN value in errors whose corresponding rate is not NaN. Setting error from mean counts per bin");
-                    double uncertainty = Math.sqrt(this.meanBinHeight);
-                    this.errorsOnRates[i] = uncertainty/this.binWidths[i];
-                }
+                logger.warn("There is a NaN value in errors whose corresponding rate is not NaN. Setting error from mean counts per bin");
+                double uncertainty = Math.sqrt(this.meanBinHeight);
+                this.errorsOnRates[i] = uncertainty/this.binWidths[i];
             }
             else {
                 this.errorsOnRates[i] = errors[i];
             }
-            this.weightsOnRates[i] = 1./Math.pow(this.errorsOnRates[i], 2);
+            this.weightsOnRates[i] = 1./(this.errorsOnRates[i]*this.errorsOnRates[i]);
             sum += this.weightsOnRates[i];
         }
         this.sumOfWeightsOnRates = sum;
@@ -448,9 +445,12 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
         this.binCentreAtMinBinHeight = this.binCentres[DataUtils.getIndex(this.minBinHeight, this.binHeights)];
         this.binCentreAtMaxBinHeight = this.binCentres[DataUtils.getIndex(this.maxBinHeight, this.binHeights)];
         this.meanBinHeight = this.sumOfBinHeights/this.nNonNaNs;
+        //  The descriptive statistics are computed on the valid bins only
+        DoubleArrayList validBinHeights = new DoubleArrayList(this.validity.validValues(this.binHeights));
+        DoubleArrayList validRates = new DoubleArrayList(this.validity.validValues(this.rates));
     	if ( this.errorsAreSet ) {
     	    this.meanRate = this.sumOfRates/this.nNonNaNs;
-    	    this.weightedMeanRate = Descriptive.weightedMean(new DoubleArrayList(this.rates), new DoubleArrayList(this.weightsOnRates));
+    	    this.weightedMeanRate = Descriptive.weightedMean(validRates, new DoubleArrayList(this.validity.validValues(this.weightsOnRates)));
     	}
     	else {
     	    this.meanRate = this.sumOfBinHeights/this.sumOfBinWidths;
@@ -460,14 +460,14 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
         this.varianceInRates = Descriptive.sampleVariance(this.nNonNaNs, this.sumOfRates, this.sumOfSquaredRates);
         this.errorOnMeanRate = Math.sqrt(this.varianceInRates/this.nNonNaNs);
         this.errorOnWeightedMeanRate = 1./Math.sqrt(this.sumOfWeightsOnRates);
-        this.meanDeviationInBinHeights = Descriptive.meanDeviation(new DoubleArrayList(this.binHeights), this.meanBinHeight);
-        this.meanDeviationInRates = Descriptive.meanDeviation(new DoubleArrayList(this.rates), this.meanRate);
-        this.skewnessInBinHeights = Descriptive.sampleSkew(new DoubleArrayList(this.binHeights), this.meanBinHeight, this.varianceInBinHeights);
-        this.skewnessInRates = Descriptive.sampleSkew(new DoubleArrayList(this.rates), this.meanBinHeight, this.varianceInBinHeights);
-        this.skewnessStandardError = Descriptive.sampleSkewStandardError(this.nBins);
-        this.kurtosisInBinHeights = Descriptive.sampleKurtosis(new DoubleArrayList(this.binHeights), this.meanBinHeight, this.varianceInBinHeights);
-        this.kurtosisInRates = Descriptive.sampleKurtosis(new DoubleArrayList(this.rates), this.meanBinHeight, this.varianceInBinHeights);
-        this.kurtosisStandardError =  Descriptive.sampleKurtosisStandardError(this.nBins);
+        this.meanDeviationInBinHeights = Descriptive.meanDeviation(validBinHeights, this.meanBinHeight);
+        this.meanDeviationInRates = Descriptive.meanDeviation(validRates, this.meanRate);
+        this.skewnessInBinHeights = Descriptive.sampleSkew(validBinHeights, this.meanBinHeight, this.varianceInBinHeights);
+        this.skewnessInRates = Descriptive.sampleSkew(validRates, this.meanBinHeight, this.varianceInBinHeights);
+        this.skewnessStandardError = Descriptive.sampleSkewStandardError(this.nNonNaNs);
+        this.kurtosisInBinHeights = Descriptive.sampleKurtosis(validBinHeights, this.meanBinHeight, this.varianceInBinHeights);
+        this.kurtosisInRates = Descriptive.sampleKurtosis(validRates, this.meanBinHeight, this.varianceInBinHeights);
+        this.kurtosisStandardError =  Descriptive.sampleKurtosisStandardError(this.nNonNaNs);
     }
 
     //  Public methods
@@ -731,8 +731,38 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
     public double maxGap() { return this.maxGap; }
     public double sumOfGaps() { return this.sumOfGaps; }
     public int nSamplingFunctionBins() { return this.nSamplingFunctionBins; }
-    public double[] getSamplingFunctionValues() { return Arrays.copyOf(this.samplingFunctionValues, this.samplingFunctionValues.length); }
-    public double[] getSamplingFunctionBinEdges() { return Arrays.copyOf(this.samplingFunctionBinEdges, this.samplingFunctionBinEdges.length); }
+    public SamplingFunction getSamplingFunction() { return this.samplingFunction; }
+    //  The per-bin sampling function (one entry per bin and per gap) is expanded on demand
+    public double[] getSamplingFunctionValues() {
+        double[] values = new double[this.nSamplingFunctionBins];
+        int j = 0;
+        int k = 0;
+        for ( int i=0; i < this.nBins; i++ ) {
+            if ( k < this.gapIndex.nGaps() && this.gapIndex.binIndex(k) == i ) {
+                values[j++] = 0;
+                k++;
+            }
+            values[j++] = 1;
+        }
+        return values;
+    }
+    public double[] getSamplingFunctionBinEdges() {
+        double[] edges = new double[2*this.nSamplingFunctionBins];
+        int j = 0;
+        int k = 0;
+        for ( int i=0; i < this.nBins; i++ ) {
+            if ( k < this.gapIndex.nGaps() && this.gapIndex.binIndex(k) == i ) {
+                edges[2*j] = this.gapIndex.start(k);
+                edges[2*j+1] = this.gapIndex.stop(k);
+                j++;
+                k++;
+            }
+            edges[2*j] = this.binEdges[2*i];
+            edges[2*j+1] = this.binEdges[2*i+1];
+            j++;
+        }
+        return edges;
+    }
     
     //  About Intensities
     public double[] getBinHeights() { return Arrays.copyOf(this.binHeights, this.binHeights.length); }
@@ -785,6 +815,29 @@ public abstract class AbstractTimeSeries implements ITimeSeries {
         return meanSubBinHeights;
     }
     
+    //  Package-private access to the internal arrays without copying them.
+    //  These are for classes of the package that only read the data, and must never be modified.
+    double[] internalBinEdges() { return this.binEdges; }
+    double[] internalBinCentres() { return this.binCentres; }
+    double[] internalBinWidths() { return this.binWidths; }
+    double[] internalBinHeights() { return this.binHeights; }
+    double[] internalRates() { return this.rates; }
+    double[] internalErrorsOnRates() {
+        // When errors are not set they are derived, and so the returned array is a new one
+        return this.errorsAreSet ? this.errorsOnRates : getErrorsOnRates();
+    }
+    GapIndex gapIndex() { return this.gapIndex; }
+    ValidityMask validity() { return this.validity; }
+    int modificationCount() { return this.modificationCount; }
+    TimeSeriesRangeIndex rangeIndex() {
+        TimeSeriesRangeIndex index = this.rangeIndex;
+        if ( index == null ) {
+            index = new TimeSeriesRangeIndex(this);
+            this.rangeIndex = index;
+        }
+        return index;
+    }
+
     //  Boolean checkers
     public boolean binWidthIsConstant() { return this.binWidthIsConstant; }
     public boolean thereAreGaps() { return this.thereAreGaps; }
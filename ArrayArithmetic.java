@@ -0,0 +1,85 @@
+package gb.esac.timeseries;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>ArrayArithmetic</code> selects the implementation of <code>IArrayArithmetic</code> used by the
+ * arithmetic methods of the package: "scalar" (plain loops) or "vector" (SIMD through jdk.incubator.vector).
+ *
+ * The initial choice is read from the system property <code>gb.esac.timeseries.arithmetic</code>. Without it, the
+ * vector implementation is used when it has been compiled (from the vector/ directory) and the jdk.incubator.vector
+ * module is available, and the scalar one otherwise.
+ * The implementation can be changed at run time with <code>setImplementation</code>; asking for "vector" when the
+ * module is not available falls back to "scalar" with a warning.
+ *
+ */
+
+public final class ArrayArithmetic {
+
+    private static Logger logger  = Logger.getLogger(ArrayArithmetic.class);
+
+    public static final String PROPERTY_NAME = "gb.esac.timeseries.arithmetic";
+
+    private static final IArrayArithmetic SCALAR = new ScalarArrayArithmetic();
+    private static final IArrayArithmetic VECTOR = loadVectorImplementation();
+    private static volatile IArrayArithmetic current = select(System.getProperty(PROPERTY_NAME, VECTOR != null ? "vector" : "scalar"));
+
+    private ArrayArithmetic() {}
+
+    public static IArrayArithmetic get() {
+	return current;
+    }
+
+    public static IArrayArithmetic getScalar() {
+	return SCALAR;
+    }
+
+    /**
+     * Returns the vector implementation, or the scalar one if the Vector API is not available.
+     */
+    public static IArrayArithmetic getVector() {
+	return VECTOR != null ? VECTOR : SCALAR;
+    }
+
+    public static boolean vectorIsAvailable() {
+	return VECTOR != null;
+    }
+
+    public static void setImplementation(String name) {
+	current = select(name);
+    }
+
+    private static IArrayArithmetic select(String name) {
+	IArrayArithmetic selected;
+	if ( "vector".equalsIgnoreCase(name) ) {
+	    if ( VECTOR == null ) {
+		logger.warn("Vector API (jdk.incubator.vector) is not available: Using scalar arithmetic");
+	    }
+	    selected = getVector();
+	}
+	else if ( "scalar".equalsIgnoreCase(name) ) {
+	    selected = SCALAR;
+	}
+	else {
+	    throw new IllegalArgumentException("Unknown arithmetic implementation: "+name+" (use scalar or vector)");
+	}
+	logger.info("Using "+selected.name()+" arithmetic");
+	return selected;
+    }
+
+    private static IArrayArithmetic loadVectorImplementation() {
+	try {
+	    Class<?> c = Class.forName("gb.esac.timeseries.VectorArrayArithmetic");
+	    IArrayArithmetic impl = (IArrayArithmetic) c.getDeclaredConstructor().newInstance();
+	    //  Make sure that the module is really usable before adopting it
+	    impl.add(new double[1], new double[1], new double[1], 1);
+	    return impl;
+	}
+	catch ( Throwable e ) {
+	    return null;
+	}
+    }
+
+}
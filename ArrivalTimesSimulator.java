@@ -0,0 +1,153 @@
+package gb.esac.timeseries;
+
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>ArrivalTimesSimulator</code> draws event arrival times from the intensity of a time series.
+ *
+ * The number of events in each bin is a Poisson deviate of mean rate*width, and the events of a bin are spread
+ * uniformly over it as sorted order statistics built from exponential spacings. Since the bins are in time order,
+ * the arrival times come out sorted without any sort. Bins of any width are handled, gaps receive no events, NaN
+ * and negative rates are treated as zero, and the times are absolute (tStart + bin edges).
+ *
+ * The bins are processed in fixed chunks, each with its own <code>SplittableRandom</code> derived from the seed,
+ * so that the same seed gives the same times whatever the number of threads.
+ *
+ */
+
+public final class ArrivalTimesSimulator {
+
+    private static Logger logger  = Logger.getLogger(ArrivalTimesSimulator.class);
+
+    //  Number of bins handled by each generator
+    private static final int BINS_PER_CHUNK = 4096;
+
+    private ArrivalTimesSimulator() {}
+
+    /**
+     * Returns sorted arrival times with a Poisson number of events in each bin, of mean rate*width.
+     *
+     * @param ts a <code>TimeSeries</code> value
+     * @param seed a <code>long</code> value
+     * @return a <code>double[]</code> value
+     */
+    public static double[] simulate(TimeSeries ts, long seed) {
+	logger.info("Simulating Poisson arrival times (seed = "+seed+")");
+	final double tStart = ts.tStart();
+	final double[] binEdges = ts.internalBinEdges();
+	final double[] means = meanCounts(ts);
+	final int n = ts.nBins();
+	int nChunks = (n + BINS_PER_CHUNK - 1)/BINS_PER_CHUNK;
+	final SplittableRandom[] generators = RandomNumbers.split(seed, nChunks);
+
+	//  Draw the counts of each chunk, then place the events once the offsets are known
+	final long[] counts = new long[n];
+	IntStream.range(0, nChunks).parallel().forEach(c -> {
+		for ( int i=c*BINS_PER_CHUNK; i < Math.min(n, (c+1)*BINS_PER_CHUNK); i++ ) {
+		    counts[i] = RandomNumbers.nextPoisson(generators[c], means[i]);
+		}
+	    });
+	final int[] offsets = new int[nChunks+1];
+	long total = 0;
+	for ( int i=0; i < n; i++ ) {
+	    if ( i % BINS_PER_CHUNK == 0 ) {
+		offsets[i/BINS_PER_CHUNK] = (int) total;
+	    }
+	    total += counts[i];
+	    if ( total > Integer.MAX_VALUE - 8 ) {
+		throw new IllegalArgumentException("Too many events to hold in an array: expected number > "+total);
+	    }
+	}
+	offsets[nChunks] = (int) total;
+	final double[] times = new double[(int) total];
+	IntStream.range(0, nChunks).parallel().forEach(c -> {
+		int offset = offsets[c];
+		for ( int i=c*BINS_PER_CHUNK; i < Math.min(n, (c+1)*BINS_PER_CHUNK); i++ ) {
+		    int count = (int) counts[i];
+		    double left = tStart + binEdges[2*i];
+		    double width = binEdges[2*i+1] - binEdges[2*i];
+		    fillSortedUniforms(times, offset, count, left, width, generators[c]);
+		    offset += count;
+		}
+	    });
+	logger.info("  Number of events = "+times.length);
+	return times;
+    }
+
+    /**
+     * Returns exactly nEvents sorted arrival times distributed according to the intensity of the series.
+     * The sorted order statistics of nEvents uniform deviates are mapped through the cumulative counts,
+     * which is piecewise linear, in a single pass over the events and the bins.
+     *
+     * @param ts a <code>TimeSeries</code> value
+     * @param nEvents an <code>int</code> value
+     * @param seed a <code>long</code> value
+     * @return a <code>double[]</code> value
+     */
+    public static double[] simulate(TimeSeries ts, int nEvents, long seed) {
+	if ( nEvents < 0 ) {
+	    throw new IllegalArgumentException("Number of events must not be negative: nEvents = "+nEvents);
+	}
+	logger.info("Simulating "+nEvents+" arrival times (seed = "+seed+")");
+	double tStart = ts.tStart();
+	double[] binEdges = ts.internalBinEdges();
+	double[] means = meanCounts(ts);
+	int n = ts.nBins();
+	double totalMean = 0;
+	int lastBin = -1;
+	for ( int i=0; i < n; i++ ) {
+	    totalMean += means[i];
+	    if ( means[i] > 0 ) lastBin = i;
+	}
+	if ( !(totalMean > 0) ) {
+	    throw new IllegalArgumentException("Cannot draw arrival times from a TimeSeries with no positive intensity");
+	}
+	double[] times = new double[nEvents];
+	//  Sorted uniforms on [0, totalMean)
+	fillSortedUniforms(times, 0, nEvents, 0, totalMean, new SplittableRandom(seed));
+	int k = 0;
+	double cumBefore = 0;
+	for ( int j=0; j < nEvents; j++ ) {
+	    double m = times[j];
+	    while ( k < lastBin && (means[k] == 0 || cumBefore + means[k] <= m) ) {
+		cumBefore += means[k];
+		k++;
+	    }
+	    double fraction = Math.min(1, Math.max(0, (m - cumBefore)/means[k]));
+	    times[j] = tStart + binEdges[2*k] + fraction*(binEdges[2*k+1] - binEdges[2*k]);
+	}
+	return times;
+    }
+
+    //  Expected counts per bin, rate*width, with NaN and negative rates set to zero
+    private static double[] meanCounts(TimeSeries ts) {
+	double[] rates = ts.internalRates();
+	double[] widths = ts.internalBinWidths();
+	double[] means = new double[rates.length];
+	for ( int i=0; i < rates.length; i++ ) {
+	    double mean = rates[i]*widths[i];
+	    means[i] = mean > 0 ? mean : 0;
+	}
+	return means;
+    }
+
+    //  Writes count sorted uniform deviates on [left, left+width) from normalised cumulative exponential spacings
+    private static void fillSortedUniforms(double[] times, int offset, int count, double left, double width, SplittableRandom random) {
+	if ( count == 0 ) return;
+	double sum = 0;
+	for ( int j=0; j < count; j++ ) {
+	    sum += RandomNumbers.nextExponential(random);
+	    times[offset+j] = sum;
+	}
+	sum += RandomNumbers.nextExponential(random);
+	double scale = width/sum;
+	for ( int j=0; j < count; j++ ) {
+	    times[offset+j] = left + times[offset+j]*scale;
+	}
+    }
+
+}
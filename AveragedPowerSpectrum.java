@@ -0,0 +1,47 @@
+package gb.esac.timeseries;
+
+import java.util.Arrays;
+
+
+/**
+ *
+ * The class <code>AveragedPowerSpectrum</code> holds a power spectral density averaged over equal segments
+ * of a time series, as made by <code>AveragedPowerSpectrumMaker</code>. The errors on the powers are the
+ * standard errors of the mean of the powers, i.e. P/sqrt(nSegments) for chi-square distributed powers.
+ *
+ */
+
+public final class AveragedPowerSpectrum {
+
+    private final double[] frequencies;
+    private final double[] powers;
+    private final double[] errorsOnPowers;
+    private final int nSegments;
+    private final int nBinsPerSegment;
+    private final double binWidth;
+    private final String normalisation;
+    private final String windowName;
+
+    AveragedPowerSpectrum(double[] frequencies, double[] powers, double[] errorsOnPowers, int nSegments, int nBinsPerSegment, double binWidth, String normalisation, String windowName) {
+	this.frequencies = frequencies;
+	this.powers = powers;
+	this.errorsOnPowers = errorsOnPowers;
+	this.nSegments = nSegments;
+	this.nBinsPerSegment = nBinsPerSegment;
+	this.binWidth = binWidth;
+	this.normalisation = normalisation;
+	this.windowName = windowName;
+    }
+
+    public int nFrequencies() { return this.frequencies.length; }
+    public double[] getFrequencies() { return Arrays.copyOf(this.frequencies, this.frequencies.length); }
+    public double[] getPowers() { return Arrays.copyOf(this.powers, this.powers.length); }
+    public double[] getErrorsOnPowers() { return Arrays.copyOf(this.errorsOnPowers, this.errorsOnPowers.length); }
+    public int nSegments() { return this.nSegments; }
+    public int nBinsPerSegment() { return this.nBinsPerSegment; }
+    public double binWidth() { return this.binWidth; }
+    public double segmentLength() { return this.nBinsPerSegment*this.binWidth; }
+    public String normalisation() { return this.normalisation; }
+    public String windowName() { return this.windowName; }
+
+}
@@ -0,0 +1,221 @@
+package gb.esac.timeseries;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import gb.esac.periodogram.WindowFunctionException;
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>AveragedPowerSpectrumMaker</code> computes the power spectral density of a time series
+ * averaged over segments of equal length (Bartlett's method, or Welch's when a window is applied).
+ *
+ * The time series must have a constant bin width. It is split into non-overlapping segments of nBinsPerSegment
+ * contiguous bins (a power of two) that contain neither gaps nor NaNs; bins that cannot be part of a complete
+ * segment are dropped. For each segment the mean rate is subtracted, the window coefficients (computed once per
+ * segment length by <code>WindowFunctionCache</code>) are applied, and the powers are computed with a real FFT that
+ * reuses a cached <code>FFTPlan</code> and per-thread work arrays from <code>DoubleArrayPool</code>.
+ * Segments are processed in parallel and the sums are combined in a fixed order, so that the result does not depend
+ * on the number of threads.
+ *
+ * The powers are normalised per segment and corrected for the mean square of the window:
+ *   "leahy": P = 2|A|^2/N_ph, where A is the Fourier amplitude of the counts and N_ph the counts in the segment,
+ *            so that Poisson noise has a mean power of 2;
+ *   "rms":   P = P_leahy/meanRate, in units of (rms/mean)^2/Hz.
+ *
+ */
+
+public final class AveragedPowerSpectrumMaker {
+
+    private static Logger logger  = Logger.getLogger(AveragedPowerSpectrumMaker.class);
+
+    private static final int SEGMENTS_PER_TASK = 4;
+
+    public static AveragedPowerSpectrum makePowerSpectrum(TimeSeries ts, int nBinsPerSegment) throws TimeSeriesException, WindowFunctionException {
+	return makePowerSpectrum(ts, nBinsPerSegment, null, "leahy");
+    }
+
+    /**
+     * Compute the averaged power spectrum of a <code>TimeSeries</code>.
+     *
+     * @param ts a <code>TimeSeries</code> value with a constant bin width
+     * @param nBinsPerSegment an <code>int</code> value: the number of bins per segment, a power of 2
+     * @param windowName a <code>String</code> value: the name of the window function, or null for no window
+     * @param normalisation a <code>String</code> value: "leahy" or "rms"
+     * @return an <code>AveragedPowerSpectrum</code> value
+     * @exception TimeSeriesException if the bin width is not constant, if the arguments are invalid, or if no segment can be used
+     * @exception WindowFunctionException if the window function is not known
+     */
+    public static AveragedPowerSpectrum makePowerSpectrum(TimeSeries ts, int nBinsPerSegment, String windowName, String normalisation) throws TimeSeriesException, WindowFunctionException {
+	logger.info("Making averaged power spectrum with "+nBinsPerSegment+" bins per segment");
+	if ( !FFTPlan.isPowerOfTwo(nBinsPerSegment) || nBinsPerSegment < 2 ) {
+	    throw new TimeSeriesException("Number of bins per segment must be a power of 2 (nBinsPerSegment = "+nBinsPerSegment+")");
+	}
+	final boolean leahy;
+	if ( normalisation.equalsIgnoreCase("leahy") ) {
+	    leahy = true;
+	}
+	else if ( normalisation.equalsIgnoreCase("rms") ) {
+	    leahy = false;
+	}
+	else {
+	    throw new TimeSeriesException("Unknown normalisation: "+normalisation+" (use leahy or rms)");
+	}
+	double binWidth = ts.binWidth();
+	int[] segmentStarts = findSegments(ts, nBinsPerSegment);
+	logger.info("  There are "+segmentStarts.length+" complete segments of "+(nBinsPerSegment*binWidth)+" s");
+	if ( segmentStarts.length == 0 ) {
+	    throw new TimeSeriesException("There is no segment of "+nBinsPerSegment+" contiguous bins without NaNs");
+	}
+
+	//  Window coefficients
+	double[] window;
+	if ( windowName == null ) {
+	    window = new double[nBinsPerSegment];
+	    Arrays.fill(window, 1.0);
+	}
+	else {
+	    logger.info("  Using "+windowName+" window");
+	    window = WindowFunctionCache.getCoefficients(windowName, nBinsPerSegment);
+	}
+
+	//  Sum the powers of all segments in parallel
+	SegmentSum task = new SegmentSum(ts.internalRates(), segmentStarts, 0, segmentStarts.length, nBinsPerSegment, binWidth, window, leahy);
+	double[][] sumAndCount = ForkJoinPool.commonPool().invoke(task);
+	double[] sumOfPowers = sumAndCount[0];
+	int nSegments = (int) sumAndCount[1][0];
+	if ( nSegments < segmentStarts.length ) {
+	    logger.warn("  Dropped "+(segmentStarts.length - nSegments)+" segments whose mean rate is not positive");
+	}
+	if ( nSegments == 0 ) {
+	    throw new TimeSeriesException("There is no segment with a positive mean rate");
+	}
+	int nFreqs = nBinsPerSegment/2;
+	double[] frequencies = new double[nFreqs];
+	double[] powers = new double[nFreqs];
+	double[] errors = new double[nFreqs];
+	double segmentLength = nBinsPerSegment*binWidth;
+	for ( int j=0; j < nFreqs; j++ ) {
+	    frequencies[j] = (j+1)/segmentLength;
+	    powers[j] = sumOfPowers[j]/nSegments;
+	    errors[j] = powers[j]/Math.sqrt(nSegments);
+	}
+	logger.info("  Power spectrum averaged over "+nSegments+" segments");
+	return new AveragedPowerSpectrum(frequencies, powers, errors, nSegments, nBinsPerSegment, binWidth, normalisation.toLowerCase(), windowName);
+    }
+
+    /**
+     * Returns the index of the first bin of each complete segment of contiguous bins without NaN.
+     * Segments do not cross the gaps of the series' <code>GapIndex</code>.
+     */
+    static int[] findSegments(TimeSeries ts, int nBinsPerSegment) {
+	int nBins = ts.nBins();
+	ValidityMask validity = ts.validity();
+	GapIndex gaps = ts.gapIndex();
+	int[] starts = new int[nBins/nBinsPerSegment];
+	int nSegments = 0;
+	int runStart = 0;
+	int g = 0;
+	for ( int i=0; i < nBins; i++ ) {
+	    if ( g < gaps.nGaps() && gaps.binIndex(g) == i ) {
+		runStart = i;
+		g++;
+	    }
+	    if ( !validity.isValid(i) ) {
+		runStart = i+1;
+	    }
+	    else if ( i - runStart + 1 == nBinsPerSegment ) {
+		starts[nSegments] = runStart;
+		nSegments++;
+		runStart = i+1;
+	    }
+	}
+	return Arrays.copyOf(starts, nSegments);
+    }
+
+    private static final class SegmentSum extends RecursiveTask<double[][]> {
+
+	private final double[] rates;
+	private final int[] segmentStarts;
+	private final int from;
+	private final int to;
+	private final int n;
+	private final double binWidth;
+	private final double[] window;
+	private final boolean leahy;
+
+	SegmentSum(double[] rates, int[] segmentStarts, int from, int to, int n, double binWidth, double[] window, boolean leahy) {
+	    this.rates = rates;
+	    this.segmentStarts = segmentStarts;
+	    this.from = from;
+	    this.to = to;
+	    this.n = n;
+	    this.binWidth = binWidth;
+	    this.window = window;
+	    this.leahy = leahy;
+	}
+
+	@Override
+	protected double[][] compute() {
+	    if ( this.to - this.from <= SEGMENTS_PER_TASK ) {
+		return sumSegments();
+	    }
+	    int mid = (this.from + this.to) >>> 1;
+	    SegmentSum left = new SegmentSum(this.rates, this.segmentStarts, this.from, mid, this.n, this.binWidth, this.window, this.leahy);
+	    SegmentSum right = new SegmentSum(this.rates, this.segmentStarts, mid, this.to, this.n, this.binWidth, this.window, this.leahy);
+	    left.fork();
+	    double[][] rightSum = right.compute();
+	    double[][] leftSum = left.join();
+	    for ( int j=0; j < leftSum[0].length; j++ ) {
+		leftSum[0][j] += rightSum[0][j];
+	    }
+	    leftSum[1][0] += rightSum[1][0];
+	    return leftSum;
+	}
+
+	private double[][] sumSegments() {
+	    int nFreqs = this.n/2;
+	    double[] sum = new double[nFreqs];
+	    int nUsed = 0;
+	    FFTPlan plan = FFTPlan.forSize(this.n);
+	    double windowMeanSquare = WindowFunctionCache.meanSquare(this.window);
+	    double[] x = DoubleArrayPool.acquire(this.n);
+	    double[] re = DoubleArrayPool.acquire(nFreqs+1);
+	    double[] im = DoubleArrayPool.acquire(nFreqs+1);
+	    try {
+		for ( int s=this.from; s < this.to; s++ ) {
+		    int start = this.segmentStarts[s];
+		    double sumOfRates = 0;
+		    for ( int k=0; k < this.n; k++ ) {
+			sumOfRates += this.rates[start+k];
+		    }
+		    double meanRate = sumOfRates/this.n;
+		    if ( !(meanRate > 0) ) continue;
+		    for ( int k=0; k < this.n; k++ ) {
+			x[k] = (this.rates[start+k] - meanRate)*this.window[k];
+		    }
+		    plan.realForward(x, re, im);
+		    //  Leahy: 2|A_counts|^2/N_ph with A_counts = binWidth*A_rates and N_ph = meanRate*n*binWidth
+		    double norm = 2*this.binWidth/(meanRate*this.n*windowMeanSquare);
+		    if ( !this.leahy ) {
+			norm /= meanRate;
+		    }
+		    for ( int j=1; j <= nFreqs; j++ ) {
+			sum[j-1] += norm*(re[j]*re[j] + im[j]*im[j]);
+		    }
+		    nUsed++;
+		}
+	    }
+	    finally {
+		DoubleArrayPool.release(x);
+		DoubleArrayPool.release(re);
+		DoubleArrayPool.release(im);
+	    }
+	    return new double[][] {sum, {nUsed}};
+	}
+    }
+
+}
@@ -0,0 +1,154 @@
+package gb.esac.timeseries;
+
+import java.util.stream.IntStream;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>BatchKalmanFilter</code> applies a local-level (random walk plus noise) Kalman filter, and
+ * optionally the Rauch-Tung-Striebel smoother, to one or many time series.
+ *
+ * The model is x_t = x_{t-1} + w_t for the underlying rate, and y_t = x_t + v_t for the measured rate, where the
+ * measurement variance is the squared error on the rate and the process variance is processRMS^2 per bin. Across a
+ * gap, the process variance is multiplied by the number of bins that would fit between the two bin centres. NaN bins
+ * are predicted without update, and the filter is initialised on the first valid bin. When processRMS is 0, a bin
+ * with a zero error (an empty bin of counts) that follows an exact prediction is taken as exact: the level is set to
+ * its rate, with zero variance and no innovation.
+ *
+ * Series of any lengths are processed in parallel, one per task. The per-series work arrays come from the per-thread
+ * <code>DoubleArrayPool</code>, so that the inner loops do not allocate.
+ *
+ */
+
+public final class BatchKalmanFilter {
+
+    private static Logger logger  = Logger.getLogger(BatchKalmanFilter.class);
+
+    private BatchKalmanFilter() {}
+
+    public static KalmanFilterResult filter(TimeSeries ts, double processRMS) {
+	return run(ts, processRMS, false);
+    }
+
+    public static KalmanFilterResult smooth(TimeSeries ts, double processRMS) {
+	return run(ts, processRMS, true);
+    }
+
+    /**
+     * Filters (or smooths) all the series in parallel. The results are in the same order as the series.
+     *
+     * @param series a <code>TimeSeries[]</code> value
+     * @param processRMS a <code>double</code> value: the rms change of the rate from one bin to the next
+     * @param smooth a <code>boolean</code> value: if true, the RTS smoother is applied after the filter
+     * @return a <code>KalmanFilterResult[]</code> value
+     */
+    public static KalmanFilterResult[] filter(final TimeSeries[] series, final double processRMS, final boolean smooth) {
+	logger.info("Kalman "+(smooth ? "smoothing " : "filtering ")+series.length+" TimeSeries");
+	final KalmanFilterResult[] results = new KalmanFilterResult[series.length];
+	IntStream.range(0, series.length).parallel().forEach(i ->
+		results[i] = run(series[i], processRMS, smooth)
+	);
+	return results;
+    }
+
+    private static KalmanFilterResult run(TimeSeries ts, double processRMS, boolean smooth) {
+	if ( !(processRMS >= 0) ) {
+	    throw new IllegalArgumentException("processRMS must not be negative: processRMS = "+processRMS);
+	}
+	int n = ts.nBins();
+	double[] y = ts.internalRates();
+	double[] errors = ts.internalErrorsOnRates();
+	double[] centres = ts.internalBinCentres();
+	double[] widths = ts.internalBinWidths();
+	double q = processRMS*processRMS;
+
+	double[] means = new double[n];
+	double[] variances = new double[n];
+	double[] z = new double[n];
+	double[] predictedMeans = smooth ? DoubleArrayPool.acquire(n) : null;
+	double[] predictedVariances = smooth ? DoubleArrayPool.acquire(n) : null;
+
+	double x = Double.NaN;
+	double p = Double.NaN;
+	boolean initialised = false;
+	int nInnovations = 0;
+	double chiSquare = 0;
+	double maxAbsZ = 0;
+	int indexOfMax = -1;
+	for ( int t=0; t < n; t++ ) {
+	    z[t] = Double.NaN;
+	    boolean valid = !Double.isNaN(y[t]) && !Double.isNaN(errors[t]);
+	    if ( !initialised ) {
+		if ( valid ) {
+		    x = y[t];
+		    p = errors[t]*errors[t];
+		    initialised = true;
+		}
+		means[t] = valid ? x : Double.NaN;
+		variances[t] = valid ? p : Double.NaN;
+		if ( smooth ) {
+		    predictedMeans[t] = means[t];
+		    predictedVariances[t] = variances[t];
+		}
+		continue;
+	    }
+	    //  Predict
+	    double nSteps = Math.max(1, (centres[t] - centres[t-1])/widths[t]);
+	    p += q*nSteps;
+	    if ( smooth ) {
+		predictedMeans[t] = x;
+		predictedVariances[t] = p;
+	    }
+	    //  Update
+	    if ( valid ) {
+		double r = errors[t]*errors[t];
+		double innovation = y[t] - x;
+		double s = p + r;
+		if ( s == 0 ) {
+		    //  Both the prediction and the measurement are exact (processRMS = 0 and a zero error, as for an
+		    //  empty bin of counts): the measurement is taken as the state, without an innovation
+		    x = y[t];
+		    p = 0;
+		    means[t] = x;
+		    variances[t] = p;
+		    continue;
+		}
+		double gain = p/s;
+		x += gain*innovation;
+		p *= (1 - gain);
+		double zt = innovation/Math.sqrt(s);
+		z[t] = zt;
+		nInnovations++;
+		chiSquare += zt*zt;
+		if ( Math.abs(zt) > maxAbsZ ) {
+		    maxAbsZ = Math.abs(zt);
+		    indexOfMax = t;
+		}
+	    }
+	    means[t] = x;
+	    variances[t] = p;
+	}
+
+	if ( smooth ) {
+	    //  Rauch-Tung-Striebel backward pass, from the last bin for which the filter is defined
+	    for ( int t=n-2; t >= 0; t-- ) {
+		if ( Double.isNaN(means[t]) || !(predictedVariances[t+1] > 0) ) continue;
+		double c = variances[t]/predictedVariances[t+1];
+		means[t] += c*(means[t+1] - predictedMeans[t+1]);
+		variances[t] += c*c*(variances[t+1] - predictedVariances[t+1]);
+	    }
+	    DoubleArrayPool.release(predictedMeans);
+	    DoubleArrayPool.release(predictedVariances);
+	}
+
+	//  The posterior variances become the squared errors of the output series, in place
+	for ( int t=0; t < n; t++ ) {
+	    variances[t] = Math.sqrt(variances[t]);
+	}
+	TimeSeries filtered = new TimeSeries(ts.tStart(), ts.internalBinEdges(), means, variances);
+	return new KalmanFilterResult(filtered, z, nInnovations, chiSquare, maxAbsZ, indexOfMax);
+    }
+
+}
@@ -0,0 +1,98 @@
+package gb.esac.timeseries;
+
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>BenchmarkArrayArithmetic</code> times the scalar and vector implementations of
+ * <code>IArrayArithmetic</code> on random arrays, and checks that they agree.
+ *
+ * Usage: java --add-modules jdk.incubator.vector gb.esac.timeseries.BenchmarkArrayArithmetic [nElements] [nRepeats]
+ *
+ */
+
+public class BenchmarkArrayArithmetic {
+
+    private static Logger logger  = Logger.getLogger(BenchmarkArrayArithmetic.class);
+
+    public static void main(String[] args) {
+
+	int n = 1000000;
+	int nRepeats = 200;
+	if ( args.length > 0 ) n = Integer.parseInt(args[0]);
+	if ( args.length > 1 ) nRepeats = Integer.parseInt(args[1]);
+
+	Random random = new Random(12345);
+	double[] r1 = new double[n];
+	double[] r2 = new double[n];
+	double[] e1 = new double[n];
+	double[] e2 = new double[n];
+	for ( int i=0; i < n; i++ ) {
+	    r1[i] = 10 + random.nextGaussian();
+	    r2[i] = 10 + random.nextGaussian();
+	    e1[i] = 0.5 + random.nextDouble();
+	    e2[i] = 0.5 + random.nextDouble();
+	}
+
+	IArrayArithmetic scalar = ArrayArithmetic.getScalar();
+	IArrayArithmetic vector = ArrayArithmetic.getVector();
+	if ( ! ArrayArithmetic.vectorIsAvailable() ) {
+	    logger.warn("Vector API is not available (run with --add-modules jdk.incubator.vector)");
+	}
+	logger.info("n = "+n+", nRepeats = "+nRepeats);
+
+	IArrayArithmetic[] impls = new IArrayArithmetic[] {scalar, vector};
+	double[][] means = new double[2][n];
+	double[][] errors = new double[2][n];
+	double[][] weighted = new double[2][];
+	for ( int k=0; k < impls.length; k++ ) {
+	    IArrayArithmetic a = impls[k];
+	    double[] out = new double[n];
+
+	    //  Warm up
+	    for ( int j=0; j < 20; j++ ) {
+		a.add(r1, r2, out, n);
+		a.scale(r1, 2.5, out, n);
+		a.quadratureSum(e1, e2, out, n);
+		a.inverseVarianceMean(r1, e1, r2, e2, means[k], errors[k], n);
+		a.weightedMean(r1, e1, n);
+	    }
+
+	    long t0 = System.nanoTime();
+	    for ( int j=0; j < nRepeats; j++ ) a.add(r1, r2, out, n);
+	    long t1 = System.nanoTime();
+	    for ( int j=0; j < nRepeats; j++ ) a.scale(r1, 2.5, out, n);
+	    long t2 = System.nanoTime();
+	    for ( int j=0; j < nRepeats; j++ ) a.quadratureSum(e1, e2, out, n);
+	    long t3 = System.nanoTime();
+	    for ( int j=0; j < nRepeats; j++ ) a.inverseVarianceMean(r1, e1, r2, e2, means[k], errors[k], n);
+	    long t4 = System.nanoTime();
+	    for ( int j=0; j < nRepeats; j++ ) weighted[k] = a.weightedMean(r1, e1, n);
+	    long t5 = System.nanoTime();
+
+	    logger.info(a.name()+":");
+	    logger.info("  add                 = "+msPerCall(t1-t0, nRepeats)+" ms");
+	    logger.info("  scale               = "+msPerCall(t2-t1, nRepeats)+" ms");
+	    logger.info("  quadratureSum       = "+msPerCall(t3-t2, nRepeats)+" ms");
+	    logger.info("  inverseVarianceMean = "+msPerCall(t4-t3, nRepeats)+" ms");
+	    logger.info("  weightedMean        = "+msPerCall(t5-t4, nRepeats)+" ms");
+	}
+
+	//  Check agreement
+	double maxDiff = 0;
+	for ( int i=0; i < n; i++ ) {
+	    maxDiff = Math.max(maxDiff, Math.abs(means[0][i] - means[1][i]));
+	    maxDiff = Math.max(maxDiff, Math.abs(errors[0][i] - errors[1][i]));
+	}
+	logger.info("Max difference in inverse-variance means and errors = "+maxDiff);
+	logger.info("Weighted means: scalar = "+weighted[0][0]+", vector = "+weighted[1][0]);
+    }
+
+    private static double msPerCall(long nanos, int nRepeats) {
+	return nanos/1e6/nRepeats;
+    }
+
+}
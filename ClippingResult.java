@@ -0,0 +1,33 @@
+package gb.esac.timeseries;
+
+import java.util.BitSet;
+
+
+/**
+ *
+ * The class <code>ClippingResult</code> holds the result of an outlier rejection by <code>TimeSeriesClipper</code>:
+ * the cleaned series, which has the same bins as the input with NaN in place of the outliers, and the flags of the
+ * bins rejected as outliers.
+ *
+ */
+
+public final class ClippingResult {
+
+    private final TimeSeries timeSeries;
+    private final BitSet outliers;
+    private final int nIterations;
+
+    ClippingResult(TimeSeries timeSeries, BitSet outliers, int nIterations) {
+	this.timeSeries = timeSeries;
+	this.outliers = outliers;
+	this.nIterations = nIterations;
+    }
+
+    public TimeSeries timeSeries() { return this.timeSeries; }
+    public BitSet getOutliers() { return (BitSet) this.outliers.clone(); }
+    public boolean isOutlier(int i) { return this.outliers.get(i); }
+    public int nOutliers() { return this.outliers.cardinality(); }
+    /** Number of passes over the data (1 for running clipping) */
+    public int nIterations() { return this.nIterations; }
+
+}
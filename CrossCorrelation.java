@@ -0,0 +1,47 @@
+package gb.esac.timeseries;
+
+import java.util.Arrays;
+
+
+/**
+ *
+ * The class <code>CrossCorrelation</code> holds the result of cross-correlating two time series with
+ * <code>TimeSeriesCrossCorrelator</code>: the correlation coefficient as a function of lag, the lag
+ * and value of the peak, and the bootstrapped uncertainty on the lag.
+ *
+ * A positive lag means that the second time series lags (is delayed with respect to) the first one.
+ * Like <code>TimeSeries</code>, instances are immutable and the getters return copies.
+ *
+ */
+
+public final class CrossCorrelation {
+
+    private final double binWidth;
+    private final double[] lags;
+    private final double[] correlations;
+    private final double lag;
+    private final double peakCorrelation;
+    private final double errorOnLag;
+    private final double[] bootstrapLags;
+
+    CrossCorrelation(double binWidth, double[] lags, double[] correlations, double lag, double peakCorrelation, double errorOnLag, double[] bootstrapLags) {
+	this.binWidth = binWidth;
+	this.lags = lags;
+	this.correlations = correlations;
+	this.lag = lag;
+	this.peakCorrelation = peakCorrelation;
+	this.errorOnLag = errorOnLag;
+	this.bootstrapLags = bootstrapLags;
+    }
+
+    public double binWidth() { return this.binWidth; }
+    public int nLags() { return this.lags.length; }
+    public double[] getLags() { return Arrays.copyOf(this.lags, this.lags.length); }
+    public double[] getCorrelations() { return Arrays.copyOf(this.correlations, this.correlations.length); }
+    public double lag() { return this.lag; }
+    public double peakCorrelation() { return this.peakCorrelation; }
+    public double errorOnLag() { return this.errorOnLag; }
+    public int nBootstraps() { return this.bootstrapLags.length; }
+    public double[] getBootstrapLags() { return Arrays.copyOf(this.bootstrapLags, this.bootstrapLags.length); }
+
+}
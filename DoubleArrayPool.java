@@ -0,0 +1,86 @@
+package gb.esac.timeseries;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+
+/**
+ *
+ * The class <code>DoubleArrayPool</code> is a per-thread pool of work arrays used by the spectral and
+ * resampling methods that process many segments of the same length. Each thread reuses its own arrays,
+ * so that no synchronisation is needed and no garbage is produced per segment.
+ *
+ * Arrays obtained with <code>acquire</code> have exactly the requested length, but their content is undefined.
+ * They must be returned with <code>release</code> by the same thread once they are no longer used.
+ *
+ * Each thread keeps at most <code>MAX_ARRAYS</code> free arrays holding at most <code>MAX_DOUBLES</code> values
+ * in total, whatever their lengths. When a released array does not fit, the least recently released arrays are
+ * dropped, so that callers that see a new length for every series (ragged series, variable grids) do not make the
+ * long-lived worker threads retain more and more memory.
+ *
+ */
+
+final class DoubleArrayPool {
+
+    //  Bounds on the free arrays kept by each thread: 16 arrays and 2^21 doubles (16 MB)
+    static final int MAX_ARRAYS = 16;
+    static final long MAX_DOUBLES = 1L << 21;
+
+    private static final ThreadLocal<Pool> pools = new ThreadLocal<Pool>() {
+	@Override
+	protected Pool initialValue() {
+	    return new Pool();
+	}
+    };
+
+    private DoubleArrayPool() {}
+
+    static double[] acquire(int length) {
+	double[] array = pools.get().take(length);
+	return array != null ? array : new double[length];
+    }
+
+    static void release(double[] array) {
+	pools.get().put(array);
+    }
+
+    /** Number of values held in the free arrays of the calling thread */
+    static long retainedDoubles() {
+	return pools.get().nDoubles;
+    }
+
+    /**
+     * Free arrays of one thread, the most recently released first.
+     */
+    private static final class Pool {
+
+	private final ArrayDeque<double[]> free = new ArrayDeque<double[]>();
+	private long nDoubles = 0;
+
+	double[] take(int length) {
+	    Iterator<double[]> it = free.iterator();
+	    while ( it.hasNext() ) {
+		double[] array = it.next();
+		if ( array.length == length ) {
+		    it.remove();
+		    nDoubles -= length;
+		    return array;
+		}
+	    }
+	    return null;
+	}
+
+	void put(double[] array) {
+	    if ( array.length > MAX_DOUBLES ) {
+		return;
+	    }
+	    free.addFirst(array);
+	    nDoubles += array.length;
+	    while ( free.size() > MAX_ARRAYS || nDoubles > MAX_DOUBLES ) {
+		nDoubles -= free.removeLast().length;
+	    }
+	}
+
+    }
+
+}
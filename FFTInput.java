@@ -0,0 +1,52 @@
+package gb.esac.timeseries;
+
+
+/**
+ *
+ * The class <code>FFTInput</code> holds a time series resampled onto a uniform grid of FFT length by
+ * <code>FFTResampler</code>: the rates, and alongside them the sampling mask, i.e. the fraction of each bin that is
+ * covered by data (1 for full bins, 0 in gaps, NaN bins and zero padding, where the rate is 0).
+ *
+ * To avoid copies, <code>values()</code> and <code>mask()</code> return the arrays themselves. When they come from
+ * the per-thread pool, <code>release()</code> returns them to it; they must not be used after that.
+ *
+ */
+
+public final class FFTInput {
+
+    private final double tStart;
+    private final double binWidth;
+    private final int size;
+    private final int nDataBins;
+    private double[] values;
+    private double[] mask;
+    private final boolean pooled;
+
+    FFTInput(double tStart, double binWidth, int size, int nDataBins, double[] values, double[] mask, boolean pooled) {
+	this.tStart = tStart;
+	this.binWidth = binWidth;
+	this.size = size;
+	this.nDataBins = nDataBins;
+	this.values = values;
+	this.mask = mask;
+	this.pooled = pooled;
+    }
+
+    public double tStart() { return this.tStart; }
+    public double binWidth() { return this.binWidth; }
+    public int size() { return this.size; }
+    /** Number of bins before the zero padding */
+    public int nDataBins() { return this.nDataBins; }
+    public double[] values() { return this.values; }
+    public double[] mask() { return this.mask; }
+
+    public void release() {
+	if ( this.pooled && this.values != null ) {
+	    DoubleArrayPool.release(this.values);
+	    DoubleArrayPool.release(this.mask);
+	}
+	this.values = null;
+	this.mask = null;
+    }
+
+}
@@ -0,0 +1,154 @@
+package gb.esac.timeseries;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ *
+ * The class <code>FFTPlan</code> holds the pre-computed twiddle factors and bit-reversal table
+ * for an in-place radix-2 complex FFT of a given power-of-two length.
+ *
+ * Plans are immutable and therefore thread-safe: a single plan is shared by all the threads that
+ * transform arrays of the same length. Plans are cached by length and obtained with <code>forSize(n)</code>.
+ *
+ */
+
+final class FFTPlan {
+
+    private static final ConcurrentHashMap<Integer, FFTPlan> plans = new ConcurrentHashMap<Integer, FFTPlan>();
+
+    private final int n;
+    private final int[] bitReversedIndex;
+    private final double[] cos;
+    private final double[] sin;
+
+    private FFTPlan(int n) {
+	this.n = n;
+	this.bitReversedIndex = new int[n];
+	int nBits = Integer.numberOfTrailingZeros(n);
+	for ( int i=0; i < n; i++ ) {
+	    this.bitReversedIndex[i] = nBits == 0 ? 0 : Integer.reverse(i) >>> (32 - nBits);
+	}
+	this.cos = new double[n/2];
+	this.sin = new double[n/2];
+	for ( int k=0; k < n/2; k++ ) {
+	    double theta = 2*Math.PI*k/n;
+	    this.cos[k] = Math.cos(theta);
+	    this.sin[k] = Math.sin(theta);
+	}
+    }
+
+    static FFTPlan forSize(int n) {
+	if ( !isPowerOfTwo(n) ) {
+	    throw new IllegalArgumentException("FFT length must be a power of 2 (n = "+n+")");
+	}
+	FFTPlan plan = plans.get(n);
+	if ( plan == null ) {
+	    plan = new FFTPlan(n);
+	    FFTPlan previous = plans.putIfAbsent(n, plan);
+	    if ( previous != null ) plan = previous;
+	}
+	return plan;
+    }
+
+    static boolean isPowerOfTwo(int n) {
+	return n > 0 && (n & (n-1)) == 0;
+    }
+
+    static int nextPowerOfTwo(int n) {
+	if ( n <= 1 ) return 1;
+	return Integer.highestOneBit(n-1) << 1;
+    }
+
+    int size() {
+	return this.n;
+    }
+
+    /**
+     * Forward transform X[k] = sum_j x[j] exp(-2 pi i jk/n), computed in place.
+     */
+    void forward(double[] re, double[] im) {
+	transform(re, im, false);
+    }
+
+    /**
+     * Backward transform x[j] = sum_k X[k] exp(+2 pi i jk/n), computed in place and NOT divided by n.
+     */
+    void backward(double[] re, double[] im) {
+	transform(re, im, true);
+    }
+
+    /**
+     * Forward transform of the n real values x, computed with a complex FFT of length n/2.
+     * The n/2+1 non-redundant coefficients X[0..n/2] are written into re and im, which must hold n/2+1 values.
+     */
+    void realForward(double[] x, double[] re, double[] im) {
+	if ( this.n < 2 ) {
+	    throw new IllegalArgumentException("Real FFT length must be at least 2");
+	}
+	int h = this.n/2;
+	if ( x.length < this.n || re.length < h+1 || im.length < h+1 ) {
+	    throw new IllegalArgumentException("Arrays are too short for a real FFT of length "+this.n);
+	}
+	//  Pack even and odd samples as real and imaginary parts
+	for ( int j=0; j < h; j++ ) {
+	    re[j] = x[2*j];
+	    im[j] = x[2*j+1];
+	}
+	FFTPlan.forSize(h).forward(re, im);
+	//  Separate the transforms of the even (E) and odd (O) samples, and combine them as X[k] = E[k] + W^k O[k]
+	double r0 = re[0];
+	double i0 = im[0];
+	re[0] = r0 + i0;
+	im[0] = 0;
+	re[h] = r0 - i0;
+	im[h] = 0;
+	for ( int k=1; k <= h/2; k++ ) {
+	    int m = h - k;
+	    double zr = re[k], zi = im[k];
+	    double cr = re[m], ci = -im[m];
+	    double er = 0.5*(zr + cr), ei = 0.5*(zi + ci);
+	    double or = 0.5*(zi - ci), oi = -0.5*(zr - cr);
+	    double c = this.cos[k], s = this.sin[k];
+	    double tr = or*c + oi*s;
+	    double ti = oi*c - or*s;
+	    re[k] = er + tr;
+	    im[k] = ei + ti;
+	    re[m] = er - tr;
+	    im[m] = ti - ei;
+	}
+    }
+
+    private void transform(double[] re, double[] im, boolean backward) {
+	if ( re.length < this.n || im.length < this.n ) {
+	    throw new IllegalArgumentException("Arrays are shorter than the FFT length ("+this.n+")");
+	}
+	for ( int i=0; i < this.n; i++ ) {
+	    int j = this.bitReversedIndex[i];
+	    if ( j > i ) {
+		double tmp = re[i]; re[i] = re[j]; re[j] = tmp;
+		tmp = im[i]; im[i] = im[j]; im[j] = tmp;
+	    }
+	}
+	double sign = backward ? 1 : -1;
+	for ( int size=2; size <= this.n; size <<= 1 ) {
+	    int half = size >> 1;
+	    int step = this.n/size;
+	    for ( int i=0; i < this.n; i += size ) {
+		for ( int j=0, k=0; j < half; j++, k += step ) {
+		    double wr = this.cos[k];
+		    double wi = sign*this.sin[k];
+		    int a = i + j;
+		    int b = a + half;
+		    double tr = re[b]*wr - im[b]*wi;
+		    double ti = re[b]*wi + im[b]*wr;
+		    re[b] = re[a] - tr;
+		    im[b] = im[a] - ti;
+		    re[a] += tr;
+		    im[a] += ti;
+		}
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,145 @@
+package gb.esac.timeseries;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>FFTResampler</code> prepares time series for FFTs. It resamples a series onto a uniform grid whose
+ * length is a power of two, or a 2^a*3^b*5^c number for mixed-radix FFTs, starting at tStart. With zero padding,
+ * the bin width of the series is kept and the grid is extended past the end of the data; without it, the whole
+ * duration is resampled onto the largest such number of bins that does not exceed the number of bins on the
+ * original grid.
+ *
+ * The rates are written straight into a caller-supplied or pooled array, with the exposure fraction of each bin in
+ * a mask array alongside. No intermediate TimeSeries is built.
+ *
+ */
+
+public final class FFTResampler {
+
+    private static Logger logger  = Logger.getLogger(FFTResampler.class);
+
+    private FFTResampler() {}
+
+    /**
+     * Returns the number of FFT bins for nBins bins of data: the smallest valid size not smaller than nBins with
+     * zero padding, and the largest valid size not larger than nBins without.
+     *
+     * @param nBins an <code>int</code> value
+     * @param powerOfTwo a <code>boolean</code> value: if false, 2^a*3^b*5^c sizes are allowed
+     * @param zeroPad a <code>boolean</code> value
+     * @return an <code>int</code> value
+     */
+    public static int fftSize(int nBins, boolean powerOfTwo, boolean zeroPad) {
+	if ( nBins < 1 ) {
+	    throw new IllegalArgumentException("nBins must be positive: nBins = "+nBins);
+	}
+	int n = nBins;
+	if ( zeroPad ) {
+	    while ( !isValidSize(n, powerOfTwo) ) n++;
+	}
+	else {
+	    while ( !isValidSize(n, powerOfTwo) ) n--;
+	}
+	return n;
+    }
+
+    public static FFTInput resample(TimeSeries ts, boolean powerOfTwo, boolean zeroPad) {
+	double binWidth = gridBinWidth(ts);
+	int nGridBins = nGridBins(ts, binWidth);
+	int size = fftSize(nGridBins, powerOfTwo, zeroPad);
+	if ( !zeroPad ) {
+	    binWidth = ts.duration()/size;
+	}
+	double[] values = DoubleArrayPool.acquire(size);
+	double[] mask = DoubleArrayPool.acquire(size);
+	int nDataBins = resampleInto(ts, binWidth, size, values, mask);
+	return new FFTInput(ts.tStart(), binWidth, size, nDataBins, values, mask, true);
+    }
+
+    /**
+     * Same as <code>resample(ts, powerOfTwo, zeroPad)</code>, but writing into the given arrays, whose length must
+     * be at least <code>fftSize</code> of the number of bins on the grid of the series.
+     */
+    public static FFTInput resample(TimeSeries ts, boolean powerOfTwo, boolean zeroPad, double[] values, double[] mask) {
+	double binWidth = gridBinWidth(ts);
+	int nGridBins = nGridBins(ts, binWidth);
+	int size = fftSize(nGridBins, powerOfTwo, zeroPad);
+	if ( !zeroPad ) {
+	    binWidth = ts.duration()/size;
+	}
+	int nDataBins = resampleInto(ts, binWidth, size, values, mask);
+	return new FFTInput(ts.tStart(), binWidth, size, nDataBins, values, mask, false);
+    }
+
+    /**
+     * Resamples the series onto <code>size</code> bins of width binWidth starting at tStart, writes the
+     * exposure-weighted rates in values and the exposure fractions in mask, and returns the number of bins that
+     * start before the end of the data. Bins without exposure, including the zero padding, are 0 with a mask of 0.
+     *
+     * @param ts a <code>TimeSeries</code> value
+     * @param binWidth a <code>double</code> value
+     * @param size an <code>int</code> value
+     * @param values a <code>double[]</code> value of length at least size
+     * @param mask a <code>double[]</code> value of length at least size
+     * @return an <code>int</code> value
+     */
+    public static int resampleInto(TimeSeries ts, double binWidth, int size, double[] values, double[] mask) {
+	if ( values.length < size || mask.length < size ) {
+	    throw new IllegalArgumentException("Arrays are shorter than the FFT size ("+size+")");
+	}
+	logger.info("Resampling TimeSeries onto "+size+" bins of width "+binWidth);
+	double[] oldBinEdges = ts.internalBinEdges();
+	int nOldBins = ts.nBins();
+	double end = ts.duration();
+	double[] gridBinEdges = DoubleArrayPool.acquire(2*size);
+	try {
+	    int nDataBins = 0;
+	    for ( int i=0; i < size; i++ ) {
+		gridBinEdges[2*i] = i*binWidth;
+		gridBinEdges[2*i+1] = (i+1)*binWidth;
+		if ( gridBinEdges[2*i] < end ) {
+		    nDataBins++;
+		}
+	    }
+	    //  The sweep leaves the exposure of each bin in mask, and NaN rates where it is 0
+	    TimeSeriesResampler.sweep(oldBinEdges, ts.internalRates(), null, nOldBins, gridBinEdges, 0, size, 0, values, null, mask);
+	    for ( int i=0; i < size; i++ ) {
+		if ( mask[i] > 0 ) {
+		    mask[i] = Math.min(1, mask[i]/binWidth);
+		}
+		else {
+		    values[i] = 0;
+		    mask[i] = 0;
+		}
+	    }
+	    return nDataBins;
+	}
+	finally {
+	    DoubleArrayPool.release(gridBinEdges);
+	}
+    }
+
+    static boolean isValidSize(int n, boolean powerOfTwo) {
+	if ( powerOfTwo ) {
+	    return FFTPlan.isPowerOfTwo(n);
+	}
+	int m = n;
+	for ( int p : new int[] {2, 3, 5} ) {
+	    while ( m % p == 0 ) m /= p;
+	}
+	return m == 1;
+    }
+
+    private static double gridBinWidth(TimeSeries ts) {
+	return ts.binWidthIsConstant() ? ts.internalBinWidths()[0] : ts.minBinWidth();
+    }
+
+    //  Number of bins of the given width needed to cover the duration, gaps included
+    private static int nGridBins(TimeSeries ts, double binWidth) {
+	double n = ts.duration()/binWidth;
+	return (int) Math.max(1, Math.ceil(n - 1e-6));
+    }
+
+}
@@ -0,0 +1,217 @@
+package gb.esac.timeseries;
+
+import java.util.stream.IntStream;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>FastLombScargle</code> computes the Lomb-Scargle periodogram of unevenly sampled and gapped
+ * time series such as <code>CodedMaskTimeSeries</code>, where FFT methods do not apply.
+ *
+ * The periodogram is the floating-mean, error-weighted form of Zechmeister and Kurster (2009, A&A 496, 577) evaluated on
+ * a regular frequency grid with the method of Press and Rybicki (1989, ApJ 338, 277): the trigonometric sums over the
+ * data are obtained by extirpolating the weighted data onto a regular grid and taking an FFT, so that the cost is
+ * O(N log N) instead of O(N*F). The frequency grid is divided into blocks of fixed size that are computed independently
+ * and in parallel, each with its own FFT grid; the result therefore does not depend on the number of threads.
+ *
+ * The data are the bin centres, rates and errors on rates; bins with NaN rates or non-positive errors are ignored.
+ *
+ */
+
+public final class FastLombScargle {
+
+    private static Logger logger  = Logger.getLogger(FastLombScargle.class);
+
+    private static final int FREQUENCIES_PER_BLOCK = 8192;
+    private static final int GRID_OVERSAMPLING = 5;
+    private static final int N_EXTIRPOLATION_POINTS = 4;
+
+    public static LombScarglePeriodogram makePeriodogram(ITimeSeries ts) throws TimeSeriesException {
+	int oversampling = 5;
+	double duration = ts.duration();
+	double fMin = 1/duration;
+	double fMax = 0.5/ts.minBinWidth();
+	return makePeriodogram(ts, fMin, fMax, 1/(oversampling*duration));
+    }
+
+    public static LombScarglePeriodogram makePeriodogram(ITimeSeries ts, double fMin, double fMax, int oversampling) throws TimeSeriesException {
+	return makePeriodogram(ts, fMin, fMax, 1/(oversampling*ts.duration()));
+    }
+
+    /**
+     * Compute the Lomb-Scargle periodogram on the frequencies fMin + k*df up to fMax.
+     *
+     * @param ts an <code>ITimeSeries</code> value
+     * @param fMin a <code>double</code> value: the first frequency (must be positive)
+     * @param fMax a <code>double</code> value: the maximum frequency
+     * @param df a <code>double</code> value: the frequency step
+     * @return a <code>LombScarglePeriodogram</code> value
+     * @exception TimeSeriesException if the frequency grid is invalid or there are fewer than 3 usable bins
+     */
+    public static LombScarglePeriodogram makePeriodogram(ITimeSeries ts, final double fMin, double fMax, final double df) throws TimeSeriesException {
+	logger.info("Making Lomb-Scargle periodogram from "+fMin+" to "+fMax+" Hz in steps of "+df+" Hz");
+	if ( fMin <= 0 || df <= 0 || fMax < fMin ) {
+	    throw new TimeSeriesException("Frequency grid must have 0 < fMin <= fMax and df > 0");
+	}
+	//  Select the usable data and define normalised weights
+	double[] binCentres = ts.getBinCentres();
+	double[] rates = ts.getRates();
+	double[] errors = ts.getErrorsOnRates();
+	int nBins = ts.nBins();
+	double[] times = new double[nBins];
+	double[] values = new double[nBins];
+	double[] weights = new double[nBins];
+	int n = 0;
+	double sumOfWeights = 0;
+	for ( int i=0; i < nBins; i++ ) {
+	    if ( !Double.isNaN(rates[i]) && errors[i] > 0 ) {
+		times[n] = binCentres[i];
+		values[n] = rates[i];
+		weights[n] = 1/(errors[i]*errors[i]);
+		sumOfWeights += weights[n];
+		n++;
+	    }
+	}
+	if ( n < 3 ) {
+	    throw new TimeSeriesException("There are fewer than 3 bins with defined rates and errors");
+	}
+	if ( n < nBins ) {
+	    logger.warn("  Ignoring "+(nBins - n)+" bins with NaN rate or undefined error");
+	}
+	double weightedMean = 0;
+	for ( int i=0; i < n; i++ ) {
+	    weights[i] /= sumOfWeights;
+	    weightedMean += weights[i]*values[i];
+	}
+	final double[] t = times;
+	final double[] w = weights;
+	final double[] wy = new double[n];
+	double yy = 0;
+	for ( int i=0; i < n; i++ ) {
+	    double y = values[i] - weightedMean;
+	    wy[i] = w[i]*y;
+	    yy += w[i]*y*y;
+	}
+	final double weightedSumOfSquares = yy;
+	final int nData = n;
+
+	//  Compute the blocks of frequencies in parallel
+	final int nFreqs = (int) Math.floor((fMax - fMin)/df + 1e-9) + 1;
+	int nBlocks = (nFreqs + FREQUENCIES_PER_BLOCK - 1)/FREQUENCIES_PER_BLOCK;
+	logger.info("  Using "+nData+" data points, "+nFreqs+" frequencies in "+nBlocks+" blocks");
+	final double[] frequencies = new double[nFreqs];
+	final double[] powers = new double[nFreqs];
+	IntStream.range(0, nBlocks).parallel().forEach(b -> {
+	    int first = b*FREQUENCIES_PER_BLOCK;
+	    int nInBlock = Math.min(FREQUENCIES_PER_BLOCK, nFreqs - first);
+	    computeBlock(t, w, wy, nData, weightedSumOfSquares, fMin + first*df, df, nInBlock, frequencies, powers, first);
+	});
+	return new LombScarglePeriodogram(frequencies, powers, nData);
+    }
+
+    private static void computeBlock(double[] t, double[] w, double[] wy, int n, double yy, double f0, double df, int nFreqs, double[] frequencies, double[] powers, int offset) {
+	double[] sh = new double[nFreqs];
+	double[] ch = new double[nFreqs];
+	double[] s2 = new double[nFreqs];
+	double[] c2 = new double[nFreqs];
+	double[] s = new double[nFreqs];
+	double[] c = new double[nFreqs];
+	trigSum(t, wy, n, f0, df, nFreqs, 1, sh, ch);
+	trigSum(t, w, n, f0, df, nFreqs, 2, s2, c2);
+	trigSum(t, w, n, f0, df, nFreqs, 1, s, c);
+	for ( int j=0; j < nFreqs; j++ ) {
+	    //  Time shift tau from tan(2 omega tau), using trigonometric identities rather than atan
+	    double tan2wt = (s2[j] - 2*s[j]*c[j])/(c2[j] - (c[j]*c[j] - s[j]*s[j]));
+	    double norm = Math.sqrt(1 + tan2wt*tan2wt);
+	    double s2w = tan2wt/norm;
+	    double c2w = 1/norm;
+	    double cw = Math.sqrt(0.5*(1 + c2w));
+	    double sw = Math.signum(s2w)*Math.sqrt(0.5*(1 - c2w));
+	    double yc = ch[j]*cw + sh[j]*sw;
+	    double ys = sh[j]*cw - ch[j]*sw;
+	    double cAtTau = c[j]*cw + s[j]*sw;
+	    double sAtTau = s[j]*cw - c[j]*sw;
+	    double cc = 0.5*(1 + c2[j]*c2w + s2[j]*s2w) - cAtTau*cAtTau;
+	    double ss = 0.5*(1 - c2[j]*c2w - s2[j]*s2w) - sAtTau*sAtTau;
+	    frequencies[offset+j] = f0 + j*df;
+	    powers[offset+j] = (yc*yc/cc + ys*ys/ss)/yy;
+	}
+    }
+
+    /**
+     * Computes S[j] = sum_i h_i sin(2 pi f_j t_i) and C[j] = sum_i h_i cos(2 pi f_j t_i) for f_j = factor*(f0 + j*df),
+     * by extirpolating h onto a regular grid and taking a backward FFT.
+     */
+    static void trigSum(double[] t, double[] h, int n, double f0, double df, int nFreqs, int factor, double[] sinSums, double[] cosSums) {
+	f0 *= factor;
+	df *= factor;
+	int nGrid = FFTPlan.nextPowerOfTwo(nFreqs*GRID_OVERSAMPLING);
+	double[] gridRe = new double[nGrid];
+	double[] gridIm = new double[nGrid];
+	double t0 = t[0];
+	for ( int i=0; i < n; i++ ) {
+	    double dt = t[i] - t0;
+	    double hr = h[i];
+	    double hi = 0;
+	    if ( f0 != 0 ) {
+		//  Shift the frequencies of this block down to 0
+		double phase = 2*Math.PI*((f0*dt) % 1.0);
+		hr = h[i]*Math.cos(phase);
+		hi = h[i]*Math.sin(phase);
+	    }
+	    double x = (dt*nGrid*df) % nGrid;
+	    extirpolate(x, hr, hi, gridRe, gridIm, nGrid, N_EXTIRPOLATION_POINTS);
+	}
+	FFTPlan.forSize(nGrid).backward(gridRe, gridIm);
+	for ( int j=0; j < nFreqs; j++ ) {
+	    double re = gridRe[j];
+	    double im = gridIm[j];
+	    if ( t0 != 0 ) {
+		//  Restore the phase of the time origin
+		double phase = 2*Math.PI*(((f0 + j*df)*t0) % 1.0);
+		double cos = Math.cos(phase);
+		double sin = Math.sin(phase);
+		double tmp = re*cos - im*sin;
+		im = re*sin + im*cos;
+		re = tmp;
+	    }
+	    cosSums[j] = re;
+	    sinSums[j] = im;
+	}
+    }
+
+    /**
+     * Adds the complex value (yr, yi) at the non-integer position x of the grid, spread over m grid points
+     * with Lagrange weights such that interpolating the grid back at x recovers the value (Press and Rybicki 1989).
+     */
+    static void extirpolate(double x, double yr, double yi, double[] re, double[] im, int nGrid, int m) {
+	int ix = (int) x;
+	if ( x == ix ) {
+	    re[ix] += yr;
+	    im[ix] += yi;
+	    return;
+	}
+	//  Centre the stencil on x: for x in (k, k+1) and m = 4, the points k-1 to k+2
+	int ilo = Math.min(Math.max((int) Math.floor(x - m/2) + 1, 0), nGrid - m);
+	double product = 1;
+	for ( int j=0; j < m; j++ ) {
+	    product *= x - ilo - j;
+	}
+	double denominator = 1;
+	for ( int j=2; j < m; j++ ) {
+	    denominator *= j;
+	}
+	for ( int j=0; j < m; j++ ) {
+	    if ( j > 0 ) {
+		denominator *= (double) j/(j - m);
+	    }
+	    int index = ilo + (m - 1 - j);
+	    double weight = product/(denominator*(x - index));
+	    re[index] += yr*weight;
+	    im[index] += yi*weight;
+	}
+    }
+
+}
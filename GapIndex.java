@@ -0,0 +1,54 @@
+package gb.esac.timeseries;
+
+
+/**
+ *
+ * The class <code>GapIndex</code> lists the real gaps of a time series, that is, the spaces between consecutive bins
+ * that are longer than the rounding error on the edges. For each gap it holds its start (right edge of the bin before
+ * it), its stop (left edge of the bin after it), and the index of the bin after it. Times are relative to tStart.
+ *
+ * It is built once when the bin edges are set, and lets gap-related operations run in a single pass over the bins
+ * instead of comparing every bin with every space between bins.
+ *
+ */
+
+final class GapIndex {
+
+    private final int nGaps;
+    private final double[] starts;
+    private final double[] stops;
+    private final int[] binIndexes;
+
+    GapIndex(double[] binEdges, int nBins) {
+	int n = 0;
+	for ( int i=1; i < nBins; i++ ) {
+	    if ( isGap(binEdges, i) ) n++;
+	}
+	this.nGaps = n;
+	this.starts = new double[n];
+	this.stops = new double[n];
+	this.binIndexes = new int[n];
+	int k = 0;
+	for ( int i=1; i < nBins && k < n; i++ ) {
+	    if ( isGap(binEdges, i) ) {
+		this.starts[k] = binEdges[2*i-1];
+		this.stops[k] = binEdges[2*i];
+		this.binIndexes[k] = i;
+		k++;
+	    }
+	}
+    }
+
+    //  Same criterion as in AbstractTimeSeries.setBinEdges
+    static boolean isGap(double[] binEdges, int i) {
+	return binEdges[2*i] - binEdges[2*i-1] > Math.ulp(2*binEdges[2*i]);
+    }
+
+    int nGaps() { return this.nGaps; }
+    double start(int k) { return this.starts[k]; }
+    double stop(int k) { return this.stops[k]; }
+    double length(int k) { return this.stops[k] - this.starts[k]; }
+    /** Index of the first bin after gap k */
+    int binIndex(int k) { return this.binIndexes[k]; }
+
+}
@@ -0,0 +1,35 @@
+package gb.esac.timeseries;
+
+
+/**
+ *
+ * This interface defines the element-wise kernels used for time series arithmetic and error propagation.
+ * All methods operate on the first n elements of the arrays and write into the output arrays, which may be
+ * the same as the input arrays. Implementations are stateless and thread-safe.
+ *
+ * The implementation in use is selected with <code>ArrayArithmetic</code>.
+ *
+ */
+
+public interface IArrayArithmetic {
+
+    public String name();
+
+    // Element-wise operations between two arrays
+    public void add(double[] a, double[] b, double[] out, int n);
+    public void subtract(double[] a, double[] b, double[] out, int n);
+    public void multiply(double[] a, double[] b, double[] out, int n);
+    public void divide(double[] a, double[] b, double[] out, int n);
+
+    // Operations with a constant
+    public void scale(double[] a, double factor, double[] out, int n);
+    public void addOffset(double[] a, double offset, double[] out, int n);
+
+    // Error propagation
+    public void quadratureSum(double[] e1, double[] e2, double[] out, int n);
+    public void inverseVarianceMean(double[] r1, double[] e1, double[] r2, double[] e2, double[] meanOut, double[] errorOut, int n);
+
+    // Reduction: returns {weighted mean, error on weighted mean} with weights 1/error^2
+    public double[] weightedMean(double[] values, double[] errors, int n);
+
+}
@@ -0,0 +1,15 @@
+package gb.esac.timeseries;
+
+
+/**
+ *
+ * The interface <code>IBinConsumer</code> receives bins one at a time, for example from a
+ * <code>StreamingMinSignifRebinner</code>.
+ *
+ */
+
+public interface IBinConsumer {
+
+    void accept(double leftEdge, double rightEdge, double rate, double error);
+
+}
@@ -0,0 +1,16 @@
+package gb.esac.timeseries;
+
+
+/**
+ *
+ * The interface <code>ILightCurveConsumer</code> receives the realisations produced by a
+ * <code>LightCurveSimulator</code> as they are generated. Realisations arrive from several threads and in no
+ * particular order, so implementations must be thread-safe.
+ *
+ */
+
+public interface ILightCurveConsumer {
+
+    void accept(int realisation, TimeSeries lc);
+
+}
@@ -0,0 +1,16 @@
+package gb.esac.timeseries;
+
+
+/**
+ *
+ * The interface <code>IPowerSpectrumModel</code> describes a one-sided power spectral density P(f), in units of
+ * rate^2/Hz, such that the variance of the rate is the integral of P(f) over f > 0. It is used by
+ * <code>LightCurveSimulator</code>.
+ *
+ */
+
+public interface IPowerSpectrumModel {
+
+    double power(double frequency);
+
+}
@@ -80,6 +80,7 @@ public interface ITimeSeries {
     public int nSamplingFunctionBins();
     public double[] getSamplingFunctionValues();
     public double[] getSamplingFunctionBinEdges();
+    public SamplingFunction getSamplingFunction();
     
     //  About Intensities
     public double[] getBinHeights();
@@ -0,0 +1,46 @@
+package gb.esac.timeseries;
+
+import java.util.Arrays;
+
+
+/**
+ *
+ * The class <code>KalmanFilterResult</code> holds the result of filtering (or smoothing) a time series with
+ * <code>BatchKalmanFilter</code>: the filtered series, whose rates and errors are the posterior means and standard
+ * deviations of the level, and the statistics of the normalised innovations z = (y - prediction)/sqrt(S), which are
+ * N(0,1) when the model describes the data. Large |z| flag anomalies such as flares.
+ *
+ * The innovations are those of the forward filter, also when the series was smoothed. They are NaN for NaN bins,
+ * for the first valid bin, which initialises the filter, and for bins where both the prediction and the measurement
+ * have zero variance.
+ *
+ */
+
+public final class KalmanFilterResult {
+
+    private final TimeSeries timeSeries;
+    private final double[] normalisedInnovations;
+    private final int nInnovations;
+    private final double chiSquare;
+    private final double maxAbsNormalisedInnovation;
+    private final int indexOfMaxInnovation;
+
+    KalmanFilterResult(TimeSeries timeSeries, double[] normalisedInnovations, int nInnovations, double chiSquare, double maxAbsNormalisedInnovation, int indexOfMaxInnovation) {
+	this.timeSeries = timeSeries;
+	this.normalisedInnovations = normalisedInnovations;
+	this.nInnovations = nInnovations;
+	this.chiSquare = chiSquare;
+	this.maxAbsNormalisedInnovation = maxAbsNormalisedInnovation;
+	this.indexOfMaxInnovation = indexOfMaxInnovation;
+    }
+
+    public TimeSeries timeSeries() { return this.timeSeries; }
+    public double[] getNormalisedInnovations() { return Arrays.copyOf(this.normalisedInnovations, this.normalisedInnovations.length); }
+    public int nInnovations() { return this.nInnovations; }
+    public double chiSquare() { return this.chiSquare; }
+    public double reducedChiSquare() { return this.chiSquare/this.nInnovations; }
+    public double maxAbsNormalisedInnovation() { return this.maxAbsNormalisedInnovation; }
+    /** Bin index of the largest |z|, or -1 if there are no innovations */
+    public int indexOfMaxInnovation() { return this.indexOfMaxInnovation; }
+
+}
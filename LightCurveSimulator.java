@@ -0,0 +1,191 @@
+package gb.esac.timeseries;
+
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>LightCurveSimulator</code> generates red-noise light curves from a power spectrum model with the
+ * method of Timmer and Koenig (1995), sampled like a template time series.
+ *
+ * Each realisation draws Gaussian Fourier amplitudes of variance P(f)df on a uniform fine grid, which is longer than
+ * the template by an extension factor so that power below 1/duration leaks into the simulated segment as it does in
+ * real data. The inverse FFT gives the rate fluctuations around the mean rate, which are then averaged over the bins
+ * of the template, so that the realisation has exactly its bin edges and gaps. Bins whose rate is NaN in the template
+ * are NaN in every realisation. Optionally, the counts in each bin are then drawn from a Poisson distribution.
+ *
+ * The amplitudes of the model are computed once. Realisation r is generated from a random generator derived from
+ * the seed and r alone, so it is the same whatever the number of threads or realisations. Many realisations are
+ * handed to an <code>ILightCurveConsumer</code> as they are generated, and never held in memory together.
+ *
+ */
+
+public final class LightCurveSimulator {
+
+    private static Logger logger  = Logger.getLogger(LightCurveSimulator.class);
+
+    private static final double DEFAULT_EXTENSION = 2;
+
+    private final double tStart;
+    private final double[] binEdges;
+    private final ValidityMask validity;
+    private final int nBins;
+    private final double meanRate;
+    private final double gridBinWidth;
+    private final int nGridBins;
+    private final int nUsedGridBins;
+    private final double[] amplitudes;
+
+    /**
+     * Uses a grid whose bin width is the smallest bin width of the template, twice as long as the template.
+     *
+     * @param model an <code>IPowerSpectrumModel</code> value
+     * @param template a <code>TimeSeries</code> value
+     * @param meanRate a <code>double</code> value
+     */
+    public LightCurveSimulator(IPowerSpectrumModel model, TimeSeries template, double meanRate) {
+	this(model, template, meanRate, template.minBinWidth(), DEFAULT_EXTENSION);
+    }
+
+    /**
+     * @param model an <code>IPowerSpectrumModel</code> value
+     * @param template a <code>TimeSeries</code> value
+     * @param meanRate a <code>double</code> value
+     * @param gridBinWidth a <code>double</code> value: the bin width of the simulation grid
+     * @param extension a <code>double</code> value: the length of the grid relative to the template, at least 1
+     */
+    public LightCurveSimulator(IPowerSpectrumModel model, TimeSeries template, double meanRate, double gridBinWidth, double extension) {
+	if ( !(gridBinWidth > 0) ) {
+	    throw new IllegalArgumentException("Grid bin width must be positive: gridBinWidth = "+gridBinWidth);
+	}
+	if ( !(extension >= 1) ) {
+	    throw new IllegalArgumentException("Extension factor must be at least 1: extension = "+extension);
+	}
+	this.tStart = template.tStart();
+	this.nBins = template.nBins();
+	this.binEdges = template.internalBinEdges().clone();
+	this.validity = template.validity();
+	this.meanRate = meanRate;
+	this.gridBinWidth = gridBinWidth;
+	double span = binEdges[2*nBins-1] - binEdges[0];
+	this.nUsedGridBins = Math.max(1, (int) Math.ceil(span/gridBinWidth));
+	this.nGridBins = Math.max(2, FFTPlan.nextPowerOfTwo((int) Math.ceil(nUsedGridBins*extension)));
+	logger.info("Simulation grid: "+nGridBins+" bins of "+gridBinWidth+" s ("+nUsedGridBins+" used)");
+
+	//  Standard deviations of the real and imaginary parts of the Fourier amplitudes
+	int h = nGridBins/2;
+	double df = 1/(nGridBins*gridBinWidth);
+	this.amplitudes = new double[h+1];
+	for ( int k=1; k <= h; k++ ) {
+	    double power = model.power(k*df);
+	    if ( !(power >= 0) || Double.isInfinite(power) ) {
+		throw new IllegalArgumentException("Power spectrum model must be finite and positive: P("+(k*df)+") = "+power);
+	    }
+	    //  Each pair of conjugate terms carries a variance of 4*sigma^2 = P(f)df; the Nyquist term is real
+	    this.amplitudes[k] = k < h ? Math.sqrt(power*df)/2 : Math.sqrt(power*df/2);
+	}
+    }
+
+    public double gridBinWidth() { return this.gridBinWidth; }
+    public int nGridBins() { return this.nGridBins; }
+
+    /**
+     * Generates realisation number r for the given seed.
+     *
+     * @param seed a <code>long</code> value
+     * @param realisation an <code>int</code> value
+     * @param poisson a <code>boolean</code> value: if true, counts are drawn from a Poisson distribution
+     * @return a <code>TimeSeries</code> value
+     */
+    public TimeSeries simulate(long seed, int realisation, boolean poisson) {
+	SplittableRandom random = RandomNumbers.forIndex(seed, realisation);
+	int n = nGridBins;
+	int h = n/2;
+	double[] re = DoubleArrayPool.acquire(n);
+	double[] im = DoubleArrayPool.acquire(n);
+	double[] cumCounts = DoubleArrayPool.acquire(nUsedGridBins+1);
+	try {
+	    //  Hermitian spectrum, so that the inverse transform is real
+	    re[0] = 0;
+	    im[0] = 0;
+	    for ( int k=1; k < h; k++ ) {
+		double a = amplitudes[k]*RandomNumbers.nextGaussian(random);
+		double b = amplitudes[k]*RandomNumbers.nextGaussian(random);
+		re[k] = a;
+		im[k] = b;
+		re[n-k] = a;
+		im[n-k] = -b;
+	    }
+	    re[h] = amplitudes[h]*RandomNumbers.nextGaussian(random);
+	    im[h] = 0;
+	    FFTPlan.forSize(n).backward(re, im);
+
+	    //  Average the rate over the template bins through the cumulative counts on the grid
+	    cumCounts[0] = 0;
+	    for ( int j=0; j < nUsedGridBins; j++ ) {
+		cumCounts[j+1] = cumCounts[j] + (meanRate + re[j])*gridBinWidth;
+	    }
+	    double[] rates = new double[nBins];
+	    for ( int i=0; i < nBins; i++ ) {
+		if ( validity.isValid(i) ) {
+		    double a = binEdges[2*i] - binEdges[0];
+		    double b = binEdges[2*i+1] - binEdges[0];
+		    rates[i] = (countsBefore(cumCounts, b) - countsBefore(cumCounts, a))/(b - a);
+		}
+		else {
+		    rates[i] = Double.NaN;
+		}
+	    }
+	    return makeTimeSeries(rates, poisson, random);
+	}
+	finally {
+	    DoubleArrayPool.release(re);
+	    DoubleArrayPool.release(im);
+	    DoubleArrayPool.release(cumCounts);
+	}
+    }
+
+    /**
+     * Generates realisations 0 to nRealisations-1 in parallel and hands each one to the consumer as soon as it is
+     * generated. The consumer is called from several threads.
+     *
+     * @param nRealisations an <code>int</code> value
+     * @param seed a <code>long</code> value
+     * @param poisson a <code>boolean</code> value
+     * @param consumer an <code>ILightCurveConsumer</code> value
+     */
+    public void simulate(int nRealisations, final long seed, final boolean poisson, final ILightCurveConsumer consumer) {
+	logger.info("Simulating "+nRealisations+" light curves (seed = "+seed+", poisson = "+poisson+")");
+	IntStream.range(0, nRealisations).parallel().forEach(r ->
+		consumer.accept(r, simulate(seed, r, poisson))
+	);
+    }
+
+    //  Counts from the start of the grid to time t, interpolated linearly within a grid bin
+    private double countsBefore(double[] cumCounts, double t) {
+	double x = Math.min(nUsedGridBins, Math.max(0, t/gridBinWidth));
+	int j = Math.min((int) x, nUsedGridBins-1);
+	return cumCounts[j] + (x - j)*(cumCounts[j+1] - cumCounts[j]);
+    }
+
+    private TimeSeries makeTimeSeries(double[] rates, boolean poisson, SplittableRandom random) {
+	if ( poisson ) {
+	    double[] counts = new double[nBins];
+	    for ( int i=0; i < nBins; i++ ) {
+		double width = binEdges[2*i+1] - binEdges[2*i];
+		counts[i] = validity.isValid(i) ? RandomNumbers.nextPoisson(random, rates[i]*width) : Double.NaN;
+	    }
+	    return new TimeSeries(tStart, binEdges, counts);
+	}
+	//  Without Poisson noise, the errors are those expected from the counting statistics
+	double[] errors = new double[nBins];
+	for ( int i=0; i < nBins; i++ ) {
+	    double width = binEdges[2*i+1] - binEdges[2*i];
+	    errors[i] = validity.isValid(i) ? Math.sqrt(Math.max(0, rates[i])*width)/width : Double.NaN;
+	}
+	return new TimeSeries(tStart, binEdges, rates, errors);
+    }
+
+}
@@ -0,0 +1,47 @@
+package gb.esac.timeseries;
+
+import java.util.Arrays;
+
+
+/**
+ *
+ * The class <code>LombScarglePeriodogram</code> holds a Lomb-Scargle periodogram computed by
+ * <code>FastLombScargle</code>. Powers are in the standard normalisation: the fractional reduction of the
+ * weighted chi-square obtained by fitting a sinusoid plus a constant at each frequency, between 0 and 1.
+ *
+ */
+
+public final class LombScarglePeriodogram {
+
+    private final double[] frequencies;
+    private final double[] powers;
+    private final int nDataPoints;
+
+    LombScarglePeriodogram(double[] frequencies, double[] powers, int nDataPoints) {
+	this.frequencies = frequencies;
+	this.powers = powers;
+	this.nDataPoints = nDataPoints;
+    }
+
+    public int nFrequencies() { return this.frequencies.length; }
+    public double[] getFrequencies() { return Arrays.copyOf(this.frequencies, this.frequencies.length); }
+    public double[] getPowers() { return Arrays.copyOf(this.powers, this.powers.length); }
+    public int nDataPoints() { return this.nDataPoints; }
+
+    public double frequencyAtMaxPower() {
+	int iMax = 0;
+	for ( int i=1; i < this.powers.length; i++ ) {
+	    if ( this.powers[i] > this.powers[iMax] ) iMax = i;
+	}
+	return this.frequencies[iMax];
+    }
+
+    public double maxPower() {
+	double max = -Double.MAX_VALUE;
+	for ( int i=0; i < this.powers.length; i++ ) {
+	    max = Math.max(max, this.powers[i]);
+	}
+	return max;
+    }
+
+}
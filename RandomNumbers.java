@@ -0,0 +1,105 @@
+package gb.esac.timeseries;
+
+import cern.jet.stat.Gamma;
+import java.util.SplittableRandom;
+
+
+/**
+ *
+ * The class <code>RandomNumbers</code> gathers the random deviates used by the simulation and bootstrap
+ * methods of this package. All methods draw from a <code>SplittableRandom</code> so that parallel work
+ * can be made reproducible by handing each task its own generator.
+ *
+ */
+
+final class RandomNumbers {
+
+    private RandomNumbers() {}
+
+    /**
+     * Returns <code>n</code> independent generators derived in sequence from <code>seed</code>.
+     * The i-th generator is the same whatever the number of threads that later use them.
+     */
+    static SplittableRandom[] split(long seed, int n) {
+	SplittableRandom root = new SplittableRandom(seed);
+	SplittableRandom[] generators = new SplittableRandom[n];
+	for ( int i=0; i < n; i++ ) {
+	    generators[i] = root.split();
+	}
+	return generators;
+    }
+
+    /**
+     * Returns the generator of the given index for the given seed, computed directly from both, so that any
+     * realisation of a simulation can be reproduced on its own.
+     */
+    static SplittableRandom forIndex(long seed, long index) {
+	long z = seed + (index + 1)*0x9e3779b97f4a7c15L;
+	z = (z ^ (z >>> 30))*0xbf58476d1ce4e5b9L;
+	z = (z ^ (z >>> 27))*0x94d049bb133111ebL;
+	return new SplittableRandom(z ^ (z >>> 31)).split();
+    }
+
+    /**
+     * Standard normal deviate using the Marsaglia polar method.
+     */
+    static double nextGaussian(SplittableRandom random) {
+	double u, v, s;
+	do {
+	    u = 2*random.nextDouble() - 1;
+	    v = 2*random.nextDouble() - 1;
+	    s = u*u + v*v;
+	}
+	while ( s >= 1 || s == 0 );
+	return u*Math.sqrt(-2*Math.log(s)/s);
+    }
+
+    /**
+     * Exponential deviate of unit mean.
+     */
+    static double nextExponential(SplittableRandom random) {
+	return -Math.log(1 - random.nextDouble());
+    }
+
+    /**
+     * Poisson deviate of the given mean: Knuth's multiplication method for small means, and the
+     * transformed rejection with squeeze (PTRS) of Hormann (1993) for means of 10 or more.
+     */
+    static long nextPoisson(SplittableRandom random, double mean) {
+	if ( !(mean > 0) ) {
+	    return 0;
+	}
+	if ( mean < 10 ) {
+	    double limit = Math.exp(-mean);
+	    double product = random.nextDouble();
+	    long k = 0;
+	    while ( product > limit ) {
+		product *= random.nextDouble();
+		k++;
+	    }
+	    return k;
+	}
+	double sqrtMean = Math.sqrt(mean);
+	double logMean = Math.log(mean);
+	double b = 0.931 + 2.53*sqrtMean;
+	double a = -0.059 + 0.02483*b;
+	double logInverseAlpha = Math.log(1.1239 + 1.1328/(b - 3.4));
+	double vr = 0.9277 - 3.6224/(b - 2);
+	while ( true ) {
+	    double u = random.nextDouble() - 0.5;
+	    double v = random.nextDouble();
+	    double us = 0.5 - Math.abs(u);
+	    long k = (long) Math.floor((2*a/us + b)*u + mean + 0.43);
+	    if ( us >= 0.07 && v <= vr ) {
+		return k;
+	    }
+	    if ( k < 0 || (us < 0.013 && v > us) ) {
+		continue;
+	    }
+	    if ( Math.log(v) + logInverseAlpha - Math.log(a/(us*us) + b) <= -mean + k*logMean - Gamma.logGamma(k+1) ) {
+		return k;
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,156 @@
+package gb.esac.timeseries;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ *
+ * The class <code>ResampledSeriesCache</code> is a least-recently-used cache of resampled time series, bounded by
+ * an estimate of the memory they occupy. Entries are keyed by the identity of the input series (held weakly, so
+ * caching never keeps a series alive), its modification count, and the target grid: either a bin width or a copy
+ * of the new bin edges.
+ *
+ * The cached series are returned as is, and so are shared between callers.
+ *
+ */
+
+final class ResampledSeriesCache {
+
+    //  A TimeSeries holds about 14 arrays of nBins doubles (edges, centres, widths, heights, rates, errors, ...)
+    private static final int BYTES_PER_BIN = 14*8;
+
+    private final long maxBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private final LinkedHashMap<Key, TimeSeries> entries = new LinkedHashMap<Key, TimeSeries>(16, 0.75f, true);
+    private final ReferenceQueue<TimeSeries> collected = new ReferenceQueue<TimeSeries>();
+
+    ResampledSeriesCache(long maxBytes) {
+	if ( maxBytes <= 0 ) {
+	    throw new IllegalArgumentException("Cache size must be positive: maxBytes = "+maxBytes);
+	}
+	this.maxBytes = maxBytes;
+    }
+
+    synchronized TimeSeries get(TimeSeries lc, double binWidth) {
+	return get(new Key(lc, binWidth, null, null));
+    }
+
+    synchronized TimeSeries get(TimeSeries lc, double[] newBinEdges) {
+	return get(new Key(lc, Double.NaN, newBinEdges, null));
+    }
+
+    synchronized void put(TimeSeries lc, double binWidth, TimeSeries resampled) {
+	put(new Key(lc, binWidth, null, collected), resampled);
+    }
+
+    synchronized void put(TimeSeries lc, double[] newBinEdges, TimeSeries resampled) {
+	put(new Key(lc, Double.NaN, newBinEdges.clone(), collected), resampled);
+    }
+
+    synchronized void clear() {
+	entries.clear();
+	bytes = 0;
+    }
+
+    synchronized long hits() { return this.hits; }
+    synchronized long misses() { return this.misses; }
+    synchronized long bytes() { return this.bytes; }
+    synchronized int size() { return this.entries.size(); }
+    long maxBytes() { return this.maxBytes; }
+
+    private TimeSeries get(Key key) {
+	removeCollected();
+	TimeSeries ts = entries.get(key);
+	if ( ts == null ) {
+	    misses++;
+	}
+	else {
+	    hits++;
+	}
+	return ts;
+    }
+
+    private void put(Key key, TimeSeries resampled) {
+	removeCollected();
+	long size = key.bytes() + (long) resampled.nBins()*BYTES_PER_BIN;
+	if ( size > maxBytes ) {
+	    return;
+	}
+	key.size = size;
+	TimeSeries previous = entries.put(key, resampled);
+	if ( previous == null ) {
+	    bytes += size;
+	}
+	Iterator<Map.Entry<Key, TimeSeries>> it = entries.entrySet().iterator();
+	while ( bytes > maxBytes && it.hasNext() ) {
+	    Key eldest = it.next().getKey();
+	    it.remove();
+	    bytes -= eldest.size;
+	}
+    }
+
+    private void removeCollected() {
+	SeriesReference ref;
+	while ( (ref = (SeriesReference) collected.poll()) != null ) {
+	    if ( entries.remove(ref.key) != null ) {
+		bytes -= ref.key.size;
+	    }
+	}
+    }
+
+    private static final class SeriesReference extends WeakReference<TimeSeries> {
+	Key key;
+	SeriesReference(TimeSeries ts, ReferenceQueue<TimeSeries> queue) {
+	    super(ts, queue);
+	}
+    }
+
+    private static final class Key {
+	private final SeriesReference series;
+	private final int modificationCount;
+	private final double binWidth;
+	private final double[] newBinEdges;
+	private final int hash;
+	private long size;
+
+	Key(TimeSeries lc, double binWidth, double[] newBinEdges, ReferenceQueue<TimeSeries> queue) {
+	    this.series = new SeriesReference(lc, queue);
+	    this.series.key = this;
+	    this.modificationCount = lc.modificationCount();
+	    this.binWidth = binWidth;
+	    this.newBinEdges = newBinEdges;
+	    int h = System.identityHashCode(lc);
+	    h = 31*h + modificationCount;
+	    h = 31*h + (newBinEdges == null ? Double.hashCode(binWidth) : Arrays.hashCode(newBinEdges));
+	    this.hash = h;
+	}
+
+	long bytes() {
+	    return newBinEdges == null ? 0 : 8L*newBinEdges.length;
+	}
+
+	public int hashCode() {
+	    return hash;
+	}
+
+	public boolean equals(Object o) {
+	    if ( this == o ) return true;
+	    if ( ! (o instanceof Key) ) return false;
+	    Key other = (Key) o;
+	    TimeSeries ts = series.get();
+	    return ts != null && ts == other.series.get()
+		&& hash == other.hash
+		&& modificationCount == other.modificationCount
+		&& Double.compare(binWidth, other.binWidth) == 0
+		&& Arrays.equals(newBinEdges, other.newBinEdges);
+	}
+    }
+
+}
@@ -0,0 +1,90 @@
+package gb.esac.timeseries;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ *
+ * The class <code>SamplingFunction</code> is the run-length encoded sampling function of a time series: the
+ * alternating intervals where there is data (value 1) and where there is a gap (value 0). Contiguous bins form a
+ * single good interval, and so there are 2*nGaps+1 intervals, starting and ending with a good one. Times are
+ * relative to tStart.
+ *
+ * The per-bin form returned by <code>getSamplingFunctionValues</code> and <code>getSamplingFunctionBinEdges</code>
+ * of the time series is expanded from this one when asked for.
+ *
+ */
+
+public final class SamplingFunction {
+
+    //  Interleaved (start, stop) of each interval
+    private final double[] edges;
+    private final int nIntervals;
+
+    SamplingFunction(double[] binEdges, int nBins, GapIndex gaps) {
+	int nGaps = gaps.nGaps();
+	this.nIntervals = nBins == 0 ? 0 : 2*nGaps+1;
+	this.edges = new double[2*this.nIntervals];
+	if ( nBins == 0 ) return;
+	this.edges[0] = binEdges[0];
+	for ( int k=0; k < nGaps; k++ ) {
+	    this.edges[4*k+1] = gaps.start(k);
+	    this.edges[4*k+2] = gaps.start(k);
+	    this.edges[4*k+3] = gaps.stop(k);
+	    this.edges[4*k+4] = gaps.stop(k);
+	}
+	this.edges[2*this.nIntervals-1] = binEdges[2*nBins-1];
+    }
+
+    public int nIntervals() { return this.nIntervals; }
+    public int nGoodIntervals() { return (this.nIntervals+1)/2; }
+    public double start(int i) { return this.edges[2*i]; }
+    public double stop(int i) { return this.edges[2*i+1]; }
+    public double value(int i) { return i%2 == 0 ? 1 : 0; }
+
+    public double[] getIntervalEdges() { return Arrays.copyOf(this.edges, this.edges.length); }
+
+    public double[] getIntervalValues() {
+	double[] values = new double[this.nIntervals];
+	for ( int i=0; i < this.nIntervals; i += 2 ) {
+	    values[i] = 1;
+	}
+	return values;
+    }
+
+    /**
+     * Returns the total length of the good intervals.
+     */
+    public double exposure() {
+	double sum = 0;
+	for ( int i=0; i < this.nIntervals; i += 2 ) {
+	    sum += this.edges[2*i+1] - this.edges[2*i];
+	}
+	return sum;
+    }
+
+    /**
+     * Returns an iterator over the intervals in time order, each as {start, stop, value}.
+     */
+    public Iterator<double[]> intervals() {
+	return new Iterator<double[]>() {
+	    private int i = 0;
+
+	    public boolean hasNext() {
+		return this.i < nIntervals;
+	    }
+
+	    public double[] next() {
+		if ( !hasNext() ) {
+		    throw new NoSuchElementException();
+		}
+		double[] interval = new double[] {start(this.i), stop(this.i), value(this.i)};
+		this.i++;
+		return interval;
+	    }
+	};
+    }
+
+}
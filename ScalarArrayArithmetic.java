@@ -0,0 +1,78 @@
+package gb.esac.timeseries;
+
+
+/**
+ *
+ * The class <code>ScalarArrayArithmetic</code> is the plain-loop implementation of <code>IArrayArithmetic</code>.
+ * It is always available and is the fallback when the Vector API cannot be used.
+ *
+ */
+
+final class ScalarArrayArithmetic implements IArrayArithmetic {
+
+    public String name() { return "scalar"; }
+
+    public void add(double[] a, double[] b, double[] out, int n) {
+	for ( int i=0; i < n; i++ ) {
+	    out[i] = a[i] + b[i];
+	}
+    }
+
+    public void subtract(double[] a, double[] b, double[] out, int n) {
+	for ( int i=0; i < n; i++ ) {
+	    out[i] = a[i] - b[i];
+	}
+    }
+
+    public void multiply(double[] a, double[] b, double[] out, int n) {
+	for ( int i=0; i < n; i++ ) {
+	    out[i] = a[i]*b[i];
+	}
+    }
+
+    public void divide(double[] a, double[] b, double[] out, int n) {
+	for ( int i=0; i < n; i++ ) {
+	    out[i] = a[i]/b[i];
+	}
+    }
+
+    public void scale(double[] a, double factor, double[] out, int n) {
+	for ( int i=0; i < n; i++ ) {
+	    out[i] = a[i]*factor;
+	}
+    }
+
+    public void addOffset(double[] a, double offset, double[] out, int n) {
+	for ( int i=0; i < n; i++ ) {
+	    out[i] = a[i] + offset;
+	}
+    }
+
+    public void quadratureSum(double[] e1, double[] e2, double[] out, int n) {
+	for ( int i=0; i < n; i++ ) {
+	    out[i] = Math.sqrt(e1[i]*e1[i] + e2[i]*e2[i]);
+	}
+    }
+
+    public void inverseVarianceMean(double[] r1, double[] e1, double[] r2, double[] e2, double[] meanOut, double[] errorOut, int n) {
+	for ( int i=0; i < n; i++ ) {
+	    double w1 = 1/(e1[i]*e1[i]);
+	    double w2 = 1/(e2[i]*e2[i]);
+	    double sumOfWeights = w1 + w2;
+	    meanOut[i] = (r1[i]*w1 + r2[i]*w2)/sumOfWeights;
+	    errorOut[i] = 1/Math.sqrt(sumOfWeights);
+	}
+    }
+
+    public double[] weightedMean(double[] values, double[] errors, int n) {
+	double weightedSum = 0;
+	double sumOfWeights = 0;
+	for ( int i=0; i < n; i++ ) {
+	    double w = 1/(errors[i]*errors[i]);
+	    weightedSum += values[i]*w;
+	    sumOfWeights += w;
+	}
+	return new double[] {weightedSum/sumOfWeights, 1/Math.sqrt(sumOfWeights)};
+    }
+
+}
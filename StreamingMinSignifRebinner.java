@@ -0,0 +1,187 @@
+package gb.esac.timeseries;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>StreamingMinSignifRebinner</code> rebins a stream of bins so that each output bin has a
+ * significance (rate/error) of at least minSignif. Bins are added one at a time in time order; consecutive bins are
+ * accumulated until their combined significance reaches the threshold, and the combined bin is then passed to an
+ * <code>IBinConsumer</code>. The rate of a combined bin is the exposure-weighted mean of the rates, and its error
+ * is sqrt(sum((error*width)^2))/sum(width). Its edges are the left edge of its first bin and the right edge of its
+ * last bin. Bins whose rate is NaN are skipped.
+ *
+ * The significance is only defined once the accumulated variance is positive. Bins with a zero error, such as
+ * empty bins of Poisson data whose error is estimated from the counts, carry no measure of their uncertainty: they
+ * are accumulated with the bins that follow them until the combined bin has a positive variance and reaches the
+ * threshold, or until <code>flush</code>.
+ *
+ * Only the running sums are kept, so memory does not depend on the length of the stream. At the end of the stream,
+ * <code>flush</code> emits the remaining bins, whose significance may be below the threshold.
+ *
+ */
+
+public final class StreamingMinSignifRebinner {
+
+    private static Logger logger  = Logger.getLogger(StreamingMinSignifRebinner.class);
+
+    private final double minSignif;
+    private final IBinConsumer consumer;
+    //  Running sums of the bin being built
+    private double leftEdge = Double.NaN;
+    private double rightEdge = Double.NaN;
+    //  Right edge of the last bin added, NaN bins included
+    private double lastRightEdge = Double.NEGATIVE_INFINITY;
+    private double counts = 0;
+    private double variance = 0;
+    private double exposure = 0;
+    private long nBinsIn = 0;
+    private long nBinsOut = 0;
+
+    public StreamingMinSignifRebinner(double minSignif, IBinConsumer consumer) {
+	if ( !(minSignif > 0) ) {
+	    throw new IllegalArgumentException("minSignif must be positive: minSignif = "+minSignif);
+	}
+	if ( consumer == null ) {
+	    throw new IllegalArgumentException("consumer is null");
+	}
+	this.minSignif = minSignif;
+	this.consumer = consumer;
+    }
+
+    /**
+     * Adds the next bin of the stream, and emits the combined bin if it has reached the threshold.
+     *
+     * @param left a <code>double</code> value
+     * @param right a <code>double</code> value
+     * @param rate a <code>double</code> value
+     * @param error a <code>double</code> value
+     */
+    public void add(double left, double right, double rate, double error) {
+	if ( !(right > left) ) {
+	    throw new IllegalArgumentException("Bin edges must be increasing: left = "+left+", right = "+right);
+	}
+	if ( left < this.lastRightEdge ) {
+	    throw new IllegalArgumentException("Bins must be added in time order without overlap: left = "+left+" before the end of the previous bin at "+this.lastRightEdge);
+	}
+	this.lastRightEdge = right;
+	this.nBinsIn++;
+	if ( Double.isNaN(rate) ) {
+	    return;
+	}
+	double width = right - left;
+	double e = error*width;
+	if ( this.exposure == 0 ) {
+	    this.leftEdge = left;
+	}
+	this.rightEdge = right;
+	this.counts += rate*width;
+	this.variance += e*e;
+	this.exposure += width;
+	if ( this.variance > 0 && this.counts/Math.sqrt(this.variance) >= this.minSignif ) {
+	    emit();
+	}
+    }
+
+    /**
+     * Emits the bins accumulated since the last emitted bin, if any. To be called at the end of the stream.
+     */
+    public void flush() {
+	if ( this.exposure > 0 ) {
+	    logger.info("Flushing last bin");
+	    emit();
+	}
+    }
+
+    public double minSignif() { return this.minSignif; }
+    public long nBinsIn() { return this.nBinsIn; }
+    public long nBinsOut() { return this.nBinsOut; }
+
+    private void emit() {
+	double rate = this.counts/this.exposure;
+	double error = Math.sqrt(this.variance)/this.exposure;
+	this.nBinsOut++;
+	this.counts = 0;
+	this.variance = 0;
+	this.exposure = 0;
+	this.consumer.accept(this.leftEdge, this.rightEdge, rate, error);
+    }
+
+    /**
+     * Returns an iterator over the rebinned bins of the input bins. Each bin is a <code>double[]</code> holding
+     * {leftEdge, rightEdge, rate, error}. The input is read lazily, only as far as needed to complete the next
+     * output bin, and the last bin is flushed when the input is exhausted.
+     *
+     * @param bins an <code>Iterator</code> over {leftEdge, rightEdge, rate, error}
+     * @param minSignif a <code>double</code> value
+     * @return an <code>Iterator</code> over {leftEdge, rightEdge, rate, error}
+     */
+    public static Iterator<double[]> rebin(final Iterator<double[]> bins, double minSignif) {
+	final ArrayDeque<double[]> ready = new ArrayDeque<double[]>();
+	final StreamingMinSignifRebinner rebinner = new StreamingMinSignifRebinner(minSignif, new IBinConsumer() {
+		public void accept(double leftEdge, double rightEdge, double rate, double error) {
+		    ready.add(new double[] {leftEdge, rightEdge, rate, error});
+		}
+	    });
+	return new Iterator<double[]>() {
+	    private boolean flushed = false;
+
+	    public boolean hasNext() {
+		while ( ready.isEmpty() && !this.flushed ) {
+		    if ( bins.hasNext() ) {
+			double[] bin = bins.next();
+			rebinner.add(bin[0], bin[1], bin[2], bin[3]);
+		    }
+		    else {
+			rebinner.flush();
+			this.flushed = true;
+		    }
+		}
+		return !ready.isEmpty();
+	    }
+
+	    public double[] next() {
+		if ( !hasNext() ) {
+		    throw new NoSuchElementException();
+		}
+		return ready.poll();
+	    }
+	};
+    }
+
+    /**
+     * Returns an iterator over the bins of a time series, as {leftEdge, rightEdge, rate, error} in absolute time,
+     * for use as input to <code>rebin</code>.
+     *
+     * @param ts a <code>TimeSeries</code> value
+     * @return an <code>Iterator</code> over {leftEdge, rightEdge, rate, error}
+     */
+    public static Iterator<double[]> binsOf(final TimeSeries ts) {
+	final double tStart = ts.tStart();
+	final double[] edges = ts.internalBinEdges();
+	final double[] rates = ts.internalRates();
+	final double[] errors = ts.internalErrorsOnRates();
+	return new Iterator<double[]>() {
+	    private int i = 0;
+
+	    public boolean hasNext() {
+		return this.i < rates.length;
+	    }
+
+	    public double[] next() {
+		if ( !hasNext() ) {
+		    throw new NoSuchElementException();
+		}
+		double[] bin = new double[] {tStart + edges[2*i], tStart + edges[2*i+1], rates[i], errors[i]};
+		this.i++;
+		return bin;
+	    }
+	};
+    }
+
+}
@@ -0,0 +1,91 @@
+package gb.esac.timeseries;
+
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Checks BatchKalmanFilter with processRMS = 0, where the level is constant: the filtered level must be the running
+ * inverse-variance weighted mean of the rates, and the smoothed level the weighted mean of the whole series. Then
+ * checks that a counts series with empty bins, whose errors are 0, is filtered and smoothed without NaN.
+ */
+
+public class TestBatchKalmanFilter {
+
+    private static Logger logger  = Logger.getLogger(TestBatchKalmanFilter.class);
+
+    public static void main(String[] args) throws Exception  {
+
+	Random random = new Random(41);
+	int nBins = 500;
+	double[] binEdges = new double[2*nBins];
+	double[] rates = new double[nBins];
+	double[] errors = new double[nBins];
+	for ( int i=0; i < nBins; i++ ) {
+	    binEdges[2*i] = i;
+	    binEdges[2*i+1] = i + 1;
+	    errors[i] = 0.5 + random.nextDouble();
+	    rates[i] = 10 + errors[i]*random.nextGaussian();
+	    //  A few NaN bins, predicted without update
+	    if ( random.nextDouble() < 0.05 && i > 0 ) rates[i] = Double.NaN;
+	}
+	TimeSeries ts = new TimeSeries(0, binEdges, rates, errors);
+
+	//  Constant level: running and total weighted means
+	double[] filtered = BatchKalmanFilter.filter(ts, 0).timeSeries().getRates();
+	double[] smoothed = BatchKalmanFilter.smooth(ts, 0).timeSeries().getRates();
+	double sumOfWeights = 0;
+	double weightedSum = 0;
+	double maxDifference = 0;
+	for ( int i=0; i < nBins; i++ ) {
+	    if ( !Double.isNaN(rates[i]) ) {
+		double w = 1/(errors[i]*errors[i]);
+		sumOfWeights += w;
+		weightedSum += w*rates[i];
+	    }
+	    maxDifference = Math.max(maxDifference, Math.abs(filtered[i] - weightedSum/sumOfWeights));
+	}
+	double mean = weightedSum/sumOfWeights;
+	logger.info("processRMS = 0: max |filtered - running weighted mean| = "+maxDifference);
+	check(maxDifference < 1e-12, "Filtered level differs from the running weighted mean by "+maxDifference);
+	maxDifference = 0;
+	for ( int i=0; i < nBins; i++ ) {
+	    maxDifference = Math.max(maxDifference, Math.abs(smoothed[i] - mean));
+	}
+	logger.info("processRMS = 0: max |smoothed - weighted mean| = "+maxDifference);
+	check(maxDifference < 1e-12, "Smoothed level differs from the weighted mean by "+maxDifference);
+
+	//  Counts with empty bins, whose errors are 0, including the first bin
+	double[] counts = new double[nBins];
+	for ( int i=0; i < nBins; i++ ) {
+	    int c = i == 0 || random.nextDouble() < 0.3 ? 0 : 1 + random.nextInt(3);
+	    counts[i] = c;
+	    rates[i] = c;
+	    errors[i] = Math.sqrt(c);
+	}
+	ts = new TimeSeries(0, binEdges, rates, errors);
+	for ( double processRMS : new double[] {0, 0.1} ) {
+	    for ( boolean smooth : new boolean[] {false, true} ) {
+		KalmanFilterResult result = smooth ? BatchKalmanFilter.smooth(ts, processRMS) : BatchKalmanFilter.filter(ts, processRMS);
+		double[] levels = result.timeSeries().getRates();
+		double[] levelErrors = result.timeSeries().getErrorsOnRates();
+		int nNaN = 0;
+		for ( int i=0; i < nBins; i++ ) {
+		    if ( Double.isNaN(levels[i]) || Double.isNaN(levelErrors[i]) ) nNaN++;
+		}
+		logger.info("Counts with empty bins, processRMS = "+processRMS+(smooth ? ", smoothed" : ", filtered")+": "+nNaN+" NaN bins, chi^2 = "+result.chiSquare());
+		check(nNaN == 0, nNaN+" NaN bins in the level with processRMS = "+processRMS);
+		check(!Double.isNaN(result.chiSquare()), "chi^2 of the innovations is NaN with processRMS = "+processRMS);
+	    }
+	}
+	logger.info("TestBatchKalmanFilter passed");
+    }
+
+    private static void check(boolean condition, String message) throws Exception {
+	if ( !condition ) {
+	    throw new Exception(message);
+	}
+    }
+
+}
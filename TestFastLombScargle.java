@@ -0,0 +1,108 @@
+package gb.esac.timeseries;
+
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Compares the periodogram of FastLombScargle with the direct O(N*F) sums of the error-weighted, floating-mean
+ * Lomb-Scargle periodogram, on a sinusoid plus noise sampled in bins of variable width separated by gaps.
+ */
+
+public class TestFastLombScargle {
+
+    private static Logger logger  = Logger.getLogger(TestFastLombScargle.class);
+
+    public static void main(String[] args) throws Exception  {
+
+	//  Uneven sampling: bins of 0.5 to 1.5 s, with gaps of up to 20 s after 5% of them
+	Random random = new Random(20240611);
+	int nBins = 2000;
+	double[] binEdges = new double[2*nBins];
+	double[] rates = new double[nBins];
+	double[] errors = new double[nBins];
+	double frequency = 0.0371;
+	double t = 0;
+	for ( int i=0; i < nBins; i++ ) {
+	    if ( random.nextDouble() < 0.05 ) {
+		t += 20*random.nextDouble();
+	    }
+	    double width = 0.5 + random.nextDouble();
+	    binEdges[2*i] = t;
+	    binEdges[2*i+1] = t + width;
+	    errors[i] = 0.5 + random.nextDouble();
+	    rates[i] = 10 + 2*Math.sin(2*Math.PI*frequency*(t + width/2)) + errors[i]*random.nextGaussian();
+	    t += width;
+	}
+	TimeSeries ts = new TimeSeries(0, binEdges, rates, errors);
+
+	double fMin = 1/ts.duration();
+	double fMax = 0.5;
+	double df = 0.2/ts.duration();
+	LombScarglePeriodogram fast = FastLombScargle.makePeriodogram(ts, fMin, fMax, df);
+	double[] frequencies = fast.getFrequencies();
+	double[] powers = fast.getPowers();
+	double[] directPowers = directPowers(ts.getBinCentres(), rates, errors, frequencies);
+
+	double maxDifference = 0;
+	for ( int j=0; j < powers.length; j++ ) {
+	    maxDifference = Math.max(maxDifference, Math.abs(powers[j] - directPowers[j]));
+	}
+	logger.info("Frequencies: "+powers.length+", max |P_fast - P_direct| = "+maxDifference);
+	logger.info("Peak at "+fast.frequencyAtMaxPower()+" Hz (injected "+frequency+" Hz)");
+	check(maxDifference < 1e-4, "Fast and direct periodograms differ by "+maxDifference);
+	check(Math.abs(fast.frequencyAtMaxPower() - frequency) < df, "Peak is not at the injected frequency");
+	logger.info("TestFastLombScargle passed");
+    }
+
+    //  Zechmeister and Kurster (2009) power, with the trigonometric sums computed directly
+    static double[] directPowers(double[] times, double[] rates, double[] errors, double[] frequencies) {
+	int n = times.length;
+	double[] w = new double[n];
+	double sumOfWeights = 0;
+	for ( int i=0; i < n; i++ ) {
+	    w[i] = 1/(errors[i]*errors[i]);
+	    sumOfWeights += w[i];
+	}
+	double mean = 0;
+	for ( int i=0; i < n; i++ ) {
+	    w[i] /= sumOfWeights;
+	    mean += w[i]*rates[i];
+	}
+	double yy = 0;
+	for ( int i=0; i < n; i++ ) {
+	    yy += w[i]*(rates[i] - mean)*(rates[i] - mean);
+	}
+	double[] powers = new double[frequencies.length];
+	for ( int j=0; j < frequencies.length; j++ ) {
+	    double omega = 2*Math.PI*frequencies[j];
+	    double c = 0, s = 0, yc = 0, ys = 0, cc = 0, ss = 0, cs = 0;
+	    for ( int i=0; i < n; i++ ) {
+		double cos = Math.cos(omega*times[i]);
+		double sin = Math.sin(omega*times[i]);
+		double y = rates[i] - mean;
+		c += w[i]*cos;
+		s += w[i]*sin;
+		yc += w[i]*y*cos;
+		ys += w[i]*y*sin;
+		cc += w[i]*cos*cos;
+		ss += w[i]*sin*sin;
+		cs += w[i]*cos*sin;
+	    }
+	    cc -= c*c;
+	    ss -= s*s;
+	    cs -= c*s;
+	    double d = cc*ss - cs*cs;
+	    powers[j] = (ss*yc*yc + cc*ys*ys - 2*cs*yc*ys)/(yy*d);
+	}
+	return powers;
+    }
+
+    private static void check(boolean condition, String message) throws Exception {
+	if ( !condition ) {
+	    throw new Exception(message);
+	}
+    }
+
+}
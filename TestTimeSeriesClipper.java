@@ -0,0 +1,119 @@
+package gb.esac.timeseries;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Checks the order-statistic window of TimeSeriesClipper against sorting: the median and MAD after random sequences
+ * of additions and removals, with repeated values and windows of odd and even sizes, and the outliers flagged by
+ * clipRunningMedian against a direct running median and MAD on a gapped series.
+ */
+
+public class TestTimeSeriesClipper {
+
+    private static Logger logger  = Logger.getLogger(TestTimeSeriesClipper.class);
+
+    public static void main(String[] args) throws Exception  {
+
+	Random random = new Random(48);
+
+	//  Values on a coarse grid, so that many of them are equal
+	int nValues = 2000;
+	double[] values = new double[nValues];
+	for ( int i=0; i < nValues; i++ ) {
+	    values[i] = Math.round(20*random.nextGaussian())/4.0;
+	}
+	double[] sortedValues = values.clone();
+	Arrays.sort(sortedValues);
+	TimeSeriesClipper.OrderStatistics window = new TimeSeriesClipper.OrderStatistics(sortedValues);
+	int lo = 0;
+	int hi = 0;
+	int nChecks = 0;
+	while ( hi < nValues ) {
+	    //  Move the window [lo, hi) forward by random steps, keeping at least one value
+	    int grow = random.nextInt(6);
+	    for ( int k=0; k < grow && hi < nValues; k++ ) window.add(values[hi++]);
+	    int shrink = random.nextInt(6);
+	    for ( int k=0; k < shrink && hi - lo > 1; k++ ) window.remove(values[lo++]);
+	    if ( hi == lo ) continue;
+	    double[] inWindow = Arrays.copyOfRange(values, lo, hi);
+	    double median = median(inWindow);
+	    double mad = medianAbsoluteDeviation(inWindow, median);
+	    check(window.size() == hi - lo, "Window holds "+window.size()+" values instead of "+(hi - lo));
+	    check(window.median() == median, "Median "+window.median()+" instead of "+median+" over "+(hi - lo)+" values");
+	    double windowMAD = window.medianAbsoluteDeviation(median);
+	    check(windowMAD == mad, "MAD "+windowMAD+" instead of "+mad+" over "+(hi - lo)+" values");
+	    nChecks++;
+	}
+	logger.info("Median and MAD identical to sorting in "+nChecks+" windows");
+
+	//  Running median clipping against a direct computation
+	int nBins = 3000;
+	int windowBins = 31;
+	double nSigma = 3;
+	TimeSeries ts = TestTimeSeriesResampler.makeGappedTimeSeries(random, nBins, 0.01);
+	double[] rates = ts.getRates();
+	for ( int i=0; i < nBins; i += 1 + random.nextInt(50) ) {
+	    if ( !Double.isNaN(rates[i]) ) rates[i] += 10;
+	}
+	ts = new TimeSeries(ts.tStart(), ts.getBinEdges(), rates, ts.getErrorsOnRates());
+	BitSet outliers = TimeSeriesClipper.clipRunningMedian(ts, windowBins, nSigma).getOutliers();
+	BitSet expected = directRunningMedianClip(ts, windowBins, nSigma);
+	logger.info("Running median clipping: "+outliers.cardinality()+" outliers ("+expected.cardinality()+" expected)");
+	check(outliers.equals(expected), "Outliers differ from the direct running median and MAD");
+	logger.info("TestTimeSeriesClipper passed");
+    }
+
+    static double median(double[] x) {
+	double[] sorted = x.clone();
+	Arrays.sort(sorted);
+	int n = sorted.length;
+	return n % 2 == 1 ? sorted[n/2] : 0.5*(sorted[n/2-1] + sorted[n/2]);
+    }
+
+    static double medianAbsoluteDeviation(double[] x, double median) {
+	double[] deviations = new double[x.length];
+	for ( int i=0; i < x.length; i++ ) {
+	    deviations[i] = Math.abs(x[i] - median);
+	}
+	return median(deviations);
+    }
+
+    //  For each valid bin, the median and MAD of the valid bins within windowBins/2 of it, not crossing gaps
+    static BitSet directRunningMedianClip(TimeSeries ts, int windowBins, double nSigma) {
+	double[] rates = ts.getRates();
+	int[] runs = TimeSeriesSmoother.findRuns(ts);
+	int h = windowBins/2;
+	BitSet outliers = new BitSet(rates.length);
+	for ( int r=0; r < runs.length-1; r++ ) {
+	    for ( int i=runs[r]; i < runs[r+1]; i++ ) {
+		if ( Double.isNaN(rates[i]) ) continue;
+		int from = Math.max(runs[r], i - h);
+		int to = Math.min(runs[r+1], i + h + 1);
+		int n = 0;
+		double[] inWindow = new double[to - from];
+		for ( int j=from; j < to; j++ ) {
+		    if ( !Double.isNaN(rates[j]) ) inWindow[n++] = rates[j];
+		}
+		inWindow = Arrays.copyOf(inWindow, n);
+		double median = median(inWindow);
+		double mad = medianAbsoluteDeviation(inWindow, median);
+		if ( mad > 0 && Math.abs(rates[i] - median) > nSigma*1.4826*mad ) {
+		    outliers.set(i);
+		}
+	    }
+	}
+	return outliers;
+    }
+
+    private static void check(boolean condition, String message) throws Exception {
+	if ( !condition ) {
+	    throw new Exception(message);
+	}
+    }
+
+}
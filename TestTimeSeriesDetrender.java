@@ -0,0 +1,175 @@
+package gb.esac.timeseries;
+
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Checks the fits of TimeSeriesDetrender: Reinsch's O(n) smoothing spline against a dense solution of the same
+ * minimisation, a straight line (which the spline must reproduce for any smoothing), and the polynomial detrending of
+ * an exact cubic on uneven bins.
+ */
+
+public class TestTimeSeriesDetrender {
+
+    private static Logger logger  = Logger.getLogger(TestTimeSeriesDetrender.class);
+
+    public static void main(String[] args) throws Exception  {
+
+	Random random = new Random(42);
+	int n = 60;
+	double[] x = new double[n];
+	double[] y = new double[n];
+	double[] d = new double[n];
+	double t = 0;
+	for ( int i=0; i < n; i++ ) {
+	    t += 0.2 + random.nextDouble();
+	    x[i] = t;
+	    y[i] = Math.sin(0.3*t) + 0.3*random.nextGaussian();
+	    d[i] = Math.pow(0.1 + 0.4*random.nextDouble(), 2);
+	}
+
+	//  Reinsch against the dense solution of (D^-1 + lambda Q R^-1 Q^T) g = D^-1 y
+	for ( double lambda : new double[] {1e-3, 1, 100} ) {
+	    double[] g = new double[n];
+	    TimeSeriesDetrender.reinsch(x, y, d, lambda, g);
+	    double[] dense = denseSmoothingSpline(x, y, d, lambda);
+	    double maxDifference = 0;
+	    for ( int i=0; i < n; i++ ) {
+		maxDifference = Math.max(maxDifference, Math.abs(g[i] - dense[i]));
+	    }
+	    logger.info("Reinsch vs dense (lambda = "+lambda+"): max |difference| = "+maxDifference);
+	    check(maxDifference < 1e-9, "Reinsch and dense smoothing splines differ by "+maxDifference);
+	}
+
+	//  A straight line has no curvature and is returned unchanged
+	double[] line = new double[n];
+	for ( int i=0; i < n; i++ ) {
+	    line[i] = 3 - 0.5*x[i];
+	}
+	double[] g = new double[n];
+	TimeSeriesDetrender.reinsch(x, line, d, 1e6, g);
+	double maxDifference = 0;
+	for ( int i=0; i < n; i++ ) {
+	    maxDifference = Math.max(maxDifference, Math.abs(g[i] - line[i]));
+	}
+	logger.info("Spline of a straight line: max |difference| = "+maxDifference);
+	check(maxDifference < 1e-9, "Spline does not reproduce a straight line: "+maxDifference);
+
+	//  Polynomial detrending removes an exact cubic, on bins of variable width with a gap
+	int nBins = 200;
+	double[] binEdges = new double[2*nBins];
+	double[] rates = new double[nBins];
+	double[] errors = new double[nBins];
+	t = 0;
+	for ( int i=0; i < nBins; i++ ) {
+	    if ( i == nBins/2 ) t += 15;
+	    double width = 0.5 + random.nextDouble();
+	    binEdges[2*i] = t;
+	    binEdges[2*i+1] = t + width;
+	    double c = t + width/2;
+	    rates[i] = 5 + 0.1*c - 2e-3*c*c + 1e-5*c*c*c;
+	    errors[i] = 0.5 + random.nextDouble();
+	    t += width;
+	}
+	TimeSeries ts = new TimeSeries(0, binEdges, rates, errors);
+	double[] residuals = TimeSeriesDetrender.detrendPolynomial(ts, 3).getRates();
+	maxDifference = 0;
+	for ( int i=0; i < nBins; i++ ) {
+	    maxDifference = Math.max(maxDifference, Math.abs(residuals[i]));
+	}
+	logger.info("Cubic detrended by a cubic: max |residual| = "+maxDifference);
+	check(maxDifference < 1e-9, "Cubic trend is not removed: max |residual| = "+maxDifference);
+	logger.info("TestTimeSeriesDetrender passed");
+    }
+
+    //  Dense O(n^3) solution of the smoothing-spline normal equations, with K = Q R^-1 Q^T
+    static double[] denseSmoothingSpline(double[] x, double[] y, double[] d, double lambda) {
+	int n = x.length;
+	int m = n - 2;
+	double[] h = new double[n-1];
+	for ( int i=0; i < n-1; i++ ) {
+	    h[i] = x[i+1] - x[i];
+	}
+	double[][] q = new double[n][m];
+	double[][] r = new double[m][m];
+	for ( int k=0; k < m; k++ ) {
+	    int j = k + 1;
+	    q[j-1][k] = 1/h[j-1];
+	    q[j][k] = -1/h[j-1] - 1/h[j];
+	    q[j+1][k] = 1/h[j];
+	    r[k][k] = (h[j-1] + h[j])/3;
+	    if ( k+1 < m ) {
+		r[k][k+1] = h[j]/6;
+		r[k+1][k] = h[j]/6;
+	    }
+	}
+	//  R^-1 Q^T, column by column
+	double[][] rInverseQt = new double[m][n];
+	for ( int i=0; i < n; i++ ) {
+	    double[] column = solve(copy(r), q[i].clone());
+	    for ( int k=0; k < m; k++ ) {
+		rInverseQt[k][i] = column[k];
+	    }
+	}
+	double[][] a = new double[n][n];
+	double[] b = new double[n];
+	for ( int i=0; i < n; i++ ) {
+	    for ( int j=0; j < n; j++ ) {
+		double s = 0;
+		for ( int k=0; k < m; k++ ) {
+		    s += q[i][k]*rInverseQt[k][j];
+		}
+		a[i][j] = lambda*s;
+	    }
+	    a[i][i] += 1/d[i];
+	    b[i] = y[i]/d[i];
+	}
+	return solve(a, b);
+    }
+
+    //  Gaussian elimination with partial pivoting
+    static double[] solve(double[][] a, double[] b) {
+	int n = b.length;
+	for ( int c=0; c < n; c++ ) {
+	    int p = c;
+	    for ( int i=c+1; i < n; i++ ) {
+		if ( Math.abs(a[i][c]) > Math.abs(a[p][c]) ) p = i;
+	    }
+	    double[] row = a[c]; a[c] = a[p]; a[p] = row;
+	    double tmp = b[c]; b[c] = b[p]; b[p] = tmp;
+	    for ( int i=c+1; i < n; i++ ) {
+		double f = a[i][c]/a[c][c];
+		for ( int j=c; j < n; j++ ) {
+		    a[i][j] -= f*a[c][j];
+		}
+		b[i] -= f*b[c];
+	    }
+	}
+	double[] x = new double[n];
+	for ( int i=n-1; i >= 0; i-- ) {
+	    double s = b[i];
+	    for ( int j=i+1; j < n; j++ ) {
+		s -= a[i][j]*x[j];
+	    }
+	    x[i] = s/a[i][i];
+	}
+	return x;
+    }
+
+    private static double[][] copy(double[][] a) {
+	double[][] c = new double[a.length][];
+	for ( int i=0; i < a.length; i++ ) {
+	    c[i] = a[i].clone();
+	}
+	return c;
+    }
+
+    private static void check(boolean condition, String message) throws Exception {
+	if ( !condition ) {
+	    throw new Exception(message);
+	}
+    }
+
+}
@@ -0,0 +1,95 @@
+package gb.esac.timeseries;
+
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Checks TimeSeriesExpression against the same operations chained with TimeSeriesArithmetic, on series long enough
+ * to be evaluated in several parallel chunks and with a background on other bins, and checks the errors of an
+ * expression in which a series appears twice against the first-order propagation of the error of that series.
+ */
+
+public class TestTimeSeriesExpression {
+
+    private static Logger logger  = Logger.getLogger(TestTimeSeriesExpression.class);
+
+    public static void main(String[] args) throws Exception  {
+
+	Random random = new Random(50);
+	int nBins = 40000;
+	TimeSeries src = makeTimeSeries(random, nBins, 1.0, 20);
+	TimeSeries exposure = makeTimeSeries(random, nBins, 1.0, 0.9);
+	//  Background on bins twice as wide, resampled onto those of src
+	TimeSeries bkg = makeTimeSeries(random, nBins/2, 2.0, 5);
+
+	//  (src - 0.12*bkg)/exposure + 3
+	TimeSeries lazy = TimeSeriesExpression.of(src).minus(TimeSeriesExpression.of(bkg).times(0.12)).dividedBy(exposure).plus(3).evaluate();
+	TimeSeries chained = TimeSeriesArithmetic.add(TimeSeriesArithmetic.divide(TimeSeriesArithmetic.subtract(src, TimeSeriesArithmetic.multiply(bkg, 0.12)), exposure), 3);
+	double[] differences = maxRelativeDifferences(lazy, chained);
+	logger.info("Expression vs chained arithmetic: max relative difference = "+differences[0]+" (rates), "+differences[1]+" (errors)");
+	check(differences[0] < 1e-14, "Rates differ from chained arithmetic by "+differences[0]);
+	check(differences[1] < 1e-12, "Errors differ from chained arithmetic by "+differences[1]);
+
+	//  A series used twice: d(a*a/(a+c))/da = a*(a+2c)/(a+c)^2, and c has an error too
+	TimeSeriesExpression a = TimeSeriesExpression.of(src);
+	TimeSeriesExpression c = TimeSeriesExpression.of(exposure);
+	TimeSeries shared = a.times(a).dividedBy(a.plus(c)).evaluate();
+	double[] x = src.getRates();
+	double[] ex = src.getErrorsOnRates();
+	double[] y = exposure.getRates();
+	double[] ey = exposure.getErrorsOnRates();
+	double[] rates = shared.getRates();
+	double[] errors = shared.getErrorsOnRates();
+	double maxRateDifference = 0;
+	double maxErrorDifference = 0;
+	for ( int i=0; i < nBins; i++ ) {
+	    double s = x[i] + y[i];
+	    double dx = x[i]*(x[i] + 2*y[i])/(s*s);
+	    double dy = -x[i]*x[i]/(s*s);
+	    double error = Math.sqrt(dx*dx*ex[i]*ex[i] + dy*dy*ey[i]*ey[i]);
+	    maxRateDifference = Math.max(maxRateDifference, Math.abs(rates[i] - x[i]*x[i]/s)/Math.abs(x[i]*x[i]/s));
+	    maxErrorDifference = Math.max(maxErrorDifference, Math.abs(errors[i] - error)/error);
+	}
+	logger.info("Shared series: max relative difference = "+maxRateDifference+" (rates), "+maxErrorDifference+" (errors)");
+	check(maxRateDifference < 1e-14, "Rates of a*a/(a+c) differ by "+maxRateDifference);
+	check(maxErrorDifference < 1e-12, "Errors of a*a/(a+c) differ from first-order propagation by "+maxErrorDifference);
+	logger.info("TestTimeSeriesExpression passed");
+    }
+
+    //  Contiguous bins of the given width, with rates around level and errors of about 10%
+    static TimeSeries makeTimeSeries(Random random, int nBins, double binWidth, double level) {
+	double[] binEdges = new double[2*nBins];
+	double[] rates = new double[nBins];
+	double[] errors = new double[nBins];
+	for ( int i=0; i < nBins; i++ ) {
+	    binEdges[2*i] = i*binWidth;
+	    binEdges[2*i+1] = (i+1)*binWidth;
+	    rates[i] = level*(1 + 0.1*random.nextGaussian());
+	    errors[i] = 0.1*level*(0.5 + random.nextDouble());
+	}
+	return new TimeSeries(0, binEdges, rates, errors);
+    }
+
+    static double[] maxRelativeDifferences(TimeSeries ts1, TimeSeries ts2) throws Exception {
+	check(ts1.nBins() == ts2.nBins(), "Numbers of bins differ: "+ts1.nBins()+" and "+ts2.nBins());
+	double[] r1 = ts1.getRates();
+	double[] r2 = ts2.getRates();
+	double[] e1 = ts1.getErrorsOnRates();
+	double[] e2 = ts2.getErrorsOnRates();
+	double[] max = new double[2];
+	for ( int i=0; i < r1.length; i++ ) {
+	    max[0] = Math.max(max[0], Math.abs(r1[i] - r2[i])/Math.abs(r2[i]));
+	    max[1] = Math.max(max[1], Math.abs(e1[i] - e2[i])/Math.abs(e2[i]));
+	}
+	return max;
+    }
+
+    private static void check(boolean condition, String message) throws Exception {
+	if ( !condition ) {
+	    throw new Exception(message);
+	}
+    }
+
+}
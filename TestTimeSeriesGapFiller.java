@@ -0,0 +1,111 @@
+package gb.esac.timeseries;
+
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Checks the natural cubic spline of TimeSeriesGapFiller on a known natural spline, written in the truncated power
+ * basis s(t) = a + b*t + sum_k c_k*(t - x_k)_+^3 with sum_k c_k = sum_k c_k*x_k = 0, so that s is linear before the
+ * first and after the last knot. Through its own values at the knots x_k, the natural spline must be s itself:
+ * naturalSpline must return s''(x_k), and fillNaNs must restore s at the centres of the NaN bins.
+ */
+
+public class TestTimeSeriesGapFiller {
+
+    private static Logger logger  = Logger.getLogger(TestTimeSeriesGapFiller.class);
+
+    public static void main(String[] args) throws Exception  {
+
+	Random random = new Random(47);
+	int nBins = 100;
+	double[] binEdges = new double[2*nBins];
+	boolean[] isKnot = new boolean[nBins];
+	int nKnots = 0;
+	for ( int i=0; i < nBins; i++ ) {
+	    binEdges[2*i] = i;
+	    binEdges[2*i+1] = i + 1;
+	    //  The first and last bins are knots, so that every NaN bin lies between two knots
+	    isKnot[i] = i == 0 || i == nBins-1 || random.nextDouble() < 0.6;
+	    if ( isKnot[i] ) nKnots++;
+	}
+	double[] knots = new double[nKnots];
+	int k = 0;
+	for ( int i=0; i < nBins; i++ ) {
+	    if ( isKnot[i] ) knots[k++] = i + 0.5;
+	}
+
+	//  Coefficients: c_2..c_n-1 at random, c_0 and c_1 from the two conditions
+	double[] c = new double[nKnots];
+	double sum = 0;
+	double sumOfMoments = 0;
+	for ( k=2; k < nKnots; k++ ) {
+	    c[k] = 1e-3*random.nextGaussian();
+	    sum += c[k];
+	    sumOfMoments += c[k]*knots[k];
+	}
+	c[1] = (sum*knots[0] - sumOfMoments)/(knots[1] - knots[0]);
+	c[0] = -sum - c[1];
+
+	double[] knotValues = new double[nKnots];
+	for ( k=0; k < nKnots; k++ ) {
+	    knotValues[k] = spline(knots, c, knots[k]);
+	}
+
+	//  Second derivatives at the knots. The truncated power basis loses digits to cancellation, so the tolerances
+	//  are relative to the largest values of s'' and s
+	double[] secondDerivatives = TimeSeriesGapFiller.naturalSpline(knots, knotValues);
+	double maxDifference = 0;
+	double scale = 0;
+	for ( k=0; k < nKnots; k++ ) {
+	    maxDifference = Math.max(maxDifference, Math.abs(secondDerivatives[k] - secondDerivative(knots, c, knots[k])));
+	    scale = Math.max(scale, Math.abs(secondDerivative(knots, c, knots[k])));
+	}
+	logger.info(nKnots+" knots: max |m_k - s''(x_k)| = "+maxDifference+" (max |s''| = "+scale+")");
+	check(maxDifference < 1e-9*scale, "Second derivatives differ from those of the spline by "+maxDifference);
+
+	//  Values restored in the NaN bins
+	double[] rates = new double[nBins];
+	double[] errors = new double[nBins];
+	for ( int i=0; i < nBins; i++ ) {
+	    rates[i] = isKnot[i] ? spline(knots, c, i + 0.5) : Double.NaN;
+	    errors[i] = 1;
+	}
+	TimeSeries filled = TimeSeriesGapFiller.fillNaNs(new TimeSeries(0, binEdges, rates, errors), "spline");
+	double[] filledRates = filled.getRates();
+	maxDifference = 0;
+	scale = 0;
+	for ( int i=0; i < nBins; i++ ) {
+	    maxDifference = Math.max(maxDifference, Math.abs(filledRates[i] - spline(knots, c, i + 0.5)));
+	    scale = Math.max(scale, Math.abs(spline(knots, c, i + 0.5)));
+	}
+	logger.info((nBins - nKnots)+" NaN bins filled: max |difference| = "+maxDifference+" (max |s| = "+scale+")");
+	check(maxDifference < 1e-9*scale, "Filled rates differ from the spline by "+maxDifference);
+	logger.info("TestTimeSeriesGapFiller passed");
+    }
+
+    static double spline(double[] knots, double[] c, double t) {
+	double s = 2 + 0.01*t;
+	for ( int k=0; k < knots.length && knots[k] < t; k++ ) {
+	    double u = t - knots[k];
+	    s += c[k]*u*u*u;
+	}
+	return s;
+    }
+
+    static double secondDerivative(double[] knots, double[] c, double t) {
+	double s = 0;
+	for ( int k=0; k < knots.length && knots[k] < t; k++ ) {
+	    s += 6*c[k]*(t - knots[k]);
+	}
+	return s;
+    }
+
+    private static void check(boolean condition, String message) throws Exception {
+	if ( !condition ) {
+	    throw new Exception(message);
+	}
+    }
+
+}
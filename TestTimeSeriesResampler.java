@@ -0,0 +1,331 @@
+package gb.esac.timeseries;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Checks the two-pointer sweep of TimeSeriesResampler on bins of variable width separated by gaps:
+ * against a direct computation of the exposure-weighted means over all pairs of bins, against the previous
+ * implementation with Bin objects, and, for a grid of more than one chunk, against the sequential sweep.
+ * Then checks the fast path for grids whose bins are whole multiples of constant-width old bins: exact sums of
+ * counts, the fallback to rates, agreement with the sweep, and the grids it must not take. Last, checks the rate
+ * from the cumulative sums of getRateFromTo against a direct overlap sum on intervals that start, end or lie in gaps.
+ */
+
+public class TestTimeSeriesResampler {
+
+    private static Logger logger  = Logger.getLogger(TestTimeSeriesResampler.class);
+
+    public static void main(String[] args) throws Exception  {
+
+	Random random = new Random(1808);
+	TimeSeries ts = makeGappedTimeSeries(random, 3000, 0.01);
+	double duration = ts.duration();
+
+	//  New bins of variable width, some of them inside gaps or straddling several old bins
+	int nNewBins = 700;
+	double[] newBinEdges = new double[2*nNewBins];
+	double t = 0;
+	for ( int i=0; i < nNewBins; i++ ) {
+	    double width = (0.2 + 2*random.nextDouble())*duration/(1.2*nNewBins);
+	    newBinEdges[2*i] = t;
+	    newBinEdges[2*i+1] = Math.min(duration, t + width);
+	    t += width;
+	}
+
+	TimeSeries resampled = TimeSeriesResampler.resample(ts, newBinEdges);
+	double[] rates = resampled.getRates();
+	double[] errors = resampled.getErrorsOnRates();
+
+	//  Direct computation
+	double[][] direct = directResample(ts, newBinEdges);
+	int nGapBins = 0;
+	double maxDifference = 0;
+	for ( int i=0; i < nNewBins; i++ ) {
+	    if ( Double.isNaN(direct[0][i]) ) {
+		check(Double.isNaN(rates[i]), "New bin "+i+" is in a gap but its rate is "+rates[i]);
+		nGapBins++;
+		continue;
+	    }
+	    maxDifference = Math.max(maxDifference, relativeDifference(rates[i], direct[0][i]));
+	    maxDifference = Math.max(maxDifference, relativeDifference(errors[i], direct[1][i]));
+	}
+	logger.info("Sweep vs direct: "+nNewBins+" new bins ("+nGapBins+" in gaps), max relative difference = "+maxDifference);
+	check(nGapBins > 0, "No new bin falls in a gap: the test does not cover gaps");
+	check(maxDifference < 1e-12, "Sweep and direct resampling differ by "+maxDifference);
+
+	//  Previous implementation with Bin objects, on a series without NaN rates and on the new bins that have data
+	TimeSeries complete = makeGappedTimeSeries(random, 3000, 0);
+	resampled = TimeSeriesResampler.resample(complete, newBinEdges);
+	rates = resampled.getRates();
+	errors = resampled.getErrorsOnRates();
+	TimeSeries withBinObjects = TimeSeriesResampler.resampleWithBinObjects(complete, newBinEdges);
+	double[] oldRates = withBinObjects.getRates();
+	double[] oldErrors = withBinObjects.getErrorsOnRates();
+	maxDifference = 0;
+	for ( int i=0; i < nNewBins; i++ ) {
+	    if ( !Double.isNaN(rates[i]) ) {
+		maxDifference = Math.max(maxDifference, relativeDifference(rates[i], oldRates[i]));
+		maxDifference = Math.max(maxDifference, relativeDifference(errors[i], oldErrors[i]));
+	    }
+	}
+	logger.info("Sweep vs Bin objects: max relative difference = "+maxDifference);
+	check(maxDifference < 1e-12, "Sweep and Bin-object resampling differ by "+maxDifference);
+
+	//  A grid of several chunks is resampled in parallel, and must give exactly the sequential result
+	TimeSeries longTs = makeGappedTimeSeries(random, 100000, 0.01);
+	int nFineBins = 3*TimeSeriesResampler.BINS_PER_CHUNK + 123;
+	double fineWidth = longTs.duration()/nFineBins;
+	double[] fineBinEdges = new double[2*nFineBins];
+	for ( int i=0; i < nFineBins; i++ ) {
+	    fineBinEdges[2*i] = i*fineWidth;
+	    fineBinEdges[2*i+1] = (i+1)*fineWidth;
+	}
+	TimeSeries parallel = TimeSeriesResampler.resample(longTs, fineBinEdges);
+	double[] sequentialRates = new double[nFineBins];
+	double[] sequentialErrors = new double[nFineBins];
+	TimeSeriesResampler.sweep(longTs.internalBinEdges(), longTs.internalRates(), longTs.internalErrorsOnRates(), longTs.nBins(), fineBinEdges, 0, nFineBins, 0, sequentialRates, sequentialErrors);
+	TimeSeries sequential = new TimeSeries(longTs.tStart(), fineBinEdges, sequentialRates, sequentialErrors);
+	check(Arrays.equals(parallel.getRates(), sequential.getRates()), "Parallel and sequential rates differ");
+	check(Arrays.equals(parallel.getErrorsOnRates(), sequential.getErrorsOnRates()), "Parallel and sequential errors differ");
+	logger.info("Parallel vs sequential sweep: identical on "+nFineBins+" bins");
+
+	checkIntegerRatio(random);
+	checkRateFromTo(random);
+	logger.info("TestTimeSeriesResampler passed");
+    }
+
+    static void checkIntegerRatio(Random random) throws Exception {
+
+	//  Counts on 4000 contiguous bins of 0.25 s, summed by 8 into bins of 2 s
+	int nBins = 4000;
+	int k = 8;
+	double oldWidth = 0.25;
+	double[] binEdges = new double[2*nBins];
+	double[] counts = new double[nBins];
+	for ( int j=0; j < nBins; j++ ) {
+	    binEdges[2*j] = j*oldWidth;
+	    binEdges[2*j+1] = (j+1)*oldWidth;
+	    counts[j] = random.nextInt(5);
+	}
+	TimeSeries countsTs = new TimeSeries(0, binEdges, counts);
+	double[] newBinEdges = uniformGrid(0, k*oldWidth, nBins/k);
+	check(TimeSeriesResampler.integerRatio(countsTs, newBinEdges) == k, "Ratio of "+k+" not found");
+	TimeSeries summed = TimeSeriesResampler.resample(countsTs, newBinEdges);
+	check(!summed.errorsAreSet(), "Summed counts are not returned as a counts series");
+	double[] sums = summed.getBinHeights();
+	for ( int i=0; i < nBins/k; i++ ) {
+	    double sum = 0;
+	    for ( int j=i*k; j < (i+1)*k; j++ ) {
+		sum += counts[j];
+	    }
+	    check(sums[i] == sum, "New bin "+i+" holds "+sums[i]+" counts instead of "+sum);
+	}
+	logger.info("Integer ratio: exact counts in "+sums.length+" bins of "+k+" old bins");
+
+	//  A grid that extends beyond the data leaves its last bin partly filled, and gives rates
+	double[] longerBinEdges = uniformGrid(0, k*oldWidth, nBins/k + 1);
+	TimeSeries partlyFilled = TimeSeriesResampler.resample(countsTs, longerBinEdges);
+	check(partlyFilled.errorsAreSet(), "A partly filled grid is returned as a counts series");
+	double[] direct = directResample(countsTs, longerBinEdges)[0];
+	double maxDifference = 0;
+	for ( int i=0; i < nBins/k; i++ ) {
+	    maxDifference = Math.max(maxDifference, relativeDifference(partlyFilled.getRates()[i], direct[i]));
+	}
+	check(maxDifference < 1e-12, "Rates of a partly filled grid differ from the direct computation by "+maxDifference);
+	check(Double.isNaN(partlyFilled.getRates()[nBins/k]), "New bin without data is not NaN");
+
+	//  The same counts given as rates with errors give rates
+	double[] countRates = new double[nBins];
+	double[] countErrors = new double[nBins];
+	for ( int j=0; j < nBins; j++ ) {
+	    countRates[j] = counts[j]/oldWidth;
+	    countErrors[j] = Math.sqrt(counts[j])/oldWidth;
+	}
+	TimeSeries withErrors = TimeSeriesResampler.resample(new TimeSeries(0, binEdges, countRates, countErrors), newBinEdges);
+	check(withErrors.errorsAreSet(), "A series with errors is returned as a counts series");
+	logger.info("Integer ratio: rates returned for a partly filled grid and for a series with errors");
+
+	//  Gaps and NaN rates on a grid of 1 s bins, against the sweep
+	nBins = 5000;
+	k = 5;
+	binEdges = new double[2*nBins];
+	double[] rates = new double[nBins];
+	double[] errors = new double[nBins];
+	long g = 0;
+	for ( int j=0; j < nBins; j++ ) {
+	    if ( j > 0 && random.nextDouble() < 0.02 ) {
+		g += 1 + random.nextInt(12);
+	    }
+	    binEdges[2*j] = g;
+	    binEdges[2*j+1] = g + 1;
+	    rates[j] = random.nextDouble() < 0.05 ? Double.NaN : 5 + 3*random.nextDouble();
+	    errors[j] = 0.5 + random.nextDouble();
+	    g++;
+	}
+	TimeSeries gapped = new TimeSeries(0, binEdges, rates, errors);
+	int nNewBins = (int) (g/k);
+	newBinEdges = uniformGrid(0, k, nNewBins);
+	check(TimeSeriesResampler.integerRatio(gapped, newBinEdges) == k, "Ratio of "+k+" not found on a gapped series");
+	TimeSeries fast = TimeSeriesResampler.resample(gapped, newBinEdges);
+	double[] sweepRates = new double[nNewBins];
+	double[] sweepErrors = new double[nNewBins];
+	TimeSeriesResampler.sweep(gapped.internalBinEdges(), gapped.internalRates(), gapped.internalErrorsOnRates(), nBins, newBinEdges, 0, nNewBins, 0, sweepRates, sweepErrors);
+	double[] fastRates = fast.getRates();
+	double[] fastErrors = fast.getErrorsOnRates();
+	int nNaN = 0;
+	maxDifference = 0;
+	for ( int i=0; i < nNewBins; i++ ) {
+	    if ( Double.isNaN(sweepRates[i]) ) {
+		check(Double.isNaN(fastRates[i]), "New bin "+i+" has no data but its rate is "+fastRates[i]);
+		nNaN++;
+		continue;
+	    }
+	    maxDifference = Math.max(maxDifference, relativeDifference(fastRates[i], sweepRates[i]));
+	    maxDifference = Math.max(maxDifference, relativeDifference(fastErrors[i], sweepErrors[i]));
+	}
+	logger.info("Integer ratio vs sweep: "+nNewBins+" new bins ("+nNaN+" without data), max relative difference = "+maxDifference);
+	check(nNaN > 0, "No new bin falls in a gap: the test does not cover gaps");
+	check(maxDifference < 1e-12, "Integer ratio and sweep resampling differ by "+maxDifference);
+
+	//  Grids the fast path must not take
+	check(TimeSeriesResampler.integerRatio(gapped, uniformGrid(0.3, k, nNewBins - 1)) == 0, "Shifted grid taken as an integer ratio");
+	check(TimeSeriesResampler.integerRatio(gapped, uniformGrid(0, 2.5, nNewBins)) == 0, "Ratio of 2.5 taken as an integer ratio");
+	check(TimeSeriesResampler.integerRatio(gapped, uniformGrid(0, 0.5, nNewBins)) == 0, "Bins narrower than the old bins taken as an integer ratio");
+	double[] unevenBinEdges = uniformGrid(0, k, nNewBins);
+	unevenBinEdges[2*7+1] += 1;
+	unevenBinEdges[2*8] += 1;
+	check(TimeSeriesResampler.integerRatio(gapped, unevenBinEdges) == 0, "Grid of unequal bins taken as an integer ratio");
+	TimeSeries variableWidth = makeGappedTimeSeries(random, 1000, 0);
+	check(TimeSeriesResampler.integerRatio(variableWidth, uniformGrid(0, 4, 200)) == 0, "Bins of variable width taken as an integer ratio");
+	logger.info("Integer ratio: misaligned grids rejected");
+    }
+
+    static void checkRateFromTo(Random random) throws Exception {
+	TimeSeries gapped = makeGappedTimeSeries(random, 2000, 0.05);
+	double tStart = 1000;
+	TimeSeries ts = new TimeSeries(tStart, gapped.getBinEdges(), gapped.getRates(), gapped.getErrorsOnRates());
+	double[] binEdges = ts.getBinEdges();
+	int nBins = ts.nBins();
+	int nIntervals = 4000;
+	int nInGaps = 0;
+	double maxDifference = 0;
+	for ( int n=0; n < nIntervals; n++ ) {
+	    //  Relative times of the ends: anywhere, in a gap or NaN bin, or within one bin
+	    int j = random.nextInt(nBins-1);
+	    double a;
+	    double b;
+	    switch ( n % 4 ) {
+	    case 0:
+		a = ts.duration()*random.nextDouble();
+		b = a + 50*random.nextDouble();
+		break;
+	    case 1:
+		//  From the gap (possibly empty) after bin j, into the data
+		a = binEdges[2*j+1] + (binEdges[2*j+2] - binEdges[2*j+1])*random.nextDouble();
+		b = a + 20*random.nextDouble();
+		break;
+	    case 2:
+		//  From the data, to the gap after bin j
+		b = binEdges[2*j+1] + (binEdges[2*j+2] - binEdges[2*j+1])*random.nextDouble();
+		a = b - 20*random.nextDouble();
+		break;
+	    default:
+		//  Within bin j
+		a = binEdges[2*j] + (binEdges[2*j+1] - binEdges[2*j])*random.nextDouble();
+		b = a + (binEdges[2*j+1] - a)*random.nextDouble();
+	    }
+	    //  The direct sums use the relative times that the absolute ones round to
+	    double t1 = tStart + a;
+	    double t2 = tStart + b;
+	    double[] rateAndError = TimeSeriesResampler.getRateFromTo(ts, t1, t2);
+	    double[][] direct = directResample(ts, new double[] {t1 - tStart, t2 - tStart});
+	    if ( Double.isNaN(direct[0][0]) ) {
+		check(Double.isNaN(rateAndError[0]) && Double.isNaN(rateAndError[1]), "Interval ["+a+", "+b+"] holds no data but its rate is "+rateAndError[0]);
+		nInGaps++;
+		continue;
+	    }
+	    maxDifference = Math.max(maxDifference, relativeDifference(rateAndError[0], direct[0][0]));
+	    maxDifference = Math.max(maxDifference, relativeDifference(rateAndError[1], direct[1][0]));
+	}
+	//  Entirely in a gap
+	for ( int j=0; j < nBins-1; j++ ) {
+	    if ( binEdges[2*j+2] - binEdges[2*j+1] > 1e-3 ) {
+		double[] rateAndError = TimeSeriesResampler.getRateFromTo(ts, tStart + binEdges[2*j+1] + 1e-4, tStart + binEdges[2*j+2] - 1e-4);
+		check(Double.isNaN(rateAndError[0]), "Interval in the gap after bin "+j+" has a rate of "+rateAndError[0]);
+		nInGaps++;
+	    }
+	}
+	logger.info("getRateFromTo vs direct: "+nIntervals+" intervals, "+nInGaps+" without data, max relative difference = "+maxDifference);
+	check(nInGaps > 0, "No interval falls in a gap: the test does not cover gaps");
+	check(maxDifference < 1e-9, "getRateFromTo and direct sums differ by "+maxDifference);
+    }
+
+    static double[] uniformGrid(double origin, double width, int nBins) {
+	double[] binEdges = new double[2*nBins];
+	for ( int i=0; i < nBins; i++ ) {
+	    binEdges[2*i] = origin + i*width;
+	    binEdges[2*i+1] = origin + (i+1)*width;
+	}
+	return binEdges;
+    }
+
+    //  Bins of 0.5 to 1.5 s, with gaps of up to 10 s after 3% of them, and a fraction of NaN rates
+    static TimeSeries makeGappedTimeSeries(Random random, int nBins, double nanFraction) {
+	double[] binEdges = new double[2*nBins];
+	double[] rates = new double[nBins];
+	double[] errors = new double[nBins];
+	double t = 0;
+	for ( int i=0; i < nBins; i++ ) {
+	    if ( i > 0 && random.nextDouble() < 0.03 ) {
+		t += 10*random.nextDouble();
+	    }
+	    double width = 0.5 + random.nextDouble();
+	    binEdges[2*i] = t;
+	    binEdges[2*i+1] = t + width;
+	    rates[i] = random.nextDouble() < nanFraction ? Double.NaN : 5 + 3*random.nextDouble();
+	    errors[i] = 0.5 + random.nextDouble();
+	    t += width;
+	}
+	return new TimeSeries(0, binEdges, rates, errors);
+    }
+
+    //  Exposure-weighted means over every pair of old and new bins
+    static double[][] directResample(TimeSeries ts, double[] newBinEdges) {
+	double[] binEdges = ts.getBinEdges();
+	double[] rates = ts.getRates();
+	double[] errors = ts.getErrorsOnRates();
+	int nNewBins = newBinEdges.length/2;
+	double[][] ratesAndErrors = new double[2][nNewBins];
+	for ( int i=0; i < nNewBins; i++ ) {
+	    double counts = 0;
+	    double variance = 0;
+	    double exposure = 0;
+	    for ( int j=0; j < ts.nBins(); j++ ) {
+		double overlap = Math.min(newBinEdges[2*i+1], binEdges[2*j+1]) - Math.max(newBinEdges[2*i], binEdges[2*j]);
+		if ( overlap > 0 && !Double.isNaN(rates[j]) ) {
+		    counts += rates[j]*overlap;
+		    variance += Math.pow(errors[j]*overlap, 2);
+		    exposure += overlap;
+		}
+	    }
+	    ratesAndErrors[0][i] = exposure > 0 ? counts/exposure : Double.NaN;
+	    ratesAndErrors[1][i] = exposure > 0 ? Math.sqrt(variance)/exposure : Double.NaN;
+	}
+	return ratesAndErrors;
+    }
+
+    static double relativeDifference(double a, double b) {
+	return Math.abs(a - b)/Math.max(Math.abs(b), Double.MIN_NORMAL);
+    }
+
+    private static void check(boolean condition, String message) throws Exception {
+	if ( !condition ) {
+	    throw new Exception(message);
+	}
+    }
+
+}
@@ -0,0 +1,140 @@
+package gb.esac.timeseries;
+
+import gb.esac.binner.BinningException;
+import java.util.Arrays;
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>TimeSeriesArithmetic</code> adds, subtracts, multiplies and divides the rates of time series, bin
+ * by bin, or by a constant. The inputs are never modified: each operation returns a new series with rates and errors.
+ *
+ * The result has the bins of the first series. When the second series has other bins, it is first resampled onto
+ * them, and the bins it does not cover are NaN. The errors are propagated to first order, assuming independent
+ * series:
+ * <pre>
+ * a+b, a-b :  sqrt(ea^2 + eb^2)
+ * a*b      :  sqrt((b*ea)^2 + (a*eb)^2)
+ * a/b      :  sqrt((ea/b)^2 + (a*eb/b^2)^2)
+ * </pre>
+ * Constants are exact: they leave the errors unchanged when added and scale them by |c| when multiplied.
+ *
+ * All operations work on whole arrays with the kernels of <code>ArrayArithmetic</code>.
+ *
+ */
+
+public final class TimeSeriesArithmetic {
+
+    private static Logger logger  = Logger.getLogger(TimeSeriesArithmetic.class);
+
+    private TimeSeriesArithmetic() {}
+
+    public static TimeSeries add(TimeSeries ts1, TimeSeries ts2) throws BinningException {
+	logger.info("Adding TimeSeries");
+	TimeSeries aligned = align(ts1, ts2);
+	IArrayArithmetic arithmetic = ArrayArithmetic.get();
+	int n = ts1.nBins();
+	double[] rates = new double[n];
+	double[] errors = new double[n];
+	arithmetic.add(ts1.internalRates(), aligned.internalRates(), rates, n);
+	arithmetic.quadratureSum(ts1.internalErrorsOnRates(), aligned.internalErrorsOnRates(), errors, n);
+	return new TimeSeries(ts1.tStart(), ts1.internalBinEdges(), rates, errors);
+    }
+
+    public static TimeSeries subtract(TimeSeries ts1, TimeSeries ts2) throws BinningException {
+	logger.info("Subtracting TimeSeries");
+	TimeSeries aligned = align(ts1, ts2);
+	IArrayArithmetic arithmetic = ArrayArithmetic.get();
+	int n = ts1.nBins();
+	double[] rates = new double[n];
+	double[] errors = new double[n];
+	arithmetic.subtract(ts1.internalRates(), aligned.internalRates(), rates, n);
+	arithmetic.quadratureSum(ts1.internalErrorsOnRates(), aligned.internalErrorsOnRates(), errors, n);
+	return new TimeSeries(ts1.tStart(), ts1.internalBinEdges(), rates, errors);
+    }
+
+    public static TimeSeries multiply(TimeSeries ts1, TimeSeries ts2) throws BinningException {
+	logger.info("Multiplying TimeSeries");
+	TimeSeries aligned = align(ts1, ts2);
+	IArrayArithmetic arithmetic = ArrayArithmetic.get();
+	int n = ts1.nBins();
+	double[] a = ts1.internalRates();
+	double[] b = aligned.internalRates();
+	double[] rates = new double[n];
+	double[] errors = new double[n];
+	double[] work = new double[n];
+	arithmetic.multiply(a, b, rates, n);
+	arithmetic.multiply(ts1.internalErrorsOnRates(), b, errors, n);
+	arithmetic.multiply(a, aligned.internalErrorsOnRates(), work, n);
+	arithmetic.quadratureSum(errors, work, errors, n);
+	return new TimeSeries(ts1.tStart(), ts1.internalBinEdges(), rates, errors);
+    }
+
+    public static TimeSeries divide(TimeSeries ts1, TimeSeries ts2) throws BinningException {
+	logger.info("Dividing TimeSeries");
+	TimeSeries aligned = align(ts1, ts2);
+	IArrayArithmetic arithmetic = ArrayArithmetic.get();
+	int n = ts1.nBins();
+	double[] b = aligned.internalRates();
+	double[] rates = new double[n];
+	double[] errors = new double[n];
+	double[] work = new double[n];
+	arithmetic.divide(ts1.internalRates(), b, rates, n);
+	arithmetic.divide(ts1.internalErrorsOnRates(), b, errors, n);
+	//  a*eb/b^2 = (a/b)*eb/b
+	arithmetic.multiply(rates, aligned.internalErrorsOnRates(), work, n);
+	arithmetic.divide(work, b, work, n);
+	arithmetic.quadratureSum(errors, work, errors, n);
+	return new TimeSeries(ts1.tStart(), ts1.internalBinEdges(), rates, errors);
+    }
+
+    public static TimeSeries add(TimeSeries ts, double constant) {
+	logger.info("Adding a constant ("+constant+")");
+	int n = ts.nBins();
+	double[] rates = new double[n];
+	ArrayArithmetic.get().addOffset(ts.internalRates(), constant, rates, n);
+	return new TimeSeries(ts.tStart(), ts.internalBinEdges(), rates, ts.internalErrorsOnRates());
+    }
+
+    public static TimeSeries subtract(TimeSeries ts, double constant) {
+	return add(ts, -constant);
+    }
+
+    public static TimeSeries multiply(TimeSeries ts, double constant) {
+	logger.info("Multiplying by a constant ("+constant+")");
+	IArrayArithmetic arithmetic = ArrayArithmetic.get();
+	int n = ts.nBins();
+	double[] rates = new double[n];
+	double[] errors = new double[n];
+	arithmetic.scale(ts.internalRates(), constant, rates, n);
+	arithmetic.scale(ts.internalErrorsOnRates(), Math.abs(constant), errors, n);
+	return new TimeSeries(ts.tStart(), ts.internalBinEdges(), rates, errors);
+    }
+
+    public static TimeSeries divide(TimeSeries ts, double constant) {
+	if ( constant == 0 ) {
+	    throw new IllegalArgumentException("Cannot divide a TimeSeries by zero");
+	}
+	return multiply(ts, 1/constant);
+    }
+
+    /**
+     * Returns ts2 on the bins of ts1: ts2 itself if they already share them, and ts2 resampled onto them otherwise.
+     */
+    static TimeSeries align(TimeSeries ts1, TimeSeries ts2) throws BinningException {
+	if ( ts1.tStart() == ts2.tStart() && Arrays.equals(ts1.internalBinEdges(), ts2.internalBinEdges()) ) {
+	    return ts2;
+	}
+	logger.info("  TimeSeries have different bins: Resampling the second onto the bins of the first");
+	//  Bin edges are relative to the start of each series
+	double offset = ts1.tStart() - ts2.tStart();
+	double[] binEdges = ts1.internalBinEdges();
+	double[] newBinEdges = new double[binEdges.length];
+	for ( int i=0; i < binEdges.length; i++ ) {
+	    newBinEdges[i] = binEdges[i] + offset;
+	}
+	return TimeSeriesResampler.resample(ts2, newBinEdges);
+    }
+
+}
@@ -0,0 +1,274 @@
+package gb.esac.timeseries;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>TimeSeriesClipper</code> flags outliers in the rates of a time series, such as background flares or
+ * telemetry glitches, and returns a cleaned series with the same bins in which the outliers are NaN.
+ *
+ * Two methods are available:
+ * <ul>
+ * <li>iterative sigma-clipping, which rejects the rates further than nSigma standard deviations from the mean of the
+ * remaining rates, and repeats until no rate is rejected; each iteration is a single pass that updates the sums;
+ * <li>running median clipping, which rejects the rates further than nSigma robust standard deviations (1.4826 times
+ * the median absolute deviation) from the median of a sliding window of bins centred on each bin.
+ * </ul>
+ *
+ * The running median and MAD are maintained in an indexed order-statistic structure (a Fenwick tree over the ranks of
+ * the rates), so that adding and removing a rate costs O(log n), the median O(log n), and the MAD O(log^2 n) through
+ * a binary search on the deviations below and above the median. The windows do not extend across real gaps, and NaN
+ * bins are ignored.
+ *
+ */
+
+public final class TimeSeriesClipper {
+
+    private static Logger logger  = Logger.getLogger(TimeSeriesClipper.class);
+
+    //  Ratio of the standard deviation to the MAD for a normal distribution
+    private static final double MAD_TO_SIGMA = 1.4826;
+
+    private TimeSeriesClipper() {}
+
+    /**
+     * Iterative sigma-clipping about the mean.
+     *
+     * @param ts a <code>TimeSeries</code> value
+     * @param nSigma a <code>double</code> value
+     * @param maxIterations an <code>int</code> value
+     * @return a <code>ClippingResult</code> value
+     */
+    public static ClippingResult sigmaClip(TimeSeries ts, double nSigma, int maxIterations) {
+	if ( !(nSigma > 0) ) {
+	    throw new IllegalArgumentException("nSigma must be positive: nSigma = "+nSigma);
+	}
+	if ( maxIterations < 1 ) {
+	    throw new IllegalArgumentException("Number of iterations must be at least 1: maxIterations = "+maxIterations);
+	}
+	logger.info("Sigma-clipping TimeSeries at "+nSigma+" sigma");
+	double[] rates = ts.internalRates();
+	ValidityMask validity = ts.validity();
+	int nBins = ts.nBins();
+	BitSet outliers = new BitSet(nBins);
+	int n = 0;
+	double sum = 0;
+	double sumOfSquares = 0;
+	for ( int i = validity.nextValid(0); i < nBins; i = validity.nextValid(i+1) ) {
+	    sum += rates[i];
+	    sumOfSquares += rates[i]*rates[i];
+	    n++;
+	}
+	int iteration = 0;
+	while ( iteration < maxIterations && n > 1 ) {
+	    iteration++;
+	    double mean = sum/n;
+	    double limit = nSigma*Math.sqrt(Math.max(0, (sumOfSquares - n*mean*mean)/(n-1)));
+	    int nRejected = 0;
+	    for ( int i = validity.nextValid(0); i < nBins; i = validity.nextValid(i+1) ) {
+		if ( !outliers.get(i) && Math.abs(rates[i] - mean) > limit ) {
+		    outliers.set(i);
+		    sum -= rates[i];
+		    sumOfSquares -= rates[i]*rates[i];
+		    n--;
+		    nRejected++;
+		}
+	    }
+	    logger.info("  Iteration "+iteration+": mean = "+mean+", rejected "+nRejected+" bins");
+	    if ( nRejected == 0 ) break;
+	}
+	return new ClippingResult(makeMaskedTimeSeries(ts, outliers), outliers, iteration);
+    }
+
+    /**
+     * Clipping about the running median, with the running MAD as scale.
+     *
+     * @param ts a <code>TimeSeries</code> value
+     * @param windowBins an <code>int</code> value: the odd number of bins in the window
+     * @param nSigma a <code>double</code> value
+     * @return a <code>ClippingResult</code> value
+     */
+    public static ClippingResult clipRunningMedian(TimeSeries ts, int windowBins, double nSigma) {
+	if ( windowBins < 3 || windowBins % 2 == 0 ) {
+	    throw new IllegalArgumentException("Window must be an odd number of bins of at least 3: windowBins = "+windowBins);
+	}
+	if ( !(nSigma > 0) ) {
+	    throw new IllegalArgumentException("nSigma must be positive: nSigma = "+nSigma);
+	}
+	logger.info("Clipping TimeSeries at "+nSigma+" sigma about the running median of "+windowBins+" bins");
+	double[] rates = ts.internalRates();
+	ValidityMask validity = ts.validity();
+	int nBins = ts.nBins();
+	BitSet outliers = new BitSet(nBins);
+	if ( validity.nValid() == 0 ) {
+	    return new ClippingResult(makeMaskedTimeSeries(ts, outliers), outliers, 1);
+	}
+	double[] sortedRates = validity.validValues(rates).clone();
+	Arrays.sort(sortedRates);
+	OrderStatistics window = new OrderStatistics(sortedRates);
+	int h = windowBins/2;
+	int[] runs = TimeSeriesSmoother.findRuns(ts);
+	for ( int r=0; r < runs.length-1; r++ ) {
+	    int from = runs[r];
+	    int to = runs[r+1];
+	    //  The window holds the valid bins in [lo, hi)
+	    int lo = from;
+	    int hi = from;
+	    for ( int i=from; i < to; i++ ) {
+		int newHi = Math.min(to, i + h + 1);
+		int newLo = Math.max(from, i - h);
+		for ( ; hi < newHi; hi++ ) {
+		    if ( validity.isValid(hi) ) window.add(rates[hi]);
+		}
+		for ( ; lo < newLo; lo++ ) {
+		    if ( validity.isValid(lo) ) window.remove(rates[lo]);
+		}
+		if ( validity.isValid(i) ) {
+		    double median = window.median();
+		    double mad = window.medianAbsoluteDeviation(median);
+		    if ( mad > 0 && Math.abs(rates[i] - median) > nSigma*MAD_TO_SIGMA*mad ) {
+			outliers.set(i);
+		    }
+		}
+	    }
+	    for ( ; lo < hi; lo++ ) {
+		if ( validity.isValid(lo) ) window.remove(rates[lo]);
+	    }
+	}
+	logger.info("  Rejected "+outliers.cardinality()+" bins");
+	return new ClippingResult(makeMaskedTimeSeries(ts, outliers), outliers, 1);
+    }
+
+    private static TimeSeries makeMaskedTimeSeries(TimeSeries ts, BitSet outliers) {
+	if ( ts.errorsAreSet() ) {
+	    double[] rates = ts.getRates();
+	    double[] errors = ts.getErrorsOnRates();
+	    for ( int i = outliers.nextSetBit(0); i >= 0; i = outliers.nextSetBit(i+1) ) {
+		rates[i] = Double.NaN;
+		errors[i] = Double.NaN;
+	    }
+	    return new TimeSeries(ts.tStart(), ts.internalBinEdges(), rates, errors);
+	}
+	double[] binHeights = ts.getBinHeights();
+	for ( int i = outliers.nextSetBit(0); i >= 0; i = outliers.nextSetBit(i+1) ) {
+	    binHeights[i] = Double.NaN;
+	}
+	return new TimeSeries(ts.tStart(), ts.internalBinEdges(), binHeights);
+    }
+
+    /**
+     * Multiset of values taken from a fixed sorted list, with the k-th smallest value in O(log n).
+     */
+    static final class OrderStatistics {
+
+	private final double[] values;
+	private final int[] tree;
+	private final int topStep;
+	private int size = 0;
+
+	OrderStatistics(double[] sortedValues) {
+	    this.values = sortedValues;
+	    this.tree = new int[sortedValues.length+1];
+	    this.topStep = Integer.highestOneBit(Math.max(1, sortedValues.length));
+	}
+
+	int size() { return this.size; }
+
+	void add(double value) {
+	    update(indexOf(value), 1);
+	    size++;
+	}
+
+	void remove(double value) {
+	    update(indexOf(value), -1);
+	    size--;
+	}
+
+	/**
+	 * The k-th smallest value, for k from 0 to size-1.
+	 */
+	double select(int k) {
+	    int pos = 0;
+	    int remaining = k+1;
+	    for ( int step = topStep; step > 0; step >>= 1 ) {
+		if ( pos + step < tree.length && tree[pos+step] < remaining ) {
+		    pos += step;
+		    remaining -= tree[pos];
+		}
+	    }
+	    return values[pos];
+	}
+
+	double median() {
+	    return size % 2 == 1 ? select(size/2) : 0.5*(select(size/2-1) + select(size/2));
+	}
+
+	/**
+	 * Median of |x - median| over the values x.
+	 */
+	double medianAbsoluteDeviation(double median) {
+	    int below = countBelow(median);
+	    return size % 2 == 1 ? deviation(size/2, median, below) : 0.5*(deviation(size/2-1, median, below) + deviation(size/2, median, below));
+	}
+
+	//  The k-th smallest deviation is the k-th of the merge of two ascending lists: median - x for the values below
+	//  the median (from the largest down) and x - median for the others
+	private double deviation(int k, double median, int below) {
+	    int above = size - below;
+	    int lo = Math.max(0, k+1-above);
+	    int hi = Math.min(k+1, below);
+	    while ( lo < hi ) {
+		int mid = (lo + hi) >>> 1;
+		if ( median - select(below-1-mid) < select(below+k-mid) - median ) {
+		    lo = mid + 1;
+		}
+		else {
+		    hi = mid;
+		}
+	    }
+	    double d = 0;
+	    if ( lo > 0 ) {
+		d = median - select(below-lo);
+	    }
+	    if ( k-lo >= 0 ) {
+		d = Math.max(d, select(below+k-lo) - median);
+	    }
+	    return d;
+	}
+
+	private int countBelow(double value) {
+	    //  Number of entries of values smaller than value
+	    int index = 0;
+	    int end = values.length;
+	    while ( index < end ) {
+		int mid = (index + end) >>> 1;
+		if ( values[mid] < value ) {
+		    index = mid + 1;
+		}
+		else {
+		    end = mid;
+		}
+	    }
+	    int count = 0;
+	    for ( int i = index; i > 0; i -= i & (-i) ) {
+		count += tree[i];
+	    }
+	    return count;
+	}
+
+	private int indexOf(double value) {
+	    return Arrays.binarySearch(values, value);
+	}
+
+	private void update(int index, int delta) {
+	    for ( int i = index+1; i < tree.length; i += i & (-i) ) {
+		tree[i] += delta;
+	    }
+	}
+
+    }
+
+}
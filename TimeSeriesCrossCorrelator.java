@@ -0,0 +1,242 @@
+package gb.esac.timeseries;
+
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import gb.esac.binner.BinningException;
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>TimeSeriesCrossCorrelator</code> estimates the time lag between two time series
+ * (e.g. two energy bands of the same source) from the peak of their cross-correlation function (CCF).
+ *
+ * Both series are first resampled onto a common grid covering the interval where they overlap using
+ * <code>TimeSeriesResampler</code>. The mean-subtracted rates are zero-padded to a power of two at least twice
+ * as long as the data, so that the circular correlation computed with FFTs equals the linear one, and the CCF
+ * is obtained in O(n log n) from a single complex forward FFT of both series and one backward FFT.
+ * Bins that are empty in either series after resampling are excluded.
+ *
+ * The uncertainty on the lag is estimated by bootstrapping with flux randomisation and random subset selection
+ * (Peterson et al. 1998, PASP 110, 660). Each realisation has its own generator split from the seed, and the
+ * realisations are run in parallel, so that results are reproducible for a given seed.
+ *
+ */
+
+public final class TimeSeriesCrossCorrelator {
+
+    private static Logger logger  = Logger.getLogger(TimeSeriesCrossCorrelator.class);
+
+    public static CrossCorrelation crossCorrelate(TimeSeries ts1, TimeSeries ts2) throws TimeSeriesException, BinningException {
+	return crossCorrelate(ts1, ts2, 0, 0);
+    }
+
+    public static CrossCorrelation crossCorrelate(TimeSeries ts1, TimeSeries ts2, int nBootstraps, long seed) throws TimeSeriesException, BinningException {
+	double binWidth = Math.max(ts1.avgBinWidth(), ts2.avgBinWidth());
+	return crossCorrelate(ts1, ts2, binWidth, nBootstraps, seed);
+    }
+
+    /**
+     * Cross-correlate two time series on a common grid.
+     *
+     * @param ts1 a <code>TimeSeries</code> value: the reference series
+     * @param ts2 a <code>TimeSeries</code> value: a positive lag means that ts2 is delayed with respect to ts1
+     * @param binWidth a <code>double</code> value: the bin width of the common grid
+     * @param nBootstraps an <code>int</code> value: the number of bootstrap realisations (0 for none)
+     * @param seed a <code>long</code> value: the seed of the bootstrap realisations
+     * @return a <code>CrossCorrelation</code> value
+     * @exception TimeSeriesException if the series do not overlap by at least two bins, or share fewer than two valid bins
+     * @exception BinningException if an error occurs while resampling
+     */
+    public static CrossCorrelation crossCorrelate(TimeSeries ts1, TimeSeries ts2, double binWidth, int nBootstraps, long seed) throws TimeSeriesException, BinningException {
+	logger.info("Cross-correlating TimeSeries using binWidth = "+binWidth);
+	if ( binWidth <= 0 ) {
+	    throw new TimeSeriesException("BinWidth must be positive");
+	}
+	if ( nBootstraps < 0 ) {
+	    throw new TimeSeriesException("Number of bootstrap realisations must be positive or zero");
+	}
+	double startOfOverlap = Math.max(ts1.tStart(), ts2.tStart());
+	double stopOfOverlap = Math.min(ts1.tStop(), ts2.tStop());
+	final int n = (int) Math.floor((stopOfOverlap - startOfOverlap)/binWidth);
+	if ( n < 2 ) {
+	    throw new TimeSeriesException("TimeSeries do not overlap by at least two bins of width "+binWidth);
+	}
+	logger.info("  Common grid has "+n+" bins from "+startOfOverlap+" to "+(startOfOverlap + n*binWidth));
+
+	//  Resample both series onto the common grid
+	TimeSeries lc1 = TimeSeriesResampler.resample(ts1, commonBinEdges(ts1, startOfOverlap, binWidth, n));
+	TimeSeries lc2 = TimeSeriesResampler.resample(ts2, commonBinEdges(ts2, startOfOverlap, binWidth, n));
+	final double[] x = lc1.getRates();
+	final double[] errorsOnX = lc1.getErrorsOnRates();
+	final double[] y = lc2.getRates();
+	final double[] errorsOnY = lc2.getErrorsOnRates();
+	final double[] mask = new double[n];
+	int nValid = 0;
+	for ( int i=0; i < n; i++ ) {
+	    mask[i] = ( Double.isNaN(x[i]) || Double.isNaN(y[i]) ) ? 0 : 1;
+	    nValid += (int) mask[i];
+	}
+	if ( nValid < 2 ) {
+	    throw new TimeSeriesException("TimeSeries share fewer than two valid bins on the common grid (nValid = "+nValid+")");
+	}
+
+	//  Compute the CCF and locate its peak
+	final int nPadded = FFTPlan.nextPowerOfTwo(2*n);
+	double[] correlations = correlate(x, y, mask, n, nPadded);
+	double[] lags = new double[2*n-1];
+	for ( int k=0; k < lags.length; k++ ) {
+	    lags[k] = (k - (n-1))*binWidth;
+	}
+	double[] lagAndPeak = findPeak(correlations, n, binWidth);
+	logger.info("  Lag = "+lagAndPeak[0]+" (peak correlation = "+lagAndPeak[1]+")");
+
+	//  Bootstrap the lag
+	final double[] bootstrapLags = new double[nBootstraps];
+	final SplittableRandom[] generators = RandomNumbers.split(seed, nBootstraps);
+	final double width = binWidth;
+	IntStream.range(0, nBootstraps).parallel().forEach(r ->
+	    bootstrapLags[r] = bootstrapLag(x, errorsOnX, y, errorsOnY, mask, n, nPadded, width, generators[r]));
+	double errorOnLag = Double.NaN;
+	if ( nBootstraps > 1 ) {
+	    double sum = 0;
+	    double sumOfSquares = 0;
+	    int nGood = 0;
+	    for ( int r=0; r < nBootstraps; r++ ) {
+		if ( !Double.isNaN(bootstrapLags[r]) ) {
+		    sum += bootstrapLags[r];
+		    sumOfSquares += bootstrapLags[r]*bootstrapLags[r];
+		    nGood++;
+		}
+	    }
+	    if ( nGood > 1 ) {
+		double mean = sum/nGood;
+		errorOnLag = Math.sqrt(Math.max(0, (sumOfSquares - nGood*mean*mean)/(nGood-1)));
+	    }
+	    logger.info("  Error on lag = "+errorOnLag+" ("+nGood+" bootstrap realisations)");
+	}
+	return new CrossCorrelation(binWidth, lags, correlations, lagAndPeak[0], lagAndPeak[1], errorOnLag, bootstrapLags);
+    }
+
+    private static double[] commonBinEdges(TimeSeries ts, double startOfOverlap, double binWidth, int n) {
+	//  Bin edges are defined with respect to the start of each series
+	double offset = startOfOverlap - ts.tStart();
+	double[] binEdges = new double[2*n];
+	for ( int i=0; i < n; i++ ) {
+	    binEdges[2*i] = offset + i*binWidth;
+	    binEdges[2*i+1] = offset + (i+1)*binWidth;
+	}
+	return binEdges;
+    }
+
+    /**
+     * Returns the normalised CCF of the first n elements of x and y for lags -(n-1) to (n-1) bins.
+     * Elements whose mask is 0 are ignored. nPadded must be a power of two not smaller than 2n-1.
+     * Throws an IllegalArgumentException if no element has a mask of 1.
+     */
+    static double[] correlate(double[] x, double[] y, double[] mask, int n, int nPadded) {
+	double sumX = 0;
+	double sumY = 0;
+	int nValid = 0;
+	for ( int i=0; i < n; i++ ) {
+	    if ( mask[i] != 0 ) {
+		sumX += x[i];
+		sumY += y[i];
+		nValid++;
+	    }
+	}
+	if ( nValid == 0 ) {
+	    throw new IllegalArgumentException("Cannot correlate series with no valid overlapping bins");
+	}
+	double meanX = sumX/nValid;
+	double meanY = sumY/nValid;
+	//  Pack both series into one complex array: z = x + iy
+	double[] re = new double[nPadded];
+	double[] im = new double[nPadded];
+	double sumOfSquaresX = 0;
+	double sumOfSquaresY = 0;
+	for ( int i=0; i < n; i++ ) {
+	    if ( mask[i] != 0 ) {
+		re[i] = x[i] - meanX;
+		im[i] = y[i] - meanY;
+		sumOfSquaresX += re[i]*re[i];
+		sumOfSquaresY += im[i]*im[i];
+	    }
+	}
+	FFTPlan plan = FFTPlan.forSize(nPadded);
+	plan.forward(re, im);
+	//  Unpack X and Y from Z and form the cross spectrum conj(X)*Y for the pairs (k, nPadded-k)
+	for ( int k=0; k <= nPadded/2; k++ ) {
+	    int m = (nPadded - k) & (nPadded - 1);
+	    double zrk = re[k], zik = im[k];
+	    double zrm = re[m], zim = im[m];
+	    double xrk = 0.5*(zrk + zrm), xik = 0.5*(zik - zim);
+	    double yrk = 0.5*(zik + zim), yik = -0.5*(zrk - zrm);
+	    double xrm = 0.5*(zrm + zrk), xim = 0.5*(zim - zik);
+	    double yrm = 0.5*(zim + zik), yim = -0.5*(zrm - zrk);
+	    re[k] = xrk*yrk + xik*yik;
+	    im[k] = xrk*yik - xik*yrk;
+	    re[m] = xrm*yrm + xim*yim;
+	    im[m] = xrm*yim - xim*yrm;
+	}
+	plan.backward(re, im);
+	double norm = nPadded*Math.sqrt(sumOfSquaresX*sumOfSquaresY);
+	double[] correlations = new double[2*n-1];
+	correlations[n-1] = re[0]/norm;
+	for ( int k=1; k < n; k++ ) {
+	    correlations[n-1+k] = re[k]/norm;
+	    correlations[n-1-k] = re[nPadded-k]/norm;
+	}
+	return correlations;
+    }
+
+    /**
+     * Returns the lag (refined by parabolic interpolation) and the value of the maximum of the CCF.
+     */
+    static double[] findPeak(double[] correlations, int n, double binWidth) {
+	int iMax = -1;
+	double max = -Double.MAX_VALUE;
+	for ( int k=0; k < correlations.length; k++ ) {
+	    if ( correlations[k] > max ) {
+		max = correlations[k];
+		iMax = k;
+	    }
+	}
+	if ( iMax < 0 ) {
+	    return new double[] {Double.NaN, Double.NaN};
+	}
+	double delta = 0;
+	if ( iMax > 0 && iMax < correlations.length-1 ) {
+	    double left = correlations[iMax-1];
+	    double right = correlations[iMax+1];
+	    double curvature = left - 2*max + right;
+	    if ( curvature < 0 ) {
+		delta = 0.5*(left - right)/curvature;
+	    }
+	}
+	return new double[] {(iMax - (n-1) + delta)*binWidth, max};
+    }
+
+    private static double bootstrapLag(double[] x, double[] errorsOnX, double[] y, double[] errorsOnY, double[] mask, int n, int nPadded, double binWidth, SplittableRandom random) {
+	//  Random subset selection: draw n bins with replacement and keep each selected bin once
+	double[] selected = new double[n];
+	for ( int j=0; j < n; j++ ) {
+	    int i = random.nextInt(n);
+	    selected[i] = mask[i];
+	}
+	//  Flux randomisation of the selected bins
+	double[] xr = new double[n];
+	double[] yr = new double[n];
+	for ( int i=0; i < n; i++ ) {
+	    if ( selected[i] != 0 ) {
+		double errorOnX = Double.isNaN(errorsOnX[i]) ? 0 : errorsOnX[i];
+		double errorOnY = Double.isNaN(errorsOnY[i]) ? 0 : errorsOnY[i];
+		xr[i] = x[i] + errorOnX*RandomNumbers.nextGaussian(random);
+		yr[i] = y[i] + errorOnY*RandomNumbers.nextGaussian(random);
+	    }
+	}
+	return findPeak(correlate(xr, yr, selected, n, nPadded), n, binWidth)[0];
+    }
+
+}
@@ -0,0 +1,355 @@
+package gb.esac.timeseries;
+
+import java.util.stream.IntStream;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>TimeSeriesDetrender</code> removes a polynomial or a smoothing-spline trend from a time series.
+ *
+ * The trend is fitted to the bin centres by weighted least squares, with weights 1/error^2 when the errors on the
+ * rates are set, and equal weights for counts series. NaN bins are left out and remain NaN. The trend can be fitted
+ * to the whole series or, with perSegment, separately to each run of contiguous bins between gaps (e.g. each orbit);
+ * segments are then fitted in parallel.
+ *
+ * Polynomial fits accumulate the normal equations in a single pass over the data, on times scaled to [-1, 1] for
+ * conditioning, and solve them by Cholesky decomposition: O(n*order) time and O(order^2) memory. Smoothing splines
+ * are computed with Reinsch's algorithm, which solves a pentadiagonal system in O(n).
+ *
+ * Series with errors are detrended in rate and keep their errors; counts series are detrended in counts per bin.
+ *
+ */
+
+public final class TimeSeriesDetrender {
+
+    private static Logger logger  = Logger.getLogger(TimeSeriesDetrender.class);
+
+    private TimeSeriesDetrender() {}
+
+    public static TimeSeries detrendPolynomial(TimeSeries ts, int order) throws TimeSeriesException {
+	return detrendPolynomial(ts, order, false);
+    }
+
+    /**
+     * Subtracts the best-fit polynomial of the given order.
+     *
+     * @param ts a <code>TimeSeries</code> value
+     * @param order an <code>int</code> value
+     * @param perSegment a <code>boolean</code> value: if true, each run of contiguous bins is fitted separately
+     * @return a <code>TimeSeries</code> value
+     * @exception TimeSeriesException if a segment has fewer valid bins than order+1 or the fit is singular
+     */
+    public static TimeSeries detrendPolynomial(TimeSeries ts, int order, boolean perSegment) throws TimeSeriesException {
+	logger.info("Detrending TimeSeries with a polynomial of order "+order+(perSegment ? " per segment" : ""));
+	double[] trend = polynomialTrend(ts, order, perSegment);
+	return subtract(ts, trend);
+    }
+
+    /**
+     * Returns the values of the best-fit polynomial at the bin centres (NaN for NaN bins).
+     */
+    public static double[] polynomialTrend(final TimeSeries ts, final int order, boolean perSegment) throws TimeSeriesException {
+	if ( order < 0 ) {
+	    throw new IllegalArgumentException("Polynomial order must not be negative: order = "+order);
+	}
+	final double[] trend = new double[ts.nBins()];
+	final int[] runs = perSegment ? TimeSeriesSmoother.findRuns(ts) : new int[] {0, ts.nBins()};
+	final String[] failures = new String[runs.length-1];
+	IntStream.range(0, runs.length-1).parallel().forEach(r -> {
+		try {
+		    fitPolynomial(ts, order, runs[r], runs[r+1], trend);
+		}
+		catch ( TimeSeriesException e ) {
+		    failures[r] = e.getMessage();
+		}
+	    });
+	for ( String failure : failures ) {
+	    if ( failure != null ) throw new TimeSeriesException(failure);
+	}
+	return trend;
+    }
+
+    public static TimeSeries detrendSpline(TimeSeries ts, double timescale) throws TimeSeriesException {
+	return detrendSpline(ts, timescale, false);
+    }
+
+    /**
+     * Subtracts a cubic smoothing spline. The smoothing parameter is set from timescale, in seconds, so that
+     * variations on timescales shorter than about timescale are left in the residuals.
+     *
+     * @param ts a <code>TimeSeries</code> value
+     * @param timescale a <code>double</code> value
+     * @param perSegment a <code>boolean</code> value: if true, each run of contiguous bins is fitted separately
+     * @return a <code>TimeSeries</code> value
+     * @exception TimeSeriesException if the system cannot be solved
+     */
+    public static TimeSeries detrendSpline(TimeSeries ts, double timescale, boolean perSegment) throws TimeSeriesException {
+	logger.info("Detrending TimeSeries with a smoothing spline (timescale = "+timescale+" s)"+(perSegment ? " per segment" : ""));
+	double[] trend = splineTrend(ts, timescale, perSegment);
+	return subtract(ts, trend);
+    }
+
+    /**
+     * Returns the values of the smoothing spline at the bin centres (NaN for NaN bins).
+     */
+    public static double[] splineTrend(final TimeSeries ts, final double timescale, boolean perSegment) throws TimeSeriesException {
+	if ( !(timescale > 0) ) {
+	    throw new IllegalArgumentException("Timescale must be positive: timescale = "+timescale);
+	}
+	final double[] trend = new double[ts.nBins()];
+	final int[] runs = perSegment ? TimeSeriesSmoother.findRuns(ts) : new int[] {0, ts.nBins()};
+	final String[] failures = new String[runs.length-1];
+	IntStream.range(0, runs.length-1).parallel().forEach(r -> {
+		try {
+		    fitSpline(ts, timescale, runs[r], runs[r+1], trend);
+		}
+		catch ( TimeSeriesException e ) {
+		    failures[r] = e.getMessage();
+		}
+	    });
+	for ( String failure : failures ) {
+	    if ( failure != null ) throw new TimeSeriesException(failure);
+	}
+	return trend;
+    }
+
+    //  Polynomial fit to the bins [from, to), written into trend[from..to)
+    private static void fitPolynomial(TimeSeries ts, int order, int from, int to, double[] trend) throws TimeSeriesException {
+	double[] x = ts.internalBinCentres();
+	double[] y = values(ts);
+	double[] errors = ts.errorsAreSet() ? ts.internalErrorsOnRates() : null;
+	double mid = (x[from] + x[to-1])/2;
+	double halfSpan = Math.max((x[to-1] - x[from])/2, Double.MIN_NORMAL);
+	int m = order + 1;
+	//  Sums of w*u^k for k = 0..2*order, and of w*y*u^k for k = 0..order
+	double[] sumsOfPowers = new double[2*order+1];
+	double[] b = new double[m];
+	int nValid = 0;
+	for ( int i=from; i < to; i++ ) {
+	    double w = weight(y, errors, i);
+	    if ( w == 0 ) continue;
+	    nValid++;
+	    double u = (x[i] - mid)/halfSpan;
+	    double power = w;
+	    for ( int k=0; k <= 2*order; k++ ) {
+		sumsOfPowers[k] += power;
+		if ( k < m ) b[k] += power*y[i];
+		power *= u;
+	    }
+	}
+	if ( nValid < m ) {
+	    throw new TimeSeriesException("Not enough valid bins ("+nValid+") to fit a polynomial of order "+order);
+	}
+	double[][] a = new double[m][m];
+	for ( int i=0; i < m; i++ ) {
+	    for ( int j=0; j < m; j++ ) {
+		a[i][j] = sumsOfPowers[i+j];
+	    }
+	}
+	double[] coeffs = solveCholesky(a, b);
+	for ( int i=from; i < to; i++ ) {
+	    if ( Double.isNaN(y[i]) ) {
+		trend[i] = Double.NaN;
+		continue;
+	    }
+	    double u = (x[i] - mid)/halfSpan;
+	    double value = 0;
+	    for ( int k=order; k >= 0; k-- ) {
+		value = value*u + coeffs[k];
+	    }
+	    trend[i] = value;
+	}
+    }
+
+    //  Solves a x = b in place for a symmetric positive definite a
+    static double[] solveCholesky(double[][] a, double[] b) throws TimeSeriesException {
+	int m = b.length;
+	for ( int j=0; j < m; j++ ) {
+	    double d = a[j][j];
+	    for ( int k=0; k < j; k++ ) {
+		d -= a[j][k]*a[j][k];
+	    }
+	    if ( !(d > 0) ) {
+		throw new TimeSeriesException("Normal equations are singular: reduce the order of the polynomial");
+	    }
+	    a[j][j] = Math.sqrt(d);
+	    for ( int i=j+1; i < m; i++ ) {
+		double s = a[i][j];
+		for ( int k=0; k < j; k++ ) {
+		    s -= a[i][k]*a[j][k];
+		}
+		a[i][j] = s/a[j][j];
+	    }
+	}
+	double[] x = new double[m];
+	for ( int i=0; i < m; i++ ) {
+	    double s = b[i];
+	    for ( int k=0; k < i; k++ ) {
+		s -= a[i][k]*x[k];
+	    }
+	    x[i] = s/a[i][i];
+	}
+	for ( int i=m-1; i >= 0; i-- ) {
+	    double s = x[i];
+	    for ( int k=i+1; k < m; k++ ) {
+		s -= a[k][i]*x[k];
+	    }
+	    x[i] = s/a[i][i];
+	}
+	return x;
+    }
+
+    //  Reinsch smoothing spline fitted to the valid bins of [from, to), written into trend[from..to)
+    private static void fitSpline(TimeSeries ts, double timescale, int from, int to, double[] trend) throws TimeSeriesException {
+	double[] centres = ts.internalBinCentres();
+	double[] values = values(ts);
+	double[] errors = ts.errorsAreSet() ? ts.internalErrorsOnRates() : null;
+	//  Gather the valid points
+	int n = 0;
+	for ( int i=from; i < to; i++ ) {
+	    if ( weight(values, errors, i) > 0 ) n++;
+	}
+	double[] x = new double[n];
+	double[] y = new double[n];
+	double[] d = new double[n];  // variances 1/w
+	double sumOfWeights = 0;
+	int k = 0;
+	for ( int i=from; i < to; i++ ) {
+	    double w = weight(values, errors, i);
+	    if ( w > 0 ) {
+		x[k] = centres[i];
+		y[k] = values[i];
+		d[k] = 1/w;
+		sumOfWeights += w;
+		k++;
+	    }
+	}
+	double[] g = new double[n];
+	if ( n < 3 ) {
+	    //  Too few points for a spline: use the weighted mean
+	    double mean = 0;
+	    for ( int i=0; i < n; i++ ) mean += y[i]/d[i];
+	    mean /= sumOfWeights;
+	    for ( int i=0; i < n; i++ ) g[i] = mean;
+	}
+	else {
+	    //  lambda such that the equivalent kernel of the spline has a width of about timescale
+	    double meanSpacing = (x[n-1] - x[0])/(n-1);
+	    double meanWeight = sumOfWeights/n;
+	    double lambda = meanWeight*Math.pow(timescale, 4)/meanSpacing;
+	    reinsch(x, y, d, lambda, g);
+	}
+	k = 0;
+	for ( int i=from; i < to; i++ ) {
+	    if ( weight(values, errors, i) > 0 ) {
+		trend[i] = g[k++];
+	    }
+	    else {
+		trend[i] = Double.NaN;
+	    }
+	}
+    }
+
+    /**
+     * Computes the smoothing spline g minimising sum((y-g)^2/d) + lambda*integral(g''^2), where d are the variances,
+     * by solving (R + lambda Q^T D Q) gamma = Q^T y, which is pentadiagonal, and setting g = y - lambda D Q gamma.
+     */
+    static void reinsch(double[] x, double[] y, double[] d, double lambda, double[] g) throws TimeSeriesException {
+	int n = x.length;
+	int m = n - 2;
+	double[] h = new double[n-1];
+	for ( int i=0; i < n-1; i++ ) {
+	    h[i] = x[i+1] - x[i];
+	    if ( !(h[i] > 0) ) {
+		throw new TimeSeriesException("Bin centres must be strictly increasing");
+	    }
+	}
+	//  Column k of Q (interior point j = k+1) has 1/h[j-1], -1/h[j-1]-1/h[j], 1/h[j] on rows j-1, j, j+1
+	double[] diag = new double[m];
+	double[] off1 = new double[m];
+	double[] off2 = new double[m];
+	double[] r = new double[m];
+	for ( int kk=0; kk < m; kk++ ) {
+	    int j = kk + 1;
+	    double q0 = 1/h[j-1];
+	    double q1 = -1/h[j-1] - 1/h[j];
+	    double q2 = 1/h[j];
+	    diag[kk] = (h[j-1] + h[j])/3 + lambda*(q0*q0*d[j-1] + q1*q1*d[j] + q2*q2*d[j+1]);
+	    if ( kk+1 < m ) {
+		//  Column k+1 has 1/h[j], -1/h[j]-1/h[j+1], 1/h[j+1] on rows j, j+1, j+2
+		double p0 = 1/h[j];
+		double p1 = -1/h[j] - 1/h[j+1];
+		off1[kk] = h[j]/6 + lambda*(q1*p0*d[j] + q2*p1*d[j+1]);
+	    }
+	    if ( kk+2 < m ) {
+		//  Column k+2 has 1/h[j+1] on row j+1
+		off2[kk] = lambda*q2*(1/h[j+1])*d[j+1];
+	    }
+	    r[kk] = (y[j+1] - y[j])/h[j] - (y[j] - y[j-1])/h[j-1];
+	}
+	//  LDL^T decomposition of the pentadiagonal matrix, with L[k+1][k] = f[k] and L[k+2][k] = e[k]
+	double[] f = new double[m];
+	double[] e = new double[m];
+	for ( int kk=0; kk < m; kk++ ) {
+	    double dk = diag[kk];
+	    if ( kk >= 1 ) dk -= f[kk-1]*f[kk-1]*diag[kk-1];
+	    if ( kk >= 2 ) dk -= e[kk-2]*e[kk-2]*diag[kk-2];
+	    if ( !(dk > 0) ) {
+		throw new TimeSeriesException("Spline system is not positive definite");
+	    }
+	    double bk = off1[kk];
+	    if ( kk >= 1 ) bk -= f[kk-1]*e[kk-1]*diag[kk-1];
+	    diag[kk] = dk;
+	    f[kk] = bk/dk;
+	    e[kk] = off2[kk]/dk;
+	}
+	//  Forward and backward substitutions
+	double[] gamma = r;
+	for ( int kk=0; kk < m; kk++ ) {
+	    if ( kk >= 1 ) gamma[kk] -= f[kk-1]*gamma[kk-1];
+	    if ( kk >= 2 ) gamma[kk] -= e[kk-2]*gamma[kk-2];
+	}
+	for ( int kk=0; kk < m; kk++ ) {
+	    gamma[kk] /= diag[kk];
+	}
+	for ( int kk=m-1; kk >= 0; kk-- ) {
+	    if ( kk+1 < m ) gamma[kk] -= f[kk]*gamma[kk+1];
+	    if ( kk+2 < m ) gamma[kk] -= e[kk]*gamma[kk+2];
+	}
+	//  g = y - lambda D Q gamma
+	for ( int i=0; i < n; i++ ) {
+	    double qGamma = 0;
+	    if ( i-2 >= 0 ) qGamma += gamma[i-2]/h[i-1];
+	    if ( i-1 >= 0 && i-1 < m ) qGamma += gamma[i-1]*(-1/h[i-1] - 1/h[i]);
+	    if ( i < m ) qGamma += gamma[i]/h[i];
+	    g[i] = y[i] - lambda*d[i]*qGamma;
+	}
+    }
+
+    private static double[] values(TimeSeries ts) {
+	return ts.errorsAreSet() ? ts.internalRates() : ts.internalBinHeights();
+    }
+
+    //  Weight of bin i: 0 for NaN bins and bins without a positive error
+    private static double weight(double[] values, double[] errors, int i) {
+	if ( Double.isNaN(values[i]) ) return 0;
+	if ( errors == null ) return 1;
+	double e = errors[i];
+	return e > 0 ? 1/(e*e) : 0;
+    }
+
+    private static TimeSeries subtract(TimeSeries ts, double[] trend) {
+	double[] v = values(ts);
+	double[] residuals = new double[v.length];
+	for ( int i=0; i < v.length; i++ ) {
+	    residuals[i] = v[i] - trend[i];
+	}
+	if ( ts.errorsAreSet() ) {
+	    return new TimeSeries(ts.tStart(), ts.internalBinEdges(), residuals, ts.internalErrorsOnRates());
+	}
+	return new TimeSeries(ts.tStart(), ts.internalBinEdges(), residuals);
+    }
+
+}
@@ -0,0 +1,260 @@
+package gb.esac.timeseries;
+
+import gb.esac.binner.BinningException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.stream.IntStream;
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>TimeSeriesExpression</code> builds arithmetic expressions on the rates of time series without
+ * evaluating them, for example a background-subtracted and normalised light curve:
+ *
+ * <pre>
+ * TimeSeries lc = TimeSeriesExpression.of(src).minus(TimeSeriesExpression.of(bkg).times(0.12)).dividedBy(exposure).evaluate();
+ * </pre>
+ *
+ * The operations form a directed acyclic graph: an expression may be used in several places, and is then computed
+ * once per bin. <code>evaluate</code> sorts the graph topologically into a short program, and runs it over all the
+ * bins in a single fused pass, in parallel chunks for long series. Only the final series is allocated, instead of
+ * one series (with its construction and statistics) per intermediate result.
+ *
+ * The result has the bins of the first series in the expression; the other series are resampled onto them if their
+ * bins differ, as in <code>TimeSeriesArithmetic</code>. The errors are propagated to first order by carrying, for each
+ * bin, the gradient of every intermediate value with respect to the rates of the series, so that a series that
+ * appears more than once in the expression is accounted for exactly. The series are assumed independent.
+ *
+ * Expressions are immutable and hold references to their series, which must not be modified before evaluation.
+ *
+ */
+
+public final class TimeSeriesExpression {
+
+    private static Logger logger  = Logger.getLogger(TimeSeriesExpression.class);
+
+    //  Series longer than this are evaluated in parallel chunks of this many bins
+    private static final int BINS_PER_CHUNK = 1 << 14;
+
+    private static final int SERIES = 0;
+    private static final int CONSTANT = 1;
+    private static final int ADD = 2;
+    private static final int SUBTRACT = 3;
+    private static final int MULTIPLY = 4;
+    private static final int DIVIDE = 5;
+
+    private final int op;
+    private final TimeSeriesExpression left;
+    private final TimeSeriesExpression right;
+    private final ITimeSeries series;
+    private final double constant;
+
+    private TimeSeriesExpression(int op, TimeSeriesExpression left, TimeSeriesExpression right, ITimeSeries series, double constant) {
+	this.op = op;
+	this.left = left;
+	this.right = right;
+	this.series = series;
+	this.constant = constant;
+    }
+
+    public static TimeSeriesExpression of(ITimeSeries ts) {
+	if ( ts == null ) {
+	    throw new IllegalArgumentException("TimeSeries is null");
+	}
+	return new TimeSeriesExpression(SERIES, null, null, ts, 0);
+    }
+
+    public static TimeSeriesExpression constant(double c) {
+	return new TimeSeriesExpression(CONSTANT, null, null, null, c);
+    }
+
+    public TimeSeriesExpression plus(TimeSeriesExpression e) { return new TimeSeriesExpression(ADD, this, e, null, 0); }
+    public TimeSeriesExpression minus(TimeSeriesExpression e) { return new TimeSeriesExpression(SUBTRACT, this, e, null, 0); }
+    public TimeSeriesExpression times(TimeSeriesExpression e) { return new TimeSeriesExpression(MULTIPLY, this, e, null, 0); }
+    public TimeSeriesExpression dividedBy(TimeSeriesExpression e) { return new TimeSeriesExpression(DIVIDE, this, e, null, 0); }
+
+    public TimeSeriesExpression plus(ITimeSeries ts) { return plus(of(ts)); }
+    public TimeSeriesExpression minus(ITimeSeries ts) { return minus(of(ts)); }
+    public TimeSeriesExpression times(ITimeSeries ts) { return times(of(ts)); }
+    public TimeSeriesExpression dividedBy(ITimeSeries ts) { return dividedBy(of(ts)); }
+
+    public TimeSeriesExpression plus(double c) { return plus(constant(c)); }
+    public TimeSeriesExpression minus(double c) { return minus(constant(c)); }
+    public TimeSeriesExpression times(double c) { return times(constant(c)); }
+    public TimeSeriesExpression dividedBy(double c) { return dividedBy(constant(c)); }
+
+    /**
+     * Evaluates the expression in a single pass over the bins and returns the resulting series.
+     *
+     * @return a <code>TimeSeries</code> value
+     * @exception BinningException if a series cannot be resampled onto the bins of the first one
+     */
+    public TimeSeries evaluate() throws BinningException {
+	final Program program = compile();
+	TimeSeries reference = program.reference;
+	final int n = reference.nBins();
+	logger.info("Evaluating expression of "+program.nNodes+" nodes and "+program.nLeaves+" series over "+n+" bins");
+	final double[] rates = new double[n];
+	final double[] errors = new double[n];
+	int nChunks = (n + BINS_PER_CHUNK - 1)/BINS_PER_CHUNK;
+	if ( nChunks > 1 ) {
+	    IntStream.range(0, nChunks).parallel().forEach(c ->
+		    program.run(c*BINS_PER_CHUNK, Math.min(n, (c+1)*BINS_PER_CHUNK), rates, errors)
+	    );
+	}
+	else {
+	    program.run(0, n, rates, errors);
+	}
+	return new TimeSeries(reference.tStart(), reference.internalBinEdges(), rates, errors);
+    }
+
+    /**
+     * Sorts the graph topologically (operands before operations, shared nodes once) and aligns the series.
+     */
+    private Program compile() throws BinningException {
+	ArrayList<TimeSeriesExpression> nodes = new ArrayList<TimeSeriesExpression>();
+	IdentityHashMap<TimeSeriesExpression, Integer> indexes = new IdentityHashMap<TimeSeriesExpression, Integer>();
+	IdentityHashMap<ITimeSeries, Integer> leafIndexes = new IdentityHashMap<ITimeSeries, Integer>();
+	ArrayList<ITimeSeries> leaves = new ArrayList<ITimeSeries>();
+	visit(this, nodes, indexes, leafIndexes, leaves);
+	if ( leaves.isEmpty() ) {
+	    throw new IllegalStateException("Expression holds no TimeSeries");
+	}
+	int nNodes = nodes.size();
+	int nLeaves = leaves.size();
+	Program p = new Program(nNodes, nLeaves);
+	for ( int k=0; k < nNodes; k++ ) {
+	    TimeSeriesExpression e = nodes.get(k);
+	    p.ops[k] = e.op;
+	    p.constants[k] = e.constant;
+	    if ( e.op == SERIES ) {
+		p.operands1[k] = leafIndexes.get(e.series);
+	    }
+	    else if ( e.op != CONSTANT ) {
+		p.operands1[k] = indexes.get(e.left);
+		p.operands2[k] = indexes.get(e.right);
+	    }
+	}
+	p.reference = asTimeSeries(leaves.get(0));
+	for ( int j=0; j < nLeaves; j++ ) {
+	    TimeSeries aligned = j == 0 ? p.reference : TimeSeriesArithmetic.align(p.reference, asTimeSeries(leaves.get(j)));
+	    p.leafRates[j] = aligned.internalRates();
+	    p.leafErrors[j] = aligned.internalErrorsOnRates();
+	}
+	return p;
+    }
+
+    private static void visit(TimeSeriesExpression e, ArrayList<TimeSeriesExpression> nodes, IdentityHashMap<TimeSeriesExpression, Integer> indexes, IdentityHashMap<ITimeSeries, Integer> leafIndexes, ArrayList<ITimeSeries> leaves) {
+	if ( indexes.containsKey(e) ) return;
+	if ( e.op == SERIES ) {
+	    if ( !leafIndexes.containsKey(e.series) ) {
+		leafIndexes.put(e.series, leaves.size());
+		leaves.add(e.series);
+	    }
+	}
+	else if ( e.op != CONSTANT ) {
+	    visit(e.left, nodes, indexes, leafIndexes, leaves);
+	    visit(e.right, nodes, indexes, leafIndexes, leaves);
+	}
+	indexes.put(e, nodes.size());
+	nodes.add(e);
+    }
+
+    private static TimeSeries asTimeSeries(ITimeSeries ts) {
+	if ( ts instanceof TimeSeries ) {
+	    return (TimeSeries) ts;
+	}
+	return new TimeSeries(ts.tStart(), ts.getBinEdges(), ts.getRates(), ts.getErrorsOnRates());
+    }
+
+    /**
+     * The compiled expression: node k applies ops[k] to the nodes operands1[k] and operands2[k] (or reads the series
+     * operands1[k], or the constant), and the last node is the result.
+     */
+    private static final class Program {
+
+	final int nNodes;
+	final int nLeaves;
+	final int[] ops;
+	final int[] operands1;
+	final int[] operands2;
+	final double[] constants;
+	final double[][] leafRates;
+	final double[][] leafErrors;
+	TimeSeries reference;
+
+	Program(int nNodes, int nLeaves) {
+	    this.nNodes = nNodes;
+	    this.nLeaves = nLeaves;
+	    this.ops = new int[nNodes];
+	    this.operands1 = new int[nNodes];
+	    this.operands2 = new int[nNodes];
+	    this.constants = new double[nNodes];
+	    this.leafRates = new double[nLeaves][];
+	    this.leafErrors = new double[nLeaves][];
+	}
+
+	/**
+	 * Evaluates bins from to to-1. For each node, values holds its value and gradients its derivatives with respect
+	 * to the rate of each series, multiplied by the error on that rate.
+	 */
+	void run(int from, int to, double[] rates, double[] errors) {
+	    int m = nLeaves;
+	    double[] values = new double[nNodes];
+	    double[] gradients = new double[nNodes*m];
+	    for ( int i=from; i < to; i++ ) {
+		for ( int k=0; k < nNodes; k++ ) {
+		    int g = k*m;
+		    int a = operands1[k];
+		    int b = operands2[k];
+		    int ga = a*m;
+		    int gb = b*m;
+		    switch ( ops[k] ) {
+		    case SERIES:
+			values[k] = leafRates[a][i];
+			for ( int j=0; j < m; j++ ) gradients[g+j] = 0;
+			gradients[g+a] = leafErrors[a][i];
+			break;
+		    case CONSTANT:
+			values[k] = constants[k];
+			for ( int j=0; j < m; j++ ) gradients[g+j] = 0;
+			break;
+		    case ADD:
+			values[k] = values[a] + values[b];
+			for ( int j=0; j < m; j++ ) gradients[g+j] = gradients[ga+j] + gradients[gb+j];
+			break;
+		    case SUBTRACT:
+			values[k] = values[a] - values[b];
+			for ( int j=0; j < m; j++ ) gradients[g+j] = gradients[ga+j] - gradients[gb+j];
+			break;
+		    case MULTIPLY: {
+			double va = values[a];
+			double vb = values[b];
+			values[k] = va*vb;
+			for ( int j=0; j < m; j++ ) gradients[g+j] = vb*gradients[ga+j] + va*gradients[gb+j];
+			break;
+		    }
+		    default: {
+			double vb = values[b];
+			double v = values[a]/vb;
+			values[k] = v;
+			for ( int j=0; j < m; j++ ) gradients[g+j] = (gradients[ga+j] - v*gradients[gb+j])/vb;
+			break;
+		    }
+		    }
+		}
+		int last = nNodes-1;
+		double variance = 0;
+		for ( int j=0; j < m; j++ ) {
+		    double d = gradients[last*m+j];
+		    variance += d*d;
+		}
+		rates[i] = values[last];
+		errors[i] = Math.sqrt(variance);
+	    }
+	}
+
+    }
+
+}
@@ -0,0 +1,200 @@
+package gb.esac.timeseries;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>TimeSeriesGapFiller</code> replaces missing data by estimated rates: NaN bins, and optionally the
+ * real gaps between bins, which are first divided into bins of about the width of the bin before each gap. In the
+ * latter case the result is a continuous grid, uniform when the series has a constant bin width and its gaps are
+ * whole numbers of bins, and can be passed directly to FFT-based methods.
+ *
+ * The estimates are computed at the bin centres from the valid bins around them, with one of the methods
+ * <ul>
+ * <li>"linear": linear interpolation between the nearest valid bins on each side;
+ * <li>"spline": natural cubic spline through all the valid bins;
+ * <li>"mean": mean rate of the valid bins.
+ * </ul>
+ * Before the first and after the last valid bin, the nearest valid rate is used (except for "mean").
+ *
+ * The error of a filled bin combines the measurement error expected at that point (interpolated in variance between
+ * the neighbouring bins, or the mean variance for "mean") and the variance of the valid rates, so that filled bins
+ * weigh less than measured ones. Valid bins are copied unchanged. The result always holds rates and errors.
+ *
+ * All methods run in a single pass over the bins, using the validity mask and the gap index of the series.
+ *
+ */
+
+public final class TimeSeriesGapFiller {
+
+    private static Logger logger  = Logger.getLogger(TimeSeriesGapFiller.class);
+
+    private TimeSeriesGapFiller() {}
+
+    /**
+     * Fills the NaN bins, keeping the bins of the series.
+     *
+     * @param ts a <code>TimeSeries</code> value
+     * @param method a <code>String</code> value: "linear", "spline" or "mean"
+     * @return a <code>TimeSeries</code> value
+     */
+    public static TimeSeries fillNaNs(TimeSeries ts, String method) {
+	logger.info("Filling NaN bins ("+method+")");
+	return fill(ts, method, false);
+    }
+
+    /**
+     * Fills the NaN bins and the gaps, and returns a series of contiguous bins.
+     *
+     * @param ts a <code>TimeSeries</code> value
+     * @param method a <code>String</code> value: "linear", "spline" or "mean"
+     * @return a <code>TimeSeries</code> value
+     */
+    public static TimeSeries fillGaps(TimeSeries ts, String method) {
+	logger.info("Filling NaN bins and gaps ("+method+")");
+	return fill(ts, method, true);
+    }
+
+    private static TimeSeries fill(TimeSeries ts, String method, boolean fillTimeGaps) {
+	boolean linear = method.equalsIgnoreCase("linear");
+	boolean spline = method.equalsIgnoreCase("spline");
+	boolean mean = method.equalsIgnoreCase("mean");
+	if ( !linear && !spline && !mean ) {
+	    throw new IllegalArgumentException("Unknown gap filling method: "+method+" (use linear, spline or mean)");
+	}
+	ValidityMask validity = ts.validity();
+	int nKnots = validity.nValid();
+	if ( nKnots == 0 ) {
+	    throw new IllegalArgumentException("Cannot fill gaps in a TimeSeries with no valid bins");
+	}
+	int nBins = ts.nBins();
+	double[] binEdges = ts.internalBinEdges();
+	double[] binCentres = ts.internalBinCentres();
+	double[] rates = ts.internalRates();
+	double[] errors = ts.internalErrorsOnRates();
+
+	//  The valid bins are the knots of the interpolation
+	double[] x = validity.validValues(binCentres);
+	double[] y = validity.validValues(rates);
+	double[] variances = new double[nKnots];
+	double[] e = validity.validValues(errors);
+	double sum = 0;
+	double sumOfSquares = 0;
+	double sumOfVariances = 0;
+	for ( int k=0; k < nKnots; k++ ) {
+	    variances[k] = e[k]*e[k];
+	    sum += y[k];
+	    sumOfSquares += y[k]*y[k];
+	    sumOfVariances += variances[k];
+	}
+	double meanRate = sum/nKnots;
+	double varianceOfRates = nKnots > 1 ? Math.max(0, (sumOfSquares - nKnots*meanRate*meanRate)/(nKnots-1)) : 0;
+	double meanVariance = sumOfVariances/nKnots;
+	if ( (linear && nKnots < 2) || (spline && nKnots < 3) ) {
+	    //  Too few valid bins for the method: fall back to the simpler one
+	    linear = nKnots >= 2;
+	    spline = false;
+	}
+	double[] secondDerivatives = spline ? naturalSpline(x, y) : null;
+
+	//  Output bins: the bins of the series, preceded in each gap by the bins inserted in it
+	GapIndex gaps = ts.gapIndex();
+	int nGaps = fillTimeGaps ? gaps.nGaps() : 0;
+	int[] nInserted = new int[nGaps];
+	int nNewBins = nBins;
+	for ( int g=0; g < nGaps; g++ ) {
+	    int i = gaps.binIndex(g);
+	    double widthBefore = binEdges[2*i-1] - binEdges[2*i-2];
+	    nInserted[g] = (int) Math.max(1, Math.round(gaps.length(g)/widthBefore));
+	    nNewBins += nInserted[g];
+	}
+	double[] newBinEdges = new double[2*nNewBins];
+	double[] newRates = new double[nNewBins];
+	double[] newErrors = new double[nNewBins];
+	int j = 0;
+	int g = 0;
+	int p = 0;
+	int nFilled = 0;
+	for ( int i=0; i < nBins; i++ ) {
+	    if ( g < nGaps && gaps.binIndex(g) == i ) {
+		double width = gaps.length(g)/nInserted[g];
+		for ( int m=0; m < nInserted[g]; m++ ) {
+		    newBinEdges[2*j] = gaps.start(g) + m*width;
+		    newBinEdges[2*j+1] = m == nInserted[g]-1 ? gaps.stop(g) : gaps.start(g) + (m+1)*width;
+		    double t = gaps.start(g) + (m+0.5)*width;
+		    while ( p < nKnots && x[p] <= t ) p++;
+		    estimate(t, p, x, y, variances, secondDerivatives, linear, spline, meanRate, meanVariance, varianceOfRates, newRates, newErrors, j);
+		    nFilled++;
+		    j++;
+		}
+		g++;
+	    }
+	    newBinEdges[2*j] = binEdges[2*i];
+	    newBinEdges[2*j+1] = binEdges[2*i+1];
+	    if ( validity.isValid(i) ) {
+		newRates[j] = rates[i];
+		newErrors[j] = errors[i];
+	    }
+	    else {
+		double t = binCentres[i];
+		while ( p < nKnots && x[p] <= t ) p++;
+		estimate(t, p, x, y, variances, secondDerivatives, linear, spline, meanRate, meanVariance, varianceOfRates, newRates, newErrors, j);
+		nFilled++;
+	    }
+	    j++;
+	}
+	logger.info("  Filled "+nFilled+" bins");
+	return new TimeSeries(ts.tStart(), newBinEdges, newRates, newErrors);
+    }
+
+    //  Estimate at time t, where p is the index of the first knot after t
+    private static void estimate(double t, int p, double[] x, double[] y, double[] variances, double[] secondDerivatives, boolean linear, boolean spline, double meanRate, double meanVariance, double varianceOfRates, double[] newRates, double[] newErrors, int j) {
+	int nKnots = x.length;
+	double rate;
+	double variance;
+	if ( !linear && !spline ) {
+	    rate = meanRate;
+	    variance = meanVariance;
+	}
+	else if ( p == 0 || p == nKnots ) {
+	    int k = p == 0 ? 0 : nKnots-1;
+	    rate = y[k];
+	    variance = variances[k];
+	}
+	else {
+	    int a = p-1;
+	    double h = x[p] - x[a];
+	    double f = (t - x[a])/h;
+	    rate = (1-f)*y[a] + f*y[p];
+	    variance = (1-f)*variances[a] + f*variances[p];
+	    if ( spline ) {
+		rate += ((f*f*f - f)*secondDerivatives[p] + ((1-f)*(1-f)*(1-f) - (1-f))*secondDerivatives[a])*h*h/6;
+	    }
+	}
+	newRates[j] = rate;
+	newErrors[j] = Math.sqrt(variance + varianceOfRates);
+    }
+
+    /**
+     * Second derivatives of the natural cubic spline through (x, y), solved with the tridiagonal algorithm.
+     */
+    static double[] naturalSpline(double[] x, double[] y) {
+	int n = x.length;
+	double[] m = new double[n];
+	double[] c = new double[n];
+	for ( int k=1; k < n-1; k++ ) {
+	    double h0 = x[k] - x[k-1];
+	    double h1 = x[k+1] - x[k];
+	    double diagonal = 2*(h0 + h1) - h0*c[k-1];
+	    double rhs = 6*((y[k+1] - y[k])/h1 - (y[k] - y[k-1])/h0);
+	    c[k] = h1/diagonal;
+	    m[k] = (rhs - h0*m[k-1])/diagonal;
+	}
+	for ( int k=n-2; k > 0; k-- ) {
+	    m[k] -= c[k]*m[k+1];
+	}
+	return m;
+    }
+
+}
@@ -1,5 +1,6 @@
 package gb.esac.timeseries;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 
 import cern.colt.list.DoubleArrayList;
@@ -90,6 +91,88 @@ public final class TimeSeriesOperations {
 	return getSegment(ts, time1, time2);
     }
 
+    /**
+     * Split a <code>TimeSeries</code> into segments of equal duration in a single pass.
+     * Segments start every segmentLength*(1-overlap) seconds from the start of the series, and contain the bins that
+     * lie entirely within them. A segment is kept only if the summed width of its non-NaN bins is at least
+     * minFillFraction*segmentLength, and if it contains at least two bins. Each segment is a compact copy of the bins
+     * it contains, and its tStart is the left edge of its first bin.
+     *
+     * @param lc a <code>TimeSeries</code> value
+     * @param segmentLength a <code>double</code> value: duration of each segment in seconds
+     * @param overlap a <code>double</code> value: fraction of a segment shared with the next one, in [0, 1)
+     * @param minFillFraction a <code>double</code> value: minimum fraction of a segment covered by data, in [0, 1]
+     * @return a <code>TimeSeries[]</code> value (empty if no segment qualifies)
+     * @exception TimeSeriesException if the arguments are out of range
+     */
+    public static TimeSeries[] getSegments(TimeSeries lc, double segmentLength, double overlap, double minFillFraction) throws TimeSeriesException {
+	logger.info("Extracting segments of "+segmentLength+" s (overlap = "+overlap+", minFillFraction = "+minFillFraction+")");
+	if ( segmentLength <= 0 ) {
+	    throw new TimeSeriesException("Segment length must be positive");
+	}
+	if ( overlap < 0 || overlap >= 1 ) {
+	    throw new TimeSeriesException("Overlap must be in [0, 1)");
+	}
+	if ( minFillFraction < 0 || minFillFraction > 1 ) {
+	    throw new TimeSeriesException("Minimum fill fraction must be in [0, 1]");
+	}
+	int nBins = lc.nBins();
+	double[] binEdges = lc.internalBinEdges();
+	double[] binWidths = lc.internalBinWidths();
+	ValidityMask validity = lc.validity();
+	//  Cumulative exposure of the non-NaN bins to get the fill of each segment in constant time
+	double[] cumulativeExposure = new double[nBins+1];
+	for ( int i=0; i < nBins; i++ ) {
+	    cumulativeExposure[i+1] = cumulativeExposure[i] + (validity.isValid(i) ? binWidths[i] : 0);
+	}
+	double step = segmentLength*(1 - overlap);
+	double tolerance = 1e-6*Math.min(segmentLength, lc.minBinWidth());
+	double duration = lc.duration();
+	ArrayList<TimeSeries> segments = new ArrayList<TimeSeries>();
+	int nSkipped = 0;
+	int first = 0;
+	int last = 0;
+	int k = 0;
+	double time1 = 0;
+	while ( time1 + segmentLength <= duration + tolerance ) {
+	    double time2 = time1 + segmentLength;
+	    //  Both indices only move forward: first is the first bin starting in the segment, last is one past the end
+	    while ( first < nBins && binEdges[2*first] < time1 - tolerance ) {
+		first++;
+	    }
+	    last = Math.max(last, first);
+	    while ( last < nBins && binEdges[2*last+1] <= time2 + tolerance ) {
+		last++;
+	    }
+	    double fill = (cumulativeExposure[last] - cumulativeExposure[first])/segmentLength;
+	    if ( last - first >= 2 && fill >= minFillFraction ) {
+		segments.add(copyOfBins(lc, first, last));
+	    }
+	    else {
+		nSkipped++;
+	    }
+	    k++;
+	    time1 = k*step;
+	}
+	logger.info("  Extracted "+segments.size()+" segments ("+nSkipped+" skipped for insufficient coverage)");
+	return segments.toArray(new TimeSeries[segments.size()]);
+    }
+
+    private static TimeSeries copyOfBins(TimeSeries lc, int first, int last) {
+	double[] binEdges = lc.internalBinEdges();
+	double[] segmentEdges = Arrays.copyOfRange(binEdges, 2*first, 2*last);
+	double tStart = lc.tStart() + binEdges[2*first];
+	if ( lc.errorsAreSet() ) {
+	    double[] rates = Arrays.copyOfRange(lc.internalRates(), first, last);
+	    double[] errors = Arrays.copyOfRange(lc.internalErrorsOnRates(), first, last);
+	    return new TimeSeries(tStart, segmentEdges, rates, errors);
+	}
+	else {
+	    double[] binHeights = Arrays.copyOfRange(lc.internalBinHeights(), first, last);
+	    return new TimeSeries(tStart, segmentEdges, binHeights);
+	}
+    }
+
     public static TimeSeries foldForward(TimeSeries ts, int nBinsForward) throws TimeSeriesException {
 	logger.info("Folding forward by "+nBinsForward+" bins");
 	double[] binEdges = ts.getBinEdges();
@@ -258,7 +341,9 @@ public final class TimeSeriesOperations {
 				double[] rateAndError = TimeSeriesResampler.getRateFromTo(thisLC, leftEdgeOfNewBin, rightEdgeOfNewBin);
 				double rate = rateAndError[0];
 				double error = rateAndError[1];
-				double weight = 1/Math.pow(error, 2);
+				//  This TimeSeries has no exposure in the new bin
+				if ( Double.isNaN(rate) ) continue;
+				double weight = 1/(error*error);
 				weightedSum += weight*rate;
 				sumOfWeights += weight;
 		    }
@@ -0,0 +1,127 @@
+package gb.esac.timeseries;
+
+
+/**
+ *
+ * The class <code>TimeSeriesRangeIndex</code> holds the cumulative sums of the counts (rate*width), the exposure
+ * (width) and the variance ((error*width)^2) of the bins of a time series. With these, the mean rate and its error
+ * over any interval [t1, t2] are obtained in O(log n): two binary searches for the end bins, whose partial overlaps
+ * are added explicitly, and a difference of cumulative sums for the bins in between.
+ *
+ * Bins whose rate is NaN contribute nothing, like gaps. The index is built once per series by
+ * <code>AbstractTimeSeries.rangeIndex()</code> and is immutable.
+ *
+ */
+
+final class TimeSeriesRangeIndex {
+
+    private final double tStart;
+    private final int nBins;
+    private final double[] binEdges;
+    private final double[] rates;
+    private final double[] errors;
+    //  cumX[k] is the sum over the bins 0 to k-1
+    private final double[] cumCounts;
+    private final double[] cumExposure;
+    private final double[] cumVariance;
+
+    TimeSeriesRangeIndex(AbstractTimeSeries ts) {
+	this.tStart = ts.tStart();
+	this.nBins = ts.nBins();
+	this.binEdges = ts.internalBinEdges();
+	this.rates = ts.internalRates();
+	this.errors = ts.internalErrorsOnRates();
+	this.cumCounts = new double[nBins+1];
+	this.cumExposure = new double[nBins+1];
+	this.cumVariance = new double[nBins+1];
+	for ( int k=0; k < nBins; k++ ) {
+	    double counts = 0;
+	    double exposure = 0;
+	    double variance = 0;
+	    if ( ! Double.isNaN(rates[k]) ) {
+		exposure = binEdges[2*k+1] - binEdges[2*k];
+		counts = rates[k]*exposure;
+		double e = errors[k]*exposure;
+		variance = e*e;
+	    }
+	    cumCounts[k+1] = cumCounts[k] + counts;
+	    cumExposure[k+1] = cumExposure[k] + exposure;
+	    cumVariance[k+1] = cumVariance[k] + variance;
+	}
+    }
+
+    int nBins() { return this.nBins; }
+
+    /**
+     * Returns {counts, exposure, variance} summed over [t1, t2], where the times are absolute (not relative to tStart).
+     */
+    double[] sumsFromTo(double t1, double t2) {
+	double a = t1 - tStart;
+	double b = t2 - tStart;
+	double counts = 0;
+	double exposure = 0;
+	double variance = 0;
+	if ( b > a && nBins > 0 ) {
+	    //  First bin ending after a, and first bin starting at or after b
+	    int first = TimeSeriesResampler.firstOverlappingBin(binEdges, nBins, a);
+	    int end = firstBinStartingFrom(b);
+	    if ( first < end ) {
+		int last = end - 1;
+		//  Full bins strictly between the two end bins
+		if ( last - first > 1 ) {
+		    counts = cumCounts[last] - cumCounts[first+1];
+		    exposure = cumExposure[last] - cumExposure[first+1];
+		    variance = cumVariance[last] - cumVariance[first+1];
+		}
+		double[] partial = new double[3];
+		addPartialBin(first, a, b, partial);
+		if ( last != first ) {
+		    addPartialBin(last, a, b, partial);
+		}
+		counts += partial[0];
+		exposure += partial[1];
+		variance += partial[2];
+	    }
+	}
+	return new double[] {counts, exposure, variance};
+    }
+
+    /**
+     * Returns {mean rate, error} over [t1, t2] in absolute time. Both are NaN if the interval holds no exposure.
+     */
+    double[] rateAndErrorFromTo(double t1, double t2) {
+	double[] sums = sumsFromTo(t1, t2);
+	double exposure = sums[1];
+	if ( exposure > 0 ) {
+	    return new double[] {sums[0]/exposure, Math.sqrt(sums[2])/exposure};
+	}
+	return new double[] {Double.NaN, Double.NaN};
+    }
+
+    private void addPartialBin(int k, double a, double b, double[] sums) {
+	if ( Double.isNaN(rates[k]) ) return;
+	double overlap = Math.min(b, binEdges[2*k+1]) - Math.max(a, binEdges[2*k]);
+	if ( overlap > 0 ) {
+	    double e = errors[k]*overlap;
+	    sums[0] += rates[k]*overlap;
+	    sums[1] += overlap;
+	    sums[2] += e*e;
+	}
+    }
+
+    private int firstBinStartingFrom(double t) {
+	int lo = 0;
+	int hi = nBins;
+	while ( lo < hi ) {
+	    int mid = (lo + hi) >>> 1;
+	    if ( binEdges[2*mid] < t ) {
+		lo = mid + 1;
+	    }
+	    else {
+		hi = mid;
+	    }
+	}
+	return lo;
+    }
+
+}
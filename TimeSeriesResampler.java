@@ -1,11 +1,13 @@
 package gb.esac.timeseries;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 import gb.esac.binner.BinningException;
 import gb.esac.binner.BinningUtils;
 import gb.esac.binner.Rebinner;
 import gb.esac.binner.Resampler;
 import gb.esac.binner.IntensityBinResampler;
-import gb.esac.tools.DataUtils;
 import gb.esac.tools.MinMax;
 import org.apache.log4j.Logger;
 import gb.esac.binner.DensityBin;
@@ -19,6 +21,40 @@ public final class TimeSeriesResampler {
 
     private static Logger logger  = Logger.getLogger(TimeSeriesResampler.class);
 
+    //  Number of new bins per parallel task of the sweep; smaller grids are resampled sequentially
+    static final int BINS_PER_CHUNK = 1 << 16;
+
+    //  Cache of resampled series: null unless enabled with enableCache
+    private static volatile ResampledSeriesCache cache = null;
+
+    /**
+     * Enables the cache of resampled series used by <code>resample(lc, newBinWidth)</code> and
+     * <code>resample(lc, newBinEdges)</code>. The least recently used series are evicted when the estimated
+     * memory used by the cached series exceeds <code>maxBytes</code>. Cached series are shared between callers.
+     * Enabling the cache again replaces it with an empty one.
+     *
+     * @param maxBytes a <code>long</code> value
+     */
+    public static void enableCache(long maxBytes) {
+		logger.info("Enabling cache of resampled TimeSeries (maxBytes = "+maxBytes+")");
+		cache = new ResampledSeriesCache(maxBytes);
+    }
+
+    public static void disableCache() {
+		logger.info("Disabling cache of resampled TimeSeries");
+		cache = null;
+    }
+
+    public static void clearCache() {
+		ResampledSeriesCache c = cache;
+		if ( c != null ) c.clear();
+    }
+
+    public static boolean cacheIsEnabled() { return cache != null; }
+    public static long cacheHits() { ResampledSeriesCache c = cache; return c == null ? 0 : c.hits(); }
+    public static long cacheMisses() { ResampledSeriesCache c = cache; return c == null ? 0 : c.misses(); }
+    public static long cacheBytes() { ResampledSeriesCache c = cache; return c == null ? 0 : c.bytes(); }
+
     public static TimeSeries rebinToMinSignif(TimeSeries lc, double minSignif) {
 		logger.info("Rebinning TimeSeries to minSignif = "+minSignif);
 		double[][] binEdgesRatesAndErrors = Rebinner.rebinToMinSignif(lc.getRates(), lc.getErrorsOnRates(), lc.getBinEdges(), minSignif);
@@ -47,7 +83,6 @@ public final class TimeSeriesResampler {
 		else {
 		    logger.info("Resampling TimeSeries to closest power of 2");
 		    double powerOfTwo = Math.ceil(n);
-		    powerOfTwo = Math.floor(n);
 		    int nBins = (int) Math.pow(2, powerOfTwo);
 		    ts = resample(lc, nBins);
 		}
@@ -62,13 +97,273 @@ public final class TimeSeriesResampler {
 
     public static TimeSeries resample(TimeSeries lc, double newBinWidth) throws BinningException {
 		logger.info("Resampling TimeSeries to newBinWidth = "+newBinWidth);
+		ResampledSeriesCache c = cache;
+		if ( c != null ) {
+		    TimeSeries cached = c.get(lc, newBinWidth);
+		    if ( cached != null ) {
+			logger.info("Returning cached TimeSeries");
+			return cached;
+		    }
+		}
 		double[] newBinEdges = BinningUtils.getBinEdges(0, lc.duration(), newBinWidth);
-		return resample(lc, newBinEdges);
+		TimeSeries ts = resampleOnto(lc, newBinEdges);
+		if ( c != null ) {
+		    c.put(lc, newBinWidth, ts);
+		}
+		return ts;
     }
 
     public static TimeSeries resample(TimeSeries lc, double[] newBinEdges) throws BinningException {
 		logger.info("Resampling TimeSeries using defined binEdges");
+		ResampledSeriesCache c = cache;
+		if ( c != null ) {
+		    TimeSeries cached = c.get(lc, newBinEdges);
+		    if ( cached != null ) {
+			logger.info("Returning cached TimeSeries");
+			return cached;
+		    }
+		}
+		TimeSeries ts = resampleOnto(lc, newBinEdges);
+		if ( c != null ) {
+		    c.put(lc, newBinEdges, ts);
+		}
+		return ts;
+    }
+
+    private static TimeSeries resampleOnto(TimeSeries lc, double[] newBinEdges) {
+		int ratio = integerRatio(lc, newBinEdges);
+		if ( ratio > 0 ) {
+		    logger.info("New bins are aligned and "+ratio+" times as wide as the old ones: Summing bins");
+		    return resampleByIntegerRatio(lc, newBinEdges, ratio);
+		}
+		int nnewBins = newBinEdges.length/2;
+		double[] rebRates = new double[nnewBins];
+		double[] rebErrors = new double[nnewBins];
+		double[] oldBinEdges = lc.internalBinEdges();
+		double[] rates = lc.internalRates();
+		double[] errors = lc.internalErrorsOnRates();
+		if ( nnewBins > BINS_PER_CHUNK ) {
+		    SweepChunk task = new SweepChunk(oldBinEdges, rates, errors, lc.nBins(), newBinEdges, 0, nnewBins, rebRates, rebErrors);
+		    ForkJoinPool.commonPool().invoke(task);
+		}
+		else {
+		    int startIndex = firstOverlappingBin(oldBinEdges, lc.nBins(), nnewBins > 0 ? newBinEdges[0] : 0);
+		    sweep(oldBinEdges, rates, errors, lc.nBins(), newBinEdges, 0, nnewBins, startIndex, rebRates, rebErrors);
+		}
+		return new TimeSeries(lc.tStart(), newBinEdges, rebRates, rebErrors);
+    }
+
+    /**
+     * Returns k if the old bins have a constant width w, the new bins are contiguous with constant width k*w, and
+     * every old bin lies on the grid of width w that starts at the first new edge. Returns 0 otherwise.
+     */
+    static int integerRatio(TimeSeries lc, double[] newBinEdges) {
+		int nnewBins = newBinEdges.length/2;
+		int nOldBins = lc.nBins();
+		if ( ! lc.binWidthIsConstant() || nnewBins == 0 || nOldBins == 0 ) {
+		    return 0;
+		}
+		double[] oldBinEdges = lc.internalBinEdges();
+		double oldWidth = oldBinEdges[1] - oldBinEdges[0];
+		double newWidth = newBinEdges[1] - newBinEdges[0];
+		double tolerance = 1e-6*oldWidth;
+		long k = Math.round(newWidth/oldWidth);
+		if ( k < 1 || k > Integer.MAX_VALUE || Math.abs(k*oldWidth - newWidth) > tolerance ) {
+		    return 0;
+		}
+		double origin = newBinEdges[0];
+		for ( int i=0; i < nnewBins; i++ ) {
+		    if ( Math.abs(newBinEdges[2*i] - (origin + i*newWidth)) > tolerance
+			 || Math.abs(newBinEdges[2*i+1] - (origin + (i+1)*newWidth)) > tolerance ) {
+			return 0;
+		    }
+		}
+		for ( int j=0; j < nOldBins; j++ ) {
+		    long g = Math.round((oldBinEdges[2*j] - origin)/oldWidth);
+		    if ( Math.abs(oldBinEdges[2*j] - (origin + g*oldWidth)) > tolerance
+			 || Math.abs(oldBinEdges[2*j+1] - (origin + (g+1)*oldWidth)) > tolerance ) {
+			return 0;
+		    }
+		}
+		return (int) k;
+    }
+
+    /**
+     * Sums the counts, exposure and variance ((error*width)^2) of every group of k old bins. NaN bins and gaps
+     * reduce the exposure of the new bin, and new bins without exposure are NaN. When the input is a counts series
+     * and every new bin is fully exposed, the result is a counts series holding the exact sums of the old counts.
+     */
+    static TimeSeries resampleByIntegerRatio(TimeSeries lc, double[] newBinEdges, int k) {
+		int nnewBins = newBinEdges.length/2;
+		int nOldBins = lc.nBins();
+		double[] oldBinEdges = lc.internalBinEdges();
+		double[] binHeights = lc.internalBinHeights();
+		double[] binWidths = lc.internalBinWidths();
+		double[] errors = lc.internalErrorsOnRates();
+		double oldWidth = oldBinEdges[1] - oldBinEdges[0];
+		double origin = newBinEdges[0];
+		double[] counts = new double[nnewBins];
+		double[] exposure = new double[nnewBins];
+		double[] variance = new double[nnewBins];
+		int[] nFilled = new int[nnewBins];
+		for ( int j=0; j < nOldBins; j++ ) {
+		    if ( Double.isNaN(binHeights[j]) ) continue;
+		    long g = Math.round((oldBinEdges[2*j] - origin)/oldWidth);
+		    if ( g < 0 ) continue;
+		    long i = g/k;
+		    if ( i >= nnewBins ) break;
+		    double e = errors[j]*binWidths[j];
+		    counts[(int) i] += binHeights[j];
+		    exposure[(int) i] += binWidths[j];
+		    variance[(int) i] += e*e;
+		    nFilled[(int) i]++;
+		}
+		boolean allFilled = true;
+		for ( int i=0; i < nnewBins && allFilled; i++ ) {
+		    allFilled = nFilled[i] == k;
+		}
+		if ( ! lc.errorsAreSet() && allFilled ) {
+		    return new TimeSeries(lc.tStart(), newBinEdges, counts);
+		}
+		double[] rebRates = new double[nnewBins];
+		double[] rebErrors = new double[nnewBins];
+		for ( int i=0; i < nnewBins; i++ ) {
+		    if ( exposure[i] > 0 ) {
+			rebRates[i] = counts[i]/exposure[i];
+			rebErrors[i] = Math.sqrt(variance[i])/exposure[i];
+		    }
+		    else {
+			rebRates[i] = Double.NaN;
+			rebErrors[i] = Double.NaN;
+		    }
+		}
+		return new TimeSeries(lc.tStart(), newBinEdges, rebRates, rebErrors);
+    }
+
+    /**
+     * Two-pointer sweep over the old and new bins for the new bins <code>[firstNewBin, lastNewBin)</code>.
+     * The rate of each new bin is the exposure-weighted mean of the rates of the old bins it overlaps,
+     * and its error is sqrt(sum((error*overlap)^2))/sum(overlap). Old bins whose rate is NaN are skipped,
+     * and new bins that do not overlap any old bin (gaps) are set to NaN.
+     * Both sets of edges are interleaved (left, right) pairs sorted in time.
+     *
+     * @param startIndex the index of the first old bin that can overlap the new bin <code>firstNewBin</code>
+     */
+    static void sweep(double[] oldBinEdges, double[] rates, double[] errors, int nOldBins, double[] newBinEdges, int firstNewBin, int lastNewBin, int startIndex, double[] rebRates, double[] rebErrors) {
+		sweep(oldBinEdges, rates, errors, nOldBins, newBinEdges, firstNewBin, lastNewBin, startIndex, rebRates, rebErrors, null);
+    }
+
+    /**
+     * Same as the sweep above, writing into the caller's arrays. errors and rebErrors may both be null when only
+     * the rates are needed, and if exposures is not null, it receives the total overlap of each new bin with old bins
+     * whose rate is not NaN (0 in gaps).
+     */
+    static void sweep(double[] oldBinEdges, double[] rates, double[] errors, int nOldBins, double[] newBinEdges, int firstNewBin, int lastNewBin, int startIndex, double[] rebRates, double[] rebErrors, double[] exposures) {
+		boolean withErrors = errors != null && rebErrors != null;
+		int k = startIndex;
+		for ( int i=firstNewBin; i < lastNewBin; i++ ) {
+		    double newLeft = newBinEdges[2*i];
+		    double newRight = newBinEdges[2*i+1];
+		    //  Skip the old bins that end before this new bin starts
+		    while ( k < nOldBins && oldBinEdges[2*k+1] <= newLeft ) {
+			k++;
+		    }
+		    double counts = 0;
+		    double variance = 0;
+		    double exposure = 0;
+		    //  An old bin can straddle several new bins, so k is only moved by the loop above
+		    int j = k;
+		    while ( j < nOldBins && oldBinEdges[2*j] < newRight ) {
+			double overlap = Math.min(newRight, oldBinEdges[2*j+1]) - Math.max(newLeft, oldBinEdges[2*j]);
+			if ( overlap > 0 && ! Double.isNaN(rates[j]) ) {
+			    counts += rates[j]*overlap;
+			    if ( withErrors ) {
+				double e = errors[j]*overlap;
+				variance += e*e;
+			    }
+			    exposure += overlap;
+			}
+			j++;
+		    }
+		    if ( exposure > 0 ) {
+			rebRates[i] = counts/exposure;
+			if ( withErrors ) rebErrors[i] = Math.sqrt(variance)/exposure;
+		    }
+		    else {
+			rebRates[i] = Double.NaN;
+			if ( withErrors ) rebErrors[i] = Double.NaN;
+		    }
+		    if ( exposures != null ) {
+			exposures[i] = exposure;
+		    }
+		}
+    }
+
+    /**
+     * Sweeps a range of new bins, splitting it in halves down to <code>BINS_PER_CHUNK</code> bins. Each chunk finds its
+     * first old bin by binary search, which is where the sequential sweep would be when reaching it, and every new
+     * bin is computed from the same old bins in the same order, so the result is identical to the sequential one.
+     */
+    private static final class SweepChunk extends RecursiveAction {
+
+	private final double[] oldBinEdges;
+	private final double[] rates;
+	private final double[] errors;
+	private final int nOldBins;
+	private final double[] newBinEdges;
+	private final int from;
+	private final int to;
+	private final double[] rebRates;
+	private final double[] rebErrors;
 
+	SweepChunk(double[] oldBinEdges, double[] rates, double[] errors, int nOldBins, double[] newBinEdges, int from, int to, double[] rebRates, double[] rebErrors) {
+	    this.oldBinEdges = oldBinEdges;
+	    this.rates = rates;
+	    this.errors = errors;
+	    this.nOldBins = nOldBins;
+	    this.newBinEdges = newBinEdges;
+	    this.from = from;
+	    this.to = to;
+	    this.rebRates = rebRates;
+	    this.rebErrors = rebErrors;
+	}
+
+	@Override
+	protected void compute() {
+	    if ( this.to - this.from <= BINS_PER_CHUNK ) {
+		int startIndex = firstOverlappingBin(this.oldBinEdges, this.nOldBins, this.newBinEdges[2*this.from]);
+		sweep(this.oldBinEdges, this.rates, this.errors, this.nOldBins, this.newBinEdges, this.from, this.to, startIndex, this.rebRates, this.rebErrors);
+		return;
+	    }
+	    int mid = (this.from + this.to) >>> 1;
+	    invokeAll(new SweepChunk(this.oldBinEdges, this.rates, this.errors, this.nOldBins, this.newBinEdges, this.from, mid, this.rebRates, this.rebErrors),
+		      new SweepChunk(this.oldBinEdges, this.rates, this.errors, this.nOldBins, this.newBinEdges, mid, this.to, this.rebRates, this.rebErrors));
+	}
+    }
+
+    /**
+     * Returns the index of the first old bin whose right edge is after <code>t</code>, or <code>nOldBins</code> if there is none.
+     */
+    static int firstOverlappingBin(double[] oldBinEdges, int nOldBins, double t) {
+		int lo = 0;
+		int hi = nOldBins;
+		while ( lo < hi ) {
+		    int mid = (lo + hi) >>> 1;
+		    if ( oldBinEdges[2*mid+1] <= t ) {
+			lo = mid + 1;
+		    }
+		    else {
+			hi = mid;
+		    }
+		}
+		return lo;
+    }
+
+    /**
+     * The previous implementation of <code>resample(lc, newBinEdges)</code> using one <code>Bin</code> per new bin
+     * and one <code>DensityBin</code> per old bin. It is kept to cross-check the sweep.
+     */
+    static TimeSeries resampleWithBinObjects(TimeSeries lc, double[] newBinEdges) throws BinningException {
 		//  This is the old version of the code using Resampler.java
 		//
 		//double[][] ratesAndErrors =
@@ -112,97 +407,13 @@ public final class TimeSeriesResampler {
     }
 
 
+    /**
+     * Returns {rate, error} over the interval [t1, t2] given in absolute time. The rate is the exposure-weighted
+     * mean of the rates of the bins, including partial bins at both ends, and is NaN if the interval falls in a gap.
+     * The cumulative sums of the series are built on the first call, and each call after that is O(log n).
+     */
     public static double[] getRateFromTo(TimeSeries lc, double t1, double t2) {
-		//  Get data from TimeSeries
-		double[] edges = lc.getBinEdges();
-		double[] oldBinEdges = DataUtils.shift(edges, lc.tStart());
-		int nOldBins = lc.nBins();
-		double tstop = oldBinEdges[oldBinEdges.length-1];
-		double[] rates = lc.getRates();
-		double[] errors = lc.getErrorsOnRates();
-		//   Initialize variables
-		double counts = 0;
-		double errorCounts = 0;
-		double exposure = 0;
-		double effNewBinTime = 0;
-		//   Determine where we are in the TimeSeries
-		//  There's a bug here somewhere with the identification of the bin index. No time to look into it now.
-		//System.out.println(t1);
-		int binEdgeIndex = DataUtils.getClosestIndexInSortedData(t1, oldBinEdges);   
-		int k = (int) Math.floor(binEdgeIndex/2);  // k is the index of the old bins
-		double leftEdge = oldBinEdges[2*k];
-		double rightEdge = oldBinEdges[2*k+1];
-		boolean binEdgeIndexIsEven = binEdgeIndex%2 == 0;
-		if ( binEdgeIndexIsEven ) {	    
-		    leftEdge = t1;
-		}
-		//   Sum the counts of the old bins while within the new bin
-		double rebinnedRate = 0;
-		double rebinnedError = 0;
-		while ( k < nOldBins-1 && rightEdge <= t2 ) {
-		    exposure = (rightEdge - leftEdge);
-		    effNewBinTime += exposure;
-		    counts += exposure*rates[k];
-		    errorCounts += Math.pow(exposure*errors[k], 2);
-		    //   Move to the next old bin and define its edges
-		    k++; 
-		    if ( k < nOldBins ) {
-			leftEdge = oldBinEdges[2*k];
-			rightEdge = oldBinEdges[2*k+1];
-		    }
-		}
-		//   At this point, the next old bin is not fully contained within the new bin
-		//   If there is a gap in the old bins, and therefore, the new bin ends before or at the start 
-		//   of the next old bin, write out the final rate for the new bin and reset counts to 0
-		if ( t2 <= leftEdge ) {
-		    rebinnedRate = counts/effNewBinTime;
-		    rebinnedError = Math.sqrt(errorCounts)/effNewBinTime;
-		    //logger.debug("effNewBinTime="+effNewBinTime);
-		    //logger.debug("r="+rebinnedRates[0][i]+"\t\t e="+rebinnedRates[1][i]);
-		    effNewBinTime = 0;
-		    exposure = 0;
-		    counts = 0;
-		    errorCounts = 0;
-		}
-		//   If the new bin ends inside the next old bin, add the counts corresponding to the 
-		//   fraction of the old bin, and write out the final rate for the new bin. 
-		//   Here we reset the counts to the other fraction of the old bin. 
-		else {
-		    if ( k == nOldBins-1 ) {
-			t2 = Math.min(t2, tstop);
-			//   Add last bit of counts from the first part of the old bin
-			exposure = (t2 - leftEdge);
-			counts += rates[k]*exposure;
-			errorCounts += Math.pow(errors[k]*exposure, 2);
-			effNewBinTime += exposure;
-			rebinnedRate = counts/effNewBinTime;
-			rebinnedError = Math.sqrt(errorCounts)/effNewBinTime;
-			//logger.debug("effNewBinTime="+effNewBinTime);
-			//logger.debug("r="+rebinnedRates[0][i]+"\t\t e="+rebinnedRates[1][i]);
-		    }
-		    else {
-			//   Add last bit of counts from the first part of the old bin
-			exposure = (t2 - leftEdge);
-			counts += rates[k]*exposure;
-			errorCounts += Math.pow(errors[k]*exposure, 2);
-			effNewBinTime += exposure;
-			rebinnedRate = counts/effNewBinTime;
-			rebinnedError = Math.sqrt(errorCounts)/effNewBinTime;
-			//logger.debug("effNewBinTime="+effNewBinTime);
-			//logger.debug("r="+rebinnedRates[0][i]+"\t\t e="+rebinnedRates[1][i]);
-			//   Reset to take into account the second piece of the old bin
-			exposure = t2 - leftEdge;
-			counts = exposure*rates[k];
-			errorCounts = Math.pow(errors[k]*exposure, 2);
-			effNewBinTime = exposure;
-			//   Move to the next old bin and define its edges
-			k++;
-			if ( k < nOldBins ) {
-			    leftEdge = oldBinEdges[2*k];
-			    rightEdge = oldBinEdges[2*k+1];
-			}
-		    }
-		}
-		return new double[] {rebinnedRate, rebinnedError};
+		return lc.rangeIndex().rateAndErrorFromTo(t1, t2);
     }
+
 }
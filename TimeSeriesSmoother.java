@@ -0,0 +1,270 @@
+package gb.esac.timeseries;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>TimeSeriesSmoother</code> smooths the intensities of a time series with a box, a Gaussian or an
+ * arbitrary kernel, expressed in numbers of bins.
+ *
+ * Smoothing is gap-aware: the series is split into runs of contiguous bins at every real gap, and each run is
+ * smoothed on its own, so that no intensity is carried across a gap. Within a run, NaN bins have a weight of zero
+ * and remain NaN. Each smoothed value is the normalised convolution sum(K*v)/sum(K) over the valid bins under the
+ * kernel, which also handles the truncation of the kernel at the ends of the runs. When errors are set, they are
+ * propagated as sqrt(sum(K^2*e^2))/sum(K).
+ *
+ * The box kernel is computed with running sums in O(n) whatever its width. Other kernels are applied directly
+ * when they are short, and through FFT convolution otherwise.
+ *
+ * Series with errors are smoothed in rate; counts series are smoothed in counts per bin and returned as counts.
+ *
+ */
+
+public final class TimeSeriesSmoother {
+
+    private static Logger logger  = Logger.getLogger(TimeSeriesSmoother.class);
+
+    //  Kernels or runs up to this length are convolved directly
+    private static final int MAX_DIRECT_LENGTH = 64;
+
+    private TimeSeriesSmoother() {}
+
+    /**
+     * Smooths with a box of nBins bins centred on each bin (for even nBins, the box extends one bin further right).
+     *
+     * @param ts a <code>TimeSeries</code> value
+     * @param nBins an <code>int</code> value
+     * @return a <code>TimeSeries</code> value
+     */
+    public static TimeSeries boxSmooth(TimeSeries ts, int nBins) {
+	if ( nBins < 1 ) {
+	    throw new IllegalArgumentException("Box width must be at least 1 bin: nBins = "+nBins);
+	}
+	logger.info("Smoothing TimeSeries with a box of "+nBins+" bins");
+	int n = ts.nBins();
+	boolean errorsAreSet = ts.errorsAreSet();
+	double[] values = errorsAreSet ? ts.internalRates() : ts.internalBinHeights();
+	double[] errors = errorsAreSet ? ts.internalErrorsOnRates() : null;
+	//  Cumulative sums of the values, of the number of valid bins and of the variances
+	double[] cumValues = new double[n+1];
+	double[] cumValid = new double[n+1];
+	double[] cumVariance = errorsAreSet ? new double[n+1] : null;
+	for ( int i=0; i < n; i++ ) {
+	    boolean valid = !Double.isNaN(values[i]);
+	    cumValues[i+1] = cumValues[i] + (valid ? values[i] : 0);
+	    cumValid[i+1] = cumValid[i] + (valid ? 1 : 0);
+	    if ( errorsAreSet ) {
+		cumVariance[i+1] = cumVariance[i] + (valid ? errors[i]*errors[i] : 0);
+	    }
+	}
+	int left = (nBins-1)/2;
+	int right = nBins/2;
+	double[] smoothed = new double[n];
+	double[] smoothedErrors = errorsAreSet ? new double[n] : null;
+	int[] runs = findRuns(ts);
+	for ( int r=0; r < runs.length-1; r++ ) {
+	    int from = runs[r];
+	    int to = runs[r+1];
+	    for ( int i=from; i < to; i++ ) {
+		if ( Double.isNaN(values[i]) ) {
+		    smoothed[i] = Double.NaN;
+		    if ( errorsAreSet ) smoothedErrors[i] = Double.NaN;
+		    continue;
+		}
+		int a = Math.max(from, i - left);
+		int b = Math.min(to, i + right + 1);
+		double nValid = cumValid[b] - cumValid[a];
+		smoothed[i] = (cumValues[b] - cumValues[a])/nValid;
+		if ( errorsAreSet ) {
+		    smoothedErrors[i] = Math.sqrt(Math.max(0, cumVariance[b] - cumVariance[a]))/nValid;
+		}
+	    }
+	}
+	return makeTimeSeries(ts, smoothed, smoothedErrors);
+    }
+
+    /**
+     * Smooths with a Gaussian kernel of standard deviation sigma bins, truncated at 4 sigma.
+     *
+     * @param ts a <code>TimeSeries</code> value
+     * @param sigma a <code>double</code> value in units of bins
+     * @return a <code>TimeSeries</code> value
+     */
+    public static TimeSeries gaussianSmooth(TimeSeries ts, double sigma) {
+	if ( !(sigma > 0) ) {
+	    throw new IllegalArgumentException("Sigma must be positive: sigma = "+sigma);
+	}
+	logger.info("Smoothing TimeSeries with a Gaussian of sigma = "+sigma+" bins");
+	int halfWidth = (int) Math.ceil(4*sigma);
+	double[] kernel = new double[2*halfWidth+1];
+	for ( int j=-halfWidth; j <= halfWidth; j++ ) {
+	    kernel[j+halfWidth] = Math.exp(-0.5*(j/sigma)*(j/sigma));
+	}
+	return smooth(ts, kernel);
+    }
+
+    /**
+     * Smooths with an arbitrary kernel of odd length, centred on each bin. The kernel does not need to be normalised.
+     *
+     * @param ts a <code>TimeSeries</code> value
+     * @param kernel a <code>double[]</code> value
+     * @return a <code>TimeSeries</code> value
+     */
+    public static TimeSeries smooth(TimeSeries ts, double[] kernel) {
+	if ( kernel.length % 2 == 0 ) {
+	    throw new IllegalArgumentException("Kernel length must be odd: length = "+kernel.length);
+	}
+	logger.info("Smoothing TimeSeries with a kernel of "+kernel.length+" bins");
+	int n = ts.nBins();
+	boolean errorsAreSet = ts.errorsAreSet();
+	double[] values = errorsAreSet ? ts.internalRates() : ts.internalBinHeights();
+	double[] errors = errorsAreSet ? ts.internalErrorsOnRates() : null;
+	double[] squaredKernel = null;
+	if ( errorsAreSet ) {
+	    squaredKernel = new double[kernel.length];
+	    for ( int j=0; j < kernel.length; j++ ) {
+		squaredKernel[j] = kernel[j]*kernel[j];
+	    }
+	}
+	double[] smoothed = new double[n];
+	double[] smoothedErrors = errorsAreSet ? new double[n] : null;
+	int[] runs = findRuns(ts);
+	for ( int r=0; r < runs.length-1; r++ ) {
+	    int from = runs[r];
+	    int to = runs[r+1];
+	    if ( kernel.length <= MAX_DIRECT_LENGTH || to - from <= MAX_DIRECT_LENGTH ) {
+		convolveDirect(values, errors, from, to, kernel, smoothed, smoothedErrors);
+	    }
+	    else {
+		convolveFFT(values, errors, from, to, kernel, squaredKernel, smoothed, smoothedErrors);
+	    }
+	}
+	return makeTimeSeries(ts, smoothed, smoothedErrors);
+    }
+
+    /**
+     * Returns the boundaries of the runs of contiguous bins: run r is [runs[r], runs[r+1]).
+     */
+    static int[] findRuns(TimeSeries ts) {
+	GapIndex gaps = ts.gapIndex();
+	int nGaps = gaps.nGaps();
+	int[] runs = new int[nGaps+2];
+	runs[0] = 0;
+	for ( int k=0; k < nGaps; k++ ) {
+	    runs[k+1] = gaps.binIndex(k);
+	}
+	runs[nGaps+1] = ts.nBins();
+	return runs;
+    }
+
+    private static void convolveDirect(double[] values, double[] errors, int from, int to, double[] kernel, double[] smoothed, double[] smoothedErrors) {
+	int h = kernel.length/2;
+	for ( int i=from; i < to; i++ ) {
+	    if ( Double.isNaN(values[i]) ) {
+		smoothed[i] = Double.NaN;
+		if ( errors != null ) smoothedErrors[i] = Double.NaN;
+		continue;
+	    }
+	    double sum = 0;
+	    double sumOfWeights = 0;
+	    double variance = 0;
+	    int a = Math.max(from, i - h);
+	    int b = Math.min(to - 1, i + h);
+	    for ( int j=a; j <= b; j++ ) {
+		if ( Double.isNaN(values[j]) ) continue;
+		double k = kernel[j - i + h];
+		sum += k*values[j];
+		sumOfWeights += k;
+		if ( errors != null ) {
+		    variance += k*k*errors[j]*errors[j];
+		}
+	    }
+	    smoothed[i] = sum/sumOfWeights;
+	    if ( errors != null ) {
+		smoothedErrors[i] = Math.sqrt(variance)/Math.abs(sumOfWeights);
+	    }
+	}
+    }
+
+    private static void convolveFFT(double[] values, double[] errors, int from, int to, double[] kernel, double[] squaredKernel, double[] smoothed, double[] smoothedErrors) {
+	int length = to - from;
+	int h = kernel.length/2;
+	int nPadded = FFTPlan.nextPowerOfTwo(length + kernel.length - 1);
+	FFTPlan plan = FFTPlan.forSize(nPadded);
+	double[] re = DoubleArrayPool.acquire(nPadded);
+	double[] im = DoubleArrayPool.acquire(nPadded);
+	double[] kRe = DoubleArrayPool.acquire(nPadded);
+	double[] kIm = DoubleArrayPool.acquire(nPadded);
+	double[] sumsOfWeights = DoubleArrayPool.acquire(nPadded);
+	try {
+	    //  Convolve the masked values (real part) and the mask (imaginary part) together, as the kernel is real
+	    for ( int t=0; t < nPadded; t++ ) {
+		if ( t < length && !Double.isNaN(values[from+t]) ) {
+		    re[t] = values[from+t];
+		    im[t] = 1;
+		}
+		else {
+		    re[t] = 0;
+		    im[t] = 0;
+		}
+	    }
+	    convolve(plan, re, im, kernel, kRe, kIm);
+	    for ( int t=0; t < length; t++ ) {
+		int i = from + t;
+		sumsOfWeights[t] = im[t+h];
+		smoothed[i] = Double.isNaN(values[i]) ? Double.NaN : re[t+h]/im[t+h];
+	    }
+	    if ( errors != null ) {
+		for ( int t=0; t < nPadded; t++ ) {
+		    re[t] = t < length && !Double.isNaN(values[from+t]) ? errors[from+t]*errors[from+t] : 0;
+		    im[t] = 0;
+		}
+		convolve(plan, re, im, squaredKernel, kRe, kIm);
+		for ( int t=0; t < length; t++ ) {
+		    int i = from + t;
+		    if ( Double.isNaN(values[i]) ) {
+			smoothedErrors[i] = Double.NaN;
+		    }
+		    else {
+			smoothedErrors[i] = Math.sqrt(Math.max(0, re[t+h]))/Math.abs(sumsOfWeights[t]);
+		    }
+		}
+	    }
+	}
+	finally {
+	    DoubleArrayPool.release(re);
+	    DoubleArrayPool.release(im);
+	    DoubleArrayPool.release(kRe);
+	    DoubleArrayPool.release(kIm);
+	    DoubleArrayPool.release(sumsOfWeights);
+	}
+    }
+
+    //  Linear convolution of (re, im) with a real kernel, in place; the result for input index t is at t+h
+    private static void convolve(FFTPlan plan, double[] re, double[] im, double[] kernel, double[] kRe, double[] kIm) {
+	int nPadded = plan.size();
+	for ( int t=0; t < nPadded; t++ ) {
+	    //  The kernel is reversed so that the result is the correlation sum_j K[j]*x[t+j-h], as in convolveDirect
+	    kRe[t] = t < kernel.length ? kernel[kernel.length-1-t] : 0;
+	    kIm[t] = 0;
+	}
+	plan.forward(kRe, kIm);
+	plan.forward(re, im);
+	for ( int k=0; k < nPadded; k++ ) {
+	    double r = re[k]*kRe[k] - im[k]*kIm[k];
+	    double i = re[k]*kIm[k] + im[k]*kRe[k];
+	    re[k] = r/nPadded;
+	    im[k] = i/nPadded;
+	}
+	plan.backward(re, im);
+    }
+
+    private static TimeSeries makeTimeSeries(TimeSeries ts, double[] smoothed, double[] smoothedErrors) {
+	if ( smoothedErrors != null ) {
+	    return new TimeSeries(ts.tStart(), ts.internalBinEdges(), smoothed, smoothedErrors);
+	}
+	return new TimeSeries(ts.tStart(), ts.internalBinEdges(), smoothed);
+    }
+
+}
@@ -1,16 +1,10 @@
 package gb.esac.timeseries;
 
-import cern.colt.list.DoubleArrayList;
 import gb.esac.binner.BinningException;
-import gb.esac.binner.BinningUtils;
-import gb.esac.periodogram.WindowFunction;
 import gb.esac.periodogram.WindowFunctionException;
-import gb.esac.tools.Converter;
 import gb.esac.tools.DataSmoother;
-import gb.esac.tools.DataUtils;
-import gb.esac.tools.DistributionFunc;
-import hep.aida.ref.histogram.Histogram1D;
 import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 import org.apache.log4j.Logger;
 
 
@@ -70,111 +64,61 @@ public final class TimeSeriesUtils {
     // }
 
     public static double[] getRandomArrivalTimes(TimeSeries ts, int nEvents) {
-		double tzero = ts.tStart();
-		double binTime = ts.duration()/ts.nBins();
-		Histogram1D lcHisto = Converter.array2histo("light curve", tzero, binTime, ts.getRates());
-		Histogram1D cdfHisto = DistributionFunc.getCDFHisto(lcHisto);
-		double[] times = DistributionFunc.getRandom(cdfHisto, nEvents);
-		Arrays.sort(times);
-		return times;
+		return ArrivalTimesSimulator.simulate(ts, nEvents, ThreadLocalRandom.current().nextLong());
     }
 
     public static TimeSeries dropLeadingAndTrailingNaNs(TimeSeries ts) {
 		logger.warn("Dropping leading and trailing NaNs");
-		TimeSeries newTimeSeries = new TimeSeries(ts);
-
-		int nLeadingNaNs = countLeadingNaNs(ts);
-		int nTrailingNaNs = countTrailingNaNs(ts);
-		if ( nLeadingNaNs != 0 && nTrailingNaNs == 0 ) {
-		    newTimeSeries = dropLeadingBins(ts, nLeadingNaNs);
-		}
-		else if ( nLeadingNaNs == 0 && nTrailingNaNs != 0 ) {
-		    newTimeSeries =  dropTrailingBins(ts, nTrailingNaNs);
+		ValidityMask validity = ts.validity();
+		if ( validity.nValid() == 0 ) {
+		    throw new IllegalArgumentException("TimeSeries has no valid bins");
 		}
-		else if ( nLeadingNaNs != 0 && nTrailingNaNs != 0 ) {
-		    TimeSeries tmp = dropLeadingBins(ts, nLeadingNaNs);
-		    newTimeSeries = dropTrailingBins(tmp, nTrailingNaNs);
+		int first = validity.firstValid();
+		int last = validity.lastValid();
+		if ( first == 0 && last == ts.nBins()-1 ) {
+		    return new TimeSeries(ts);
 		}
-		return newTimeSeries;
+		logger.info("Dropping the first "+first+" and the last "+(ts.nBins()-1-last)+" bins");
+		return keepBins(ts, first, last+1);
     }
 
     public static TimeSeries dropLeadingBins(TimeSeries ts, int nBinsToDrop) {
 		logger.info("Dropping the first "+nBinsToDrop+" bins");
-		double[] binEdges = ts.getBinEdges();
-
-		//  Define new tStart to correspond to the start of the first non-NaN bin
-		double leftEdgeOfFirstGoodBin = binEdges[2*nBinsToDrop];
-		double newTStart = ts.tStart() + leftEdgeOfFirstGoodBin;
-
-		//  Define new binEdges
-		double[] shiftedBinEdges = DataUtils.shift(binEdges, -leftEdgeOfFirstGoodBin);
-		double[] newBinEdges = new double[binEdges.length - 2*nBinsToDrop];
-		for ( int i=0; i < newBinEdges.length; i++ ) {
-		    newBinEdges[i] = shiftedBinEdges[i+2*nBinsToDrop];
-		}
-		
-		//  Define new binHeights and construct the new TimeSeries
-		if ( ts.errorsAreSet() ) {
-		    double[] rates = ts.getRates();
-		    double[] errors = ts.getErrorsOnRates();
-		    double[] newRates = new double[rates.length - nBinsToDrop];
-		    double[] newErrors = new double[newRates.length];
-		    for ( int i=0; i < newRates.length; i++ ) {
-			newRates[i] = rates[i+nBinsToDrop];
-			newErrors[i] = errors[i+nBinsToDrop];
-		    }
-		    return new TimeSeries(newTStart, newBinEdges, newRates, newErrors);
-		}
-		else {
-		    double[] binHeights = ts.getBinHeights();
-		    double[] newBinHeights = new double[binHeights.length - nBinsToDrop];
-		    for ( int i=0; i < newBinHeights.length; i++ ) {
-			newBinHeights[i] = binHeights[i+nBinsToDrop];
-		    }
-		    return new TimeSeries(newTStart, newBinEdges, newBinHeights);
-		}
+		return keepBins(ts, nBinsToDrop, ts.nBins());
     }
 
     public static TimeSeries dropTrailingBins(TimeSeries ts, int nBinsToDrop) {
 		logger.info("Dropping the last "+nBinsToDrop+" bins");
-		double[] binEdges = ts.getBinEdges();
+		return keepBins(ts, 0, ts.nBins() - nBinsToDrop);
+    }
 
-		//  Define new binEdges
-		double[] newBinEdges = new double[binEdges.length - 2*nBinsToDrop];
+    /**
+     * Returns the bins from to to-1. When leading bins are dropped, tStart moves to the start of the first bin kept.
+     */
+    private static TimeSeries keepBins(TimeSeries ts, int from, int to) {
+		if ( from < 0 || to > ts.nBins() || from >= to ) {
+		    throw new IllegalArgumentException("Cannot keep bins "+from+" to "+(to-1)+" of a TimeSeries of "+ts.nBins()+" bins");
+		}
+		double[] binEdges = ts.internalBinEdges();
+		double shift = from > 0 ? binEdges[2*from] : 0;
+		double[] newBinEdges = new double[2*(to - from)];
 		for ( int i=0; i < newBinEdges.length; i++ ) {
-		    newBinEdges[i] = binEdges[i];
+		    newBinEdges[i] = binEdges[i+2*from] - shift;
 		}
-
-		//  Define new binHeights and construct the new TimeSeries
+		double newTStart = ts.tStart() + shift;
 		if ( ts.errorsAreSet() ) {
-		    double[] rates = ts.getRates();
-		    double[] errors = ts.getErrorsOnRates();
-		    double[] newRates = new double[rates.length - nBinsToDrop];
-		    double[] newErrors = new double[newRates.length];
-		    for ( int i=0; i < newRates.length; i++ ) {
-			newRates[i] = rates[i];
-			newErrors[i] = errors[i];
-		    }
-		    return new TimeSeries(ts.tStart(), newBinEdges, newRates, newErrors);
+		    double[] newRates = Arrays.copyOfRange(ts.internalRates(), from, to);
+		    double[] newErrors = Arrays.copyOfRange(ts.internalErrorsOnRates(), from, to);
+		    return new TimeSeries(newTStart, newBinEdges, newRates, newErrors);
 		}
 		else {
-		    double[] binHeights = ts.getBinHeights();
-		    double[] newBinHeights = new double[binHeights.length - nBinsToDrop];
-		    for ( int i=0; i < newBinHeights.length; i++ ) {
-			newBinHeights[i] = binHeights[i];
-		    }
-		    return new TimeSeries(ts.tStart(), newBinEdges, newBinHeights);
+		    double[] newBinHeights = Arrays.copyOfRange(ts.internalBinHeights(), from, to);
+		    return new TimeSeries(newTStart, newBinEdges, newBinHeights);
 		}
     }
 
     public static int countLeadingNaNs(TimeSeries ts) {
-		double[] binHeights = ts.getBinHeights();
-		int nLeadingNaNs = 0;
-		int k=0;
-		while ( Double.isNaN(binHeights[k]) ) {
-		    nLeadingNaNs++;
-		    k++;
-		}
+		int nLeadingNaNs = ts.validity().firstValid();
 		if ( nLeadingNaNs > 0 ) {
 		    logger.warn("There are "+nLeadingNaNs+" leading NaNs");
 		}
@@ -185,13 +129,7 @@ public final class TimeSeriesUtils {
     }
 
     public static int countTrailingNaNs(TimeSeries ts) {
-		double[] binHeights = ts.getBinHeights();
-		int nTrailingNaNs = 0;
-		int k=binHeights.length-1;
-		while ( Double.isNaN(binHeights[k]) ) {
-		    nTrailingNaNs++;
-		    k--;
-		}
+		int nTrailingNaNs = ts.nBins() - 1 - ts.validity().lastValid();
 		if ( nTrailingNaNs > 0 ) {
 		    logger.warn("There are "+nTrailingNaNs+" trailing NaNs");
 		}
@@ -202,179 +140,109 @@ public final class TimeSeriesUtils {
     }
 
 
+    /**
+     * Closes the gaps by moving each bin back by the total length of the gaps before it.
+     * The bins, their intensities and errors are unchanged.
+     */
     public static TimeSeries removeGaps(TimeSeries ts) throws BinningException {
 		logger.info("Removing data gaps");
-		double[] binCentres = ts.getBinCentres();
-		double[] binEdges = ts.getBinEdges();
-		double[] binWidths = ts.getBinWidths();
-		double[] gapEdges = ts.getGapEdges();
-
-		DoubleArrayList newRatesList = new DoubleArrayList();
-		DoubleArrayList newErrorsList = new DoubleArrayList();
-		DoubleArrayList newBinWidthsList = new DoubleArrayList();
-		DoubleArrayList newBinHeightsList = new DoubleArrayList();
-
-		if ( ts.errorsAreSet() ) {
-		    double[] rates = ts.getRates();
-		    double[] errors = ts.getErrorsOnRates();
-		    int k=0;
-		    int i=0;
-		    while ( i < ts.nBins() ) {
-			if ( binCentres[i] >= gapEdges[2*k] && binCentres[i] <= gapEdges[2*k+1] ) {
-			    while ( binCentres[i] >= gapEdges[2*k] && binCentres[i] <= gapEdges[2*k+1] && i < ts.nBins() ) {
-				i++;
-			    }
-			    k++;
-			}
-			else {
-			    newRatesList.add(rates[i]);
-			    newErrorsList.add(errors[i]);
-			    newBinWidthsList.add(binWidths[i]);
-			    i++;
-			}
+		GapIndex gaps = ts.gapIndex();
+		double[] binEdges = ts.internalBinEdges();
+		double[] newBinEdges = new double[binEdges.length];
+		double shift = 0;
+		int k = 0;
+		for ( int i=0; i < ts.nBins(); i++ ) {
+		    if ( k < gaps.nGaps() && gaps.binIndex(k) == i ) {
+			shift += gaps.length(k);
+			k++;
 		    }
-		    newRatesList.trimToSize();
-		    newErrorsList.trimToSize();
-		    newBinWidthsList.trimToSize();
-		    double[] newRates = newRatesList.elements();
-		    double[] newErrors = newErrorsList.elements();
-		    double[] newBinWidths = newBinWidthsList.elements();
-		    double[] newBinEdges = BinningUtils.getBinEdges(0, newBinWidths);
-		    return new TimeSeries(ts.tStart(), newBinEdges, newRates, newErrors);
+		    newBinEdges[2*i] = binEdges[2*i] - shift;
+		    newBinEdges[2*i+1] = binEdges[2*i+1] - shift;
+		}
+		if ( ts.errorsAreSet() ) {
+		    return new TimeSeries(ts.tStart(), newBinEdges, ts.internalRates(), ts.internalErrorsOnRates());
 		}
 		else {
-		    double[] binHeights = ts.getBinHeights();
-		    int k=0;
-		    int i=0;
-		    while ( i < ts.nBins() ) {
-			if ( binCentres[i] >= gapEdges[2*k] && binCentres[i] <= gapEdges[2*k+1] ) {
-			    while ( binCentres[i] >= gapEdges[2*k] && binCentres[i] <= gapEdges[2*k+1] && i < ts.nBins() ) {
-				i++;
-			    }
-			    k++;
-			}
-			else {
-			    newBinHeightsList.add(binHeights[i]);
-			    newBinWidthsList.add(binWidths[i]);
-			    i++;
-			}
-		    }
-		    newBinHeightsList.trimToSize();
-		    newBinWidthsList.trimToSize();
-		    double[] newBinHeights = newBinHeightsList.elements();
-		    double[] newBinWidths = newBinWidthsList.elements();
-		    double[] newBinEdges = BinningUtils.getBinEdges(0, newBinWidths);
-		    return new TimeSeries(ts.tStart(), newBinEdges, newBinHeights);
+		    return new TimeSeries(ts.tStart(), newBinEdges, ts.internalBinHeights());
 		}
     }
 
+    /**
+     * Inserts one bin of zero intensity (and zero error) in each gap, so that the bins are contiguous.
+     */
     public static TimeSeries fillGapsWithZeros(TimeSeries ts) {
+		GapIndex gaps = ts.gapIndex();
 		int nDataBins = ts.nBins();
-		int nnewBins = ts.nSamplingFunctionBins();
-		//System.out.println("nDataBins = "+nDataBins);
-		//System.out.println("nSamplingFunctionBins = "+nnewBins);
-		double[] samplingFuncBinEdges = ts.getSamplingFunctionBinEdges();
-		double[] samplingFuncValues = ts.getSamplingFunctionValues();
-		int nZeros = 0;
-		int nOnes = 0;
-		for ( int i=0; i < samplingFuncValues.length; i++ ) {
-		    if ( samplingFuncValues[i] == 1 ) nOnes++;
-		    else nZeros++;
+		int nnewBins = nDataBins + gaps.nGaps();
+		double[] binEdges = ts.internalBinEdges();
+		double[] values = ts.errorsAreSet() ? ts.internalRates() : ts.internalBinHeights();
+		double[] errors = ts.errorsAreSet() ? ts.internalErrorsOnRates() : null;
+		double[] newBinEdges = new double[2*nnewBins];
+		double[] newValues = new double[nnewBins];
+		double[] newErrors = errors == null ? null : new double[nnewBins];
+		int j = 0;
+		int k = 0;
+		for ( int i=0; i < nDataBins; i++ ) {
+		    if ( k < gaps.nGaps() && gaps.binIndex(k) == i ) {
+			newBinEdges[2*j] = gaps.start(k);
+			newBinEdges[2*j+1] = gaps.stop(k);
+			j++;
+			k++;
+		    }
+		    newBinEdges[2*j] = binEdges[2*i];
+		    newBinEdges[2*j+1] = binEdges[2*i+1];
+		    newValues[j] = values[i];
+		    if ( newErrors != null ) newErrors[j] = errors[i];
+		    j++;
 		}
-		//System.out.println("nZeros = "+nZeros);
-		//System.out.println("nOnes = "+nOnes);
-		//System.out.println("nDataBins+nZeros = "+(nDataBins+nZeros)+" = nnewBins = "+nnewBins);
 		if ( ts.errorsAreSet() ) {
-		    double[] rates = ts.getRates();
-		    double[] errors = ts.getErrorsOnRates();
-		    double[] newRates = new double[nnewBins];
-		    double[] newErrors = new double[nnewBins];
-		    int k=0;
-		    for ( int i=0; i < samplingFuncValues.length; i++ ) {
-			if ( samplingFuncValues[i] == 1 ) {
-			    newRates[i] = rates[k];
-			    newErrors[i] = errors[k];
-			    k++;
-			}
-			else {
-			    newRates[i] = 0;
-			    newErrors[i] = 0;
-			}
-		    }
-		    return new TimeSeries(ts.tStart(), samplingFuncBinEdges, newRates, newErrors);
+		    return new TimeSeries(ts.tStart(), newBinEdges, newValues, newErrors);
 		}
 		else {
-		    double[] binHeights = ts.getBinHeights();
-		    double[] newBinHeights = new double[nnewBins];
-		    int k=0;
-		    for ( int i=0; i < samplingFuncValues.length; i++ ) {
-			if ( samplingFuncValues[i] == 1 ) {
-			    newBinHeights[i] = binHeights[k];
-			    k++;
-			}
-			else {
-			    newBinHeights[i] = 0;
-			}
-		    }
-		    return new TimeSeries(ts.tStart(), samplingFuncBinEdges, newBinHeights);
+		    return new TimeSeries(ts.tStart(), newBinEdges, newValues);
 		}
     }
 
 
+    /**
+     * Replaces the NaN bins by linear interpolation of the rates at their own times.
+     */
     public static TimeSeries fillGaps(TimeSeries ts) {
-		/** There is a bug here:
-		     We take out the NaNs from the rates but keep the original times.
-		     This needs fixing.
-		**/
 		logger.info("Filling data gaps");
-		if ( ts.errorsAreSet() ) {
-		    double[] newRates = DataUtils.fillDataGaps(ts.getRates());
-		    double[] newErrors = DataUtils.fillDataGaps(ts.getErrorsOnRates());
-		    return new TimeSeries(ts.tStart(), ts.getBinEdges(), newRates, newErrors);
-		}
-		else {
-		    double[] newBinHeights = DataUtils.fillDataGaps(ts.getBinHeights());
-		    return new TimeSeries(ts.tStart(), ts.getBinEdges(), newBinHeights);
-		}
+		return TimeSeriesGapFiller.fillNaNs(ts, "linear");
     }
 
     public static TimeSeries scale(TimeSeries ts, double scalingFactor) {
 		logger.info("Scaling TimeSeries by a factor of "+scalingFactor);
+		IArrayArithmetic arithmetic = ArrayArithmetic.get();
+		int n = ts.nBins();
 		if ( ts.errorsAreSet() ) {
-		    double[] newRates = ts.getRates();
-		    double[] newErrors = ts.getErrorsOnRates();
-		    for ( int i=0; i < ts.nBins(); i++ ) {
-			newRates[i] *= scalingFactor;
-			newErrors[i] *= scalingFactor;
-		    }
-		    return new TimeSeries(ts.tStart(), ts.getBinEdges(), newRates, newErrors);
+		    double[] newRates = new double[n];
+		    double[] newErrors = new double[n];
+		    arithmetic.scale(ts.internalRates(), scalingFactor, newRates, n);
+		    arithmetic.scale(ts.internalErrorsOnRates(), Math.abs(scalingFactor), newErrors, n);
+		    return new TimeSeries(ts.tStart(), ts.internalBinEdges(), newRates, newErrors);
 		}
 		else {
-		    double[] newBinHeights = ts.getBinHeights();
-		    for ( int i=0; i < ts.nBins(); i++ ) {
-			newBinHeights[i] *= scalingFactor;
-		    }
-		    return new TimeSeries(ts.tStart(), ts.getBinEdges(), newBinHeights);
+		    double[] newBinHeights = new double[n];
+		    arithmetic.scale(ts.internalBinHeights(), scalingFactor, newBinHeights, n);
+		    return new TimeSeries(ts.tStart(), ts.internalBinEdges(), newBinHeights);
 		}
     }
 
     public static TimeSeries addOffset(TimeSeries ts, double offset) {
 		logger.info("Adding offset of "+offset+" to TimeSeries");
+		IArrayArithmetic arithmetic = ArrayArithmetic.get();
+		int n = ts.nBins();
 		if ( ts.errorsAreSet() ) {
-		    double[] newRates = ts.getRates();
-		    double[] newErrors = ts.getErrorsOnRates();
-		    for ( int i=0; i < ts.nBins(); i++ ) {
-				newRates[i] += offset;
-				newErrors[i] += offset;
-		    }
-		    return new TimeSeries(ts.tStart(), ts.getBinEdges(), newRates, newErrors);
+		    double[] newRates = new double[n];
+		    arithmetic.addOffset(ts.internalRates(), offset, newRates, n);
+		    return new TimeSeries(ts.tStart(), ts.internalBinEdges(), newRates, ts.internalErrorsOnRates());
 		}
 		else {
-		    double[] newBinHeights = ts.getBinHeights();
-		    for ( int i=0; i < ts.nBins(); i++ ) {
-				newBinHeights[i] += offset;
-		    }
-		    return new TimeSeries(ts.tStart(), ts.getBinEdges(), newBinHeights);
+		    double[] newBinHeights = new double[n];
+		    arithmetic.addOffset(ts.internalBinHeights(), offset, newBinHeights, n);
+		    return new TimeSeries(ts.tStart(), ts.internalBinEdges(), newBinHeights);
 		}
     }
 
@@ -390,10 +258,13 @@ public final class TimeSeriesUtils {
 	}
     }
 
+    public static TimeSeries detrend(TimeSeries ts, int order) throws TimeSeriesException {
+	return TimeSeriesDetrender.detrendPolynomial(ts, order);
+    }
+
     public static TimeSeries kalmanFilter(TimeSeries lc, double processRMS) {
 	logger.info("Kalman filtering TimeSeries");
-		double[] kalmanRates = DataSmoother.kalmanFilter(lc.getRates(), lc.getErrorsOnRates(), processRMS);
-		return new TimeSeries(lc.tStart(), lc.getBinEdges(), kalmanRates, lc.getErrorsOnRates());
+		return BatchKalmanFilter.filter(lc, processRMS).timeSeries();
     }
 
     public static TimeSeries smooth(TimeSeries ts, int nBins) throws BinningException {
@@ -401,38 +272,22 @@ public final class TimeSeriesUtils {
 		    throw new BinningException("Smoothing window size is too large. nBins must be less than bins in TimeSeries");
 		}
 		logger.info("Smoothing TimeSeries");
-
-		if ( ts.errorsAreSet() ) {
-		    double[] newRates = DataSmoother.smooth(ts.getRates(), nBins);
-		    return new TimeSeries(ts.tStart(), ts.getBinEdges(), newRates, ts.getErrorsOnRates());
-		}
-		else {
-		    double[] newBinHeights = DataSmoother.smooth(ts.getBinHeights(), nBins);
-		    return new TimeSeries(ts.tStart(), ts.getBinEdges(), newBinHeights);
-		}
+		return TimeSeriesSmoother.boxSmooth(ts, nBins);
     }
 
     public static TimeSeries applyWindowFunction(TimeSeries ts, String windowName) throws WindowFunctionException {
 		logger.info("Applying window function to intensities (binheights or rates)");
-		WindowFunction window = new WindowFunction(windowName);
-		double[] binCentres = ts.getBinCentres();
-		double duration = ts.duration();
-		double integralBefore = ts.sumOfBinHeights();
-		double integralAfter = 0;
-		TimeSeries ts_windowed;
+		double[] coefficients = WindowFunctionCache.getCoefficients(ts, windowName);
 		if ( ts.errorsAreSet() ) {
-		    double[] newRates = window.apply(ts.getRates(), binCentres, duration);
-		    ts_windowed = new TimeSeries(ts.tStart(), ts.getBinEdges(), newRates, ts.getErrorsOnRates());
-		    integralAfter = ts_windowed.sumOfBinHeights();
+		    double[] newRates = ts.getRates();
+		    WindowFunctionCache.applyInPlace(newRates, coefficients);
+		    return new TimeSeries(ts.tStart(), ts.internalBinEdges(), newRates, ts.internalErrorsOnRates());
 		}
 		else {
-		    double[] newBinHeights = window.apply(ts.getBinHeights(), binCentres, duration);
-		    ts_windowed = new TimeSeries(ts.tStart(), ts.getBinEdges(), newBinHeights);
-		    integralAfter = ts_windowed.sumOfBinHeights();
-		}	
-		double areaScalingFactor = integralBefore/integralAfter;
-		areaScalingFactor = 1;
-		return TimeSeriesUtils.scale(ts_windowed, areaScalingFactor);
+		    double[] newBinHeights = ts.getBinHeights();
+		    WindowFunctionCache.applyInPlace(newBinHeights, coefficients);
+		    return new TimeSeries(ts.tStart(), ts.internalBinEdges(), newBinHeights);
+		}
 	}
 
 
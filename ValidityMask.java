@@ -0,0 +1,126 @@
+package gb.esac.timeseries;
+
+
+/**
+ *
+ * The class <code>ValidityMask</code> records which bins of a time series hold a valid (non-NaN) intensity, one bit
+ * per bin. It is computed once when the intensities are set, and gives the number of valid bins, the first and last
+ * valid bins, and the runs of consecutive valid bins without scanning the intensities again:
+ *
+ * <pre>
+ * int from = mask.nextValid(0);
+ * while ( from < nBins ) {
+ *     int to = mask.nextInvalid(from);
+ *     //  bins from to to-1 are valid
+ *     from = mask.nextValid(to);
+ * }
+ * </pre>
+ *
+ * The mask is immutable.
+ *
+ */
+
+final class ValidityMask {
+
+    private final long[] words;
+    private final int nBins;
+    private final int nValid;
+    private final int firstValid;
+    private final int lastValid;
+
+    ValidityMask(double[] values) {
+	this.nBins = values.length;
+	this.words = new long[(nBins + 63) >>> 6];
+	int nValid = 0;
+	for ( int i=0; i < nBins; i++ ) {
+	    if ( !Double.isNaN(values[i]) ) {
+		words[i >>> 6] |= 1L << i;
+		nValid++;
+	    }
+	}
+	this.nValid = nValid;
+	this.firstValid = nextValid(0);
+	this.lastValid = previousValid(nBins-1);
+    }
+
+    int nBins() { return this.nBins; }
+    int nValid() { return this.nValid; }
+    int nInvalid() { return this.nBins - this.nValid; }
+    boolean allValid() { return this.nValid == this.nBins; }
+
+    /**
+     * Index of the first valid bin, or nBins if there is none.
+     */
+    int firstValid() { return this.firstValid; }
+
+    /**
+     * Index of the last valid bin, or -1 if there is none.
+     */
+    int lastValid() { return this.lastValid; }
+
+    boolean isValid(int i) {
+	return (words[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * Index of the first valid bin at or after from, or nBins if there is none.
+     */
+    int nextValid(int from) {
+	if ( from >= nBins ) return nBins;
+	int w = from >>> 6;
+	long word = words[w] & (-1L << from);
+	while ( word == 0 ) {
+	    if ( ++w == words.length ) return nBins;
+	    word = words[w];
+	}
+	return Math.min(nBins, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    /**
+     * Index of the first invalid bin at or after from, or nBins if there is none.
+     */
+    int nextInvalid(int from) {
+	if ( from >= nBins ) return nBins;
+	int w = from >>> 6;
+	long word = ~words[w] & (-1L << from);
+	while ( word == 0 ) {
+	    if ( ++w == words.length ) return nBins;
+	    word = ~words[w];
+	}
+	return Math.min(nBins, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    /**
+     * Index of the last valid bin at or before from, or -1 if there is none.
+     */
+    int previousValid(int from) {
+	if ( from < 0 ) return -1;
+	int w = from >>> 6;
+	long word = words[w] & (-1L >>> (63 - (from & 63)));
+	while ( word == 0 ) {
+	    if ( w-- == 0 ) return -1;
+	    word = words[w];
+	}
+	return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+    }
+
+    /**
+     * Returns the values of the valid bins, in order. The array itself is returned if all the bins are valid.
+     */
+    double[] validValues(double[] values) {
+	if ( allValid() ) {
+	    return values;
+	}
+	double[] valid = new double[nValid];
+	int k = 0;
+	int from = nextValid(0);
+	while ( from < nBins ) {
+	    int to = nextInvalid(from);
+	    System.arraycopy(values, from, valid, k, to - from);
+	    k += to - from;
+	    from = nextValid(to);
+	}
+	return valid;
+    }
+
+}
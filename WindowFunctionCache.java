@@ -0,0 +1,129 @@
+package gb.esac.timeseries;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import gb.esac.periodogram.WindowFunction;
+import gb.esac.periodogram.WindowFunctionException;
+import org.apache.log4j.Logger;
+
+
+/**
+ *
+ * The class <code>WindowFunctionCache</code> keeps the coefficients of window functions evaluated on
+ * uniform grids. On a grid of n equal bins the coefficients only depend on the window and on n, so they are
+ * computed once with <code>WindowFunction</code> and shared by all the segments or series of that length.
+ *
+ * Series with a constant bin width and no gaps are such grids. For other series, the coefficients are evaluated
+ * at their bin centres on each call and are not cached.
+ *
+ * The cache holds at most <code>MAX_DOUBLES</code> coefficients in total. When a new array does not fit, the least
+ * recently used arrays are dropped, so that callers that see a new length for every series do not retain an array
+ * per length for the life of the process. Arrays longer than the whole budget are returned without being cached.
+ *
+ * The cached arrays are shared and must not be modified.
+ *
+ */
+
+final class WindowFunctionCache {
+
+    private static Logger logger  = Logger.getLogger(WindowFunctionCache.class);
+
+    //  Bound on the coefficients kept: 2^21 doubles (16 MB)
+    static final long MAX_DOUBLES = 1L << 21;
+
+    //  In access order, the least recently used first. Guarded by its own lock
+    private static final LinkedHashMap<String, double[]> coefficients = new LinkedHashMap<String, double[]>(16, 0.75f, true);
+    private static long nDoubles = 0;
+
+    private WindowFunctionCache() {}
+
+    static double[] getCoefficients(String windowName, int nBins) throws WindowFunctionException {
+	String key = windowName+"/"+nBins;
+	double[] w;
+	synchronized ( coefficients ) {
+	    w = coefficients.get(key);
+	}
+	if ( w == null ) {
+	    logger.info("Computing coefficients of "+windowName+" window for "+nBins+" uniform bins");
+	    WindowFunction window = new WindowFunction(windowName);
+	    double[] ones = new double[nBins];
+	    Arrays.fill(ones, 1.0);
+	    double[] binCentres = new double[nBins];
+	    for ( int i=0; i < nBins; i++ ) {
+		binCentres[i] = i + 0.5;
+	    }
+	    w = window.apply(ones, binCentres, nBins);
+	    w = put(key, w);
+	}
+	return w;
+    }
+
+    /**
+     * Caches the coefficients unless another thread did first, and returns the cached array.
+     */
+    private static double[] put(String key, double[] w) {
+	if ( w.length > MAX_DOUBLES ) {
+	    return w;
+	}
+	synchronized ( coefficients ) {
+	    double[] previous = coefficients.get(key);
+	    if ( previous != null ) {
+		return previous;
+	    }
+	    coefficients.put(key, w);
+	    nDoubles += w.length;
+	    Iterator<double[]> it = coefficients.values().iterator();
+	    while ( nDoubles > MAX_DOUBLES ) {
+		double[] eldest = it.next();
+		it.remove();
+		nDoubles -= eldest.length;
+	    }
+	}
+	return w;
+    }
+
+    /** Number of coefficients held in the cache */
+    static long cachedDoubles() {
+	synchronized ( coefficients ) {
+	    return nDoubles;
+	}
+    }
+
+    /**
+     * Returns the coefficients of the window at the bins of the series, from the cache when its grid is uniform.
+     */
+    static double[] getCoefficients(TimeSeries ts, String windowName) throws WindowFunctionException {
+	int nBins = ts.nBins();
+	if ( ts.binWidthIsConstant() && !ts.thereAreGaps() ) {
+	    return getCoefficients(windowName, nBins);
+	}
+	WindowFunction window = new WindowFunction(windowName);
+	double[] ones = new double[nBins];
+	Arrays.fill(ones, 1.0);
+	return window.apply(ones, ts.internalBinCentres(), ts.duration());
+    }
+
+    /**
+     * Multiplies the values by the coefficients, in place.
+     */
+    static void applyInPlace(double[] values, double[] w) {
+	if ( values.length != w.length ) {
+	    throw new IllegalArgumentException("Number of values ("+values.length+") and of window coefficients ("+w.length+") differ");
+	}
+	ArrayArithmetic.get().multiply(values, w, values, values.length);
+    }
+
+    /**
+     * Mean of the squared coefficients, used to correct powers for the window.
+     */
+    static double meanSquare(double[] w) {
+	double sum = 0;
+	for ( int i=0; i < w.length; i++ ) {
+	    sum += w[i]*w[i];
+	}
+	return sum/w.length;
+    }
+
+}
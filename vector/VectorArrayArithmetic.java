@@ -0,0 +1,158 @@
+package gb.esac.timeseries;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/**
+ *
+ * The class <code>VectorArrayArithmetic</code> implements <code>IArrayArithmetic</code> with SIMD instructions
+ * through the incubating Vector API (jdk.incubator.vector, JDK 16 and later). Each kernel processes full vectors
+ * of the preferred species and finishes the remaining elements with a scalar loop.
+ *
+ * This class requires <code>--add-modules jdk.incubator.vector</code> at compile and run time, so it is kept out of
+ * the main source directory and compiled in a separate step into the same output directory (see README.md). It is
+ * only loaded reflectively by <code>ArrayArithmetic</code>, so the rest of the package builds and runs without it.
+ *
+ */
+
+final class VectorArrayArithmetic implements IArrayArithmetic {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    public String name() { return "vector ("+SPECIES.length()+" lanes)"; }
+
+    public void add(double[] a, double[] b, double[] out, int n) {
+	int i = 0;
+	int upperBound = SPECIES.loopBound(n);
+	for ( ; i < upperBound; i += SPECIES.length() ) {
+	    DoubleVector va = DoubleVector.fromArray(SPECIES, a, i);
+	    DoubleVector vb = DoubleVector.fromArray(SPECIES, b, i);
+	    va.add(vb).intoArray(out, i);
+	}
+	for ( ; i < n; i++ ) {
+	    out[i] = a[i] + b[i];
+	}
+    }
+
+    public void subtract(double[] a, double[] b, double[] out, int n) {
+	int i = 0;
+	int upperBound = SPECIES.loopBound(n);
+	for ( ; i < upperBound; i += SPECIES.length() ) {
+	    DoubleVector va = DoubleVector.fromArray(SPECIES, a, i);
+	    DoubleVector vb = DoubleVector.fromArray(SPECIES, b, i);
+	    va.sub(vb).intoArray(out, i);
+	}
+	for ( ; i < n; i++ ) {
+	    out[i] = a[i] - b[i];
+	}
+    }
+
+    public void multiply(double[] a, double[] b, double[] out, int n) {
+	int i = 0;
+	int upperBound = SPECIES.loopBound(n);
+	for ( ; i < upperBound; i += SPECIES.length() ) {
+	    DoubleVector va = DoubleVector.fromArray(SPECIES, a, i);
+	    DoubleVector vb = DoubleVector.fromArray(SPECIES, b, i);
+	    va.mul(vb).intoArray(out, i);
+	}
+	for ( ; i < n; i++ ) {
+	    out[i] = a[i]*b[i];
+	}
+    }
+
+    public void divide(double[] a, double[] b, double[] out, int n) {
+	int i = 0;
+	int upperBound = SPECIES.loopBound(n);
+	for ( ; i < upperBound; i += SPECIES.length() ) {
+	    DoubleVector va = DoubleVector.fromArray(SPECIES, a, i);
+	    DoubleVector vb = DoubleVector.fromArray(SPECIES, b, i);
+	    va.div(vb).intoArray(out, i);
+	}
+	for ( ; i < n; i++ ) {
+	    out[i] = a[i]/b[i];
+	}
+    }
+
+    public void scale(double[] a, double factor, double[] out, int n) {
+	int i = 0;
+	int upperBound = SPECIES.loopBound(n);
+	for ( ; i < upperBound; i += SPECIES.length() ) {
+	    DoubleVector.fromArray(SPECIES, a, i).mul(factor).intoArray(out, i);
+	}
+	for ( ; i < n; i++ ) {
+	    out[i] = a[i]*factor;
+	}
+    }
+
+    public void addOffset(double[] a, double offset, double[] out, int n) {
+	int i = 0;
+	int upperBound = SPECIES.loopBound(n);
+	for ( ; i < upperBound; i += SPECIES.length() ) {
+	    DoubleVector.fromArray(SPECIES, a, i).add(offset).intoArray(out, i);
+	}
+	for ( ; i < n; i++ ) {
+	    out[i] = a[i] + offset;
+	}
+    }
+
+    public void quadratureSum(double[] e1, double[] e2, double[] out, int n) {
+	int i = 0;
+	int upperBound = SPECIES.loopBound(n);
+	for ( ; i < upperBound; i += SPECIES.length() ) {
+	    DoubleVector v1 = DoubleVector.fromArray(SPECIES, e1, i);
+	    DoubleVector v2 = DoubleVector.fromArray(SPECIES, e2, i);
+	    v1.mul(v1).add(v2.mul(v2)).lanewise(VectorOperators.SQRT).intoArray(out, i);
+	}
+	for ( ; i < n; i++ ) {
+	    out[i] = Math.sqrt(e1[i]*e1[i] + e2[i]*e2[i]);
+	}
+    }
+
+    public void inverseVarianceMean(double[] r1, double[] e1, double[] r2, double[] e2, double[] meanOut, double[] errorOut, int n) {
+	int i = 0;
+	int upperBound = SPECIES.loopBound(n);
+	DoubleVector one = DoubleVector.broadcast(SPECIES, 1.0);
+	for ( ; i < upperBound; i += SPECIES.length() ) {
+	    DoubleVector ve1 = DoubleVector.fromArray(SPECIES, e1, i);
+	    DoubleVector ve2 = DoubleVector.fromArray(SPECIES, e2, i);
+	    DoubleVector w1 = one.div(ve1.mul(ve1));
+	    DoubleVector w2 = one.div(ve2.mul(ve2));
+	    DoubleVector sumOfWeights = w1.add(w2);
+	    DoubleVector weightedSum = DoubleVector.fromArray(SPECIES, r1, i).mul(w1).add(DoubleVector.fromArray(SPECIES, r2, i).mul(w2));
+	    weightedSum.div(sumOfWeights).intoArray(meanOut, i);
+	    one.div(sumOfWeights.lanewise(VectorOperators.SQRT)).intoArray(errorOut, i);
+	}
+	for ( ; i < n; i++ ) {
+	    double w1 = 1/(e1[i]*e1[i]);
+	    double w2 = 1/(e2[i]*e2[i]);
+	    double sumOfWeights = w1 + w2;
+	    meanOut[i] = (r1[i]*w1 + r2[i]*w2)/sumOfWeights;
+	    errorOut[i] = 1/Math.sqrt(sumOfWeights);
+	}
+    }
+
+    public double[] weightedMean(double[] values, double[] errors, int n) {
+	int i = 0;
+	int upperBound = SPECIES.loopBound(n);
+	DoubleVector one = DoubleVector.broadcast(SPECIES, 1.0);
+	DoubleVector weightedSums = DoubleVector.zero(SPECIES);
+	DoubleVector sumsOfWeights = DoubleVector.zero(SPECIES);
+	for ( ; i < upperBound; i += SPECIES.length() ) {
+	    DoubleVector ve = DoubleVector.fromArray(SPECIES, errors, i);
+	    DoubleVector w = one.div(ve.mul(ve));
+	    weightedSums = weightedSums.add(DoubleVector.fromArray(SPECIES, values, i).mul(w));
+	    sumsOfWeights = sumsOfWeights.add(w);
+	}
+	double weightedSum = weightedSums.reduceLanes(VectorOperators.ADD);
+	double sumOfWeights = sumsOfWeights.reduceLanes(VectorOperators.ADD);
+	for ( ; i < n; i++ ) {
+	    double w = 1/(errors[i]*errors[i]);
+	    weightedSum += values[i]*w;
+	    sumOfWeights += w;
+	}
+	return new double[] {weightedSum/sumOfWeights, 1/Math.sqrt(sumOfWeights)};
+    }
+
+}